@@ -16,26 +16,31 @@
 
 package com.janrain.backplane.server;
 
+import com.janrain.backplane.server.cluster.ClusterBus;
+import com.janrain.backplane.server.cluster.ClusterEvent;
 import com.janrain.backplane.server.config.AuthException;
 import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusAuthorizer;
 import com.janrain.backplane.server.config.BusConfig;
-import com.janrain.backplane.server.config.User;
+import com.janrain.backplane.server.config.BusTokens;
 import com.janrain.backplane.server.metrics.MetricsAccumulator;
-import com.janrain.crypto.HmacHashUtils;
+import com.janrain.blob.BlobStore;
+import com.janrain.servlet.ClientFailureFilter;
 import com.janrain.simpledb.SimpleDBException;
 import com.janrain.simpledb.SuperSimpleDB;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.HistogramMetric;
 import com.yammer.metrics.core.MeterMetric;
 import com.yammer.metrics.core.TimerMetric;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.TypeMismatchException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.ServletRequestBindingException;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.ModelAndView;
 
@@ -43,8 +48,6 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
@@ -70,15 +73,27 @@ public class BackplaneController {
     }
 
     @RequestMapping(value = "/bus/{bus}", method = RequestMethod.GET)
-    public @ResponseBody List<HashMap<String,Object>> getBusMessages(
+    public void getBusMessages(
                                 @RequestHeader(value = "Authorization", required = false) String basicAuth,
-                                @PathVariable String bus,
-                                @RequestParam(value = "since", defaultValue = "") String since,
-                                @RequestParam(value = "sticky", required = false) String sticky )
-        throws AuthException, SimpleDBException, BackplaneServerException {
+                                @PathVariable final String bus,
+                                @RequestParam(value = "since", defaultValue = "") final String since,
+                                @RequestParam(value = "sticky", required = false) final String sticky,
+                                @RequestParam(value = "block", required = false) Integer block,
+                                @RequestParam(value = "limit", required = false) Integer limit,
+                                @RequestParam(value = "cursor", required = false) String cursor,
+                                @RequestParam(value = "type", required = false) String type,
+                                @RequestParam(value = "fields", required = false) String fields,
+                                @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                HttpServletRequest request,
+                                HttpServletResponse response)
+        throws AuthException, SimpleDBException, BackplaneServerException, IOException {
 
         checkAuth(basicAuth, bus, BackplaneConfig.BUS_PERMISSION.GETALL);
 
+        final String after = StringUtils.isBlank(cursor) ? since : cursor;
+        final int pageSize = limit == null || limit <= 0 ? bpConfig.getBusGetMaxMessages() : Math.min(limit, bpConfig.getBusGetMaxMessages());
+        final MessageFilter filter = MessageFilter.parse(type, fields);
+
         // log metric
         busGets.mark();
 
@@ -86,33 +101,71 @@ public class BackplaneController {
             busGetsSticky.mark();
         }
 
-        StringBuilder whereClause = new StringBuilder()
-            .append(BackplaneMessage.Field.BUS.getFieldName()).append("='").append(bus).append("'");
-        if (! StringUtils.isEmpty(since)) {
-            whereClause.append(" and ").append(BackplaneMessage.Field.ID.getFieldName()).append(" > '").append(since).append("'");
-        }
-        if (! StringUtils.isEmpty(sticky)) {
-            whereClause.append(" and ").append(BackplaneMessage.Field.STICKY.getFieldName()).append("='").append(sticky).append("'");
+        long blockMillis = blockMillis(block);
+        String head = channelHeads.getHead(bus, null);
+        if (notModified(head, ifNoneMatch, blockMillis, response)) return;
+        LongPoll longPoll = longPoll(request, blockMillis, after, bus, null, new LongPoll.Poll() {
+            @Override
+            public void respond(HttpServletResponse response) throws Exception {
+                String head = channelHeads.getHead(bus, null);
+                writePage(getFrames(bus, null, after, sticky, pageSize + 1, filter.getFrameFields()), pageSize, filter, head, response);
+            }
+        });
+
+        // one more than the page size, to tell if there are more
+        List<HashMap<String,Object>> frames = getFrames(bus, null, after, sticky, pageSize + 1, filter.getFrameFields());
+        if (longPoll != null) {
+            if (frames.isEmpty() && longPoll.park(request, blockMillis)) return;
+            longPoll.cancel();
         }
+        writePage(frames, pageSize, filter, head, response);
+    }
 
-        List<BackplaneMessage> messages = superSimpleDb.retrieveWhere(bpConfig.getMessagesTableName(), BackplaneMessage.class, whereClause.toString(), true);
+    /**
+     * Exchanges Basic auth credentials for a signed access token granting the user's permissions on the bus,
+     * to be used instead of the credentials in a Bearer Authorization header.
+     */
+    @RequestMapping(value = "/bus/{bus}/token", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> getToken(
+                                @RequestHeader(value = "Authorization", required = false) String basicAuth,
+                                @PathVariable String bus)
+        throws AuthException {
 
-        List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
-        for (BackplaneMessage message : messages) {
-            frames.add(message.asFrame());
+        BusAuthorizer.Grant grant = busAuthorizer.grant(basicAuth, bus);
+        if (grant.getPermissions().isEmpty()) {
+            throw new AuthException("User " + grant.getUser() + " has no permissions on " + bus);
         }
-        return frames;
+        Map<String, Object> token = new LinkedHashMap<String, Object>();
+        token.put("access_token", busTokens.issue(grant.getUser(), bus, grant.getPermissions()));
+        token.put("token_type", "Bearer");
+        token.put("expires_in", busTokens.getTtlSeconds());
 
+        // log metric
+        tokensIssued.mark();
+
+        return token;
     }
 
+    /**
+     * @param response declared so that a null (parked long-poll or streamed) return value is treated as handled
+     */
     @RequestMapping(value = "/bus/{bus}/channel/{channel}", method = RequestMethod.GET)
     public ResponseEntity<String> getChannel(
-                                @PathVariable String bus,
-                                @PathVariable String channel,
-                                @RequestParam(required = false) String callback,
-                                @RequestParam(value = "since", required = false) String since,
-                                @RequestParam(value = "sticky", required = false) String sticky )
-        throws SimpleDBException, AuthException, BackplaneServerException {
+                                @PathVariable final String bus,
+                                @PathVariable final String channel,
+                                @RequestParam(required = false) final String callback,
+                                @RequestParam(value = "since", required = false) final String since,
+                                @RequestParam(value = "sticky", required = false) final String sticky,
+                                @RequestParam(value = "block", required = false) Integer block,
+                                @RequestParam(value = "type", required = false) String type,
+                                @RequestParam(value = "fields", required = false) String fields,
+                                @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                HttpServletRequest request,
+                                HttpServletResponse response)
+        throws SimpleDBException, AuthException, BackplaneServerException, IOException {
+
+        final MessageFilter filter = MessageFilter.parse(type, fields);
 
         // log metric
         channelGets.mark();
@@ -121,21 +174,147 @@ public class BackplaneController {
             channelGetsSticky.mark();
         }
 
-        if (StringUtils.isBlank(callback)) {
-            return new ResponseEntity<String>(
-                    NEW_CHANNEL_LAST_PATH.equals(channel) ? newChannel() : getChannelMessages(bus, channel, since, sticky),
-                    new HttpHeaders() {{
-                        add("Content-Type", "application/json");
-                    }},
-                    HttpStatus.OK);
+        if (NEW_CHANNEL_LAST_PATH.equals(channel)) {
+            return channelResponse(callback, newChannel());
+        }
+
+        long blockMillis = blockMillis(block);
+        String head = channelHeads.getHead(bus, channel);
+        if (notModified(head, ifNoneMatch, blockMillis, response)) return null;
+        // all of the channel's messages since are returned, up to the head
+        setETag(head, response);
+        LongPoll longPoll = longPoll(request, blockMillis, since, bus, channel, new LongPoll.Poll() {
+            @Override
+            public void respond(HttpServletResponse response) throws Exception {
+                writeFrames(getChannelFrames(bus, channel, since, sticky, filter), callback, response);
+            }
+        });
+
+        List<HashMap<String,Object>> frames = getChannelFrames(bus, channel, since, sticky, filter);
+        if (longPoll != null) {
+            if (frames.isEmpty() && longPoll.park(request, blockMillis)) return null;
+            longPoll.cancel();
+        }
+        writeFrames(frames, callback, response);
+        return null;
+    }
 
-        } else {
-            return new ResponseEntity<String>(
-                    paddedResponse(callback, NEW_CHANNEL_LAST_PATH.equals(channel) ? newChannel() : getChannelMessages(bus, channel, since, sticky)),
-                    new HttpHeaders() {{
-                        add("Content-Type", "application/x-javascript");
-                    }},
-                    HttpStatus.OK);
+    /**
+     * Polls several channels of a bus in one request.
+     *
+     * @param cursors the channels to poll, each mapped to its since message ID (null or empty for all messages)
+     */
+    @RequestMapping(value = "/bus/{bus}/channels", method = RequestMethod.POST)
+    public void getChannels(
+                                @PathVariable String bus,
+                                @RequestBody Map<String,Object> cursors,
+                                HttpServletResponse response)
+        throws SimpleDBException, BackplaneServerException, IOException {
+
+        // log metric
+        channelBatchGets.mark();
+
+        checkBatchSize(cursors.size());
+        payLoadSizesOnGets.update(FrameWriter.writeGroups(getFrames(bus, sinceByChannel(bus, cursors)), response));
+    }
+
+    /**
+     * Polls channels on several buses in one request.
+     *
+     * @param cursors bus names, each mapped to the channel cursors to poll on it, as for getChannels
+     */
+    @RequestMapping(value = "/channels", method = RequestMethod.POST)
+    public void getBusesChannels(
+                                @RequestBody Map<String,Object> cursors,
+                                HttpServletResponse response)
+        throws SimpleDBException, BackplaneServerException, IOException {
+
+        // log metric
+        channelBatchGets.mark();
+
+        Map<String, Map<String,String>> sinceByBus = new LinkedHashMap<String, Map<String, String>>();
+        int channels = 0;
+        for (Map.Entry<String,Object> busCursors : cursors.entrySet()) {
+            if (! (busCursors.getValue() instanceof Map)) {
+                throw new BackplaneServerException("Invalid channel cursors for bus " + busCursors.getKey());
+            }
+            @SuppressWarnings({"unchecked"})
+            Map<String,Object> channelCursors = (Map<String, Object>) busCursors.getValue();
+            channels += channelCursors.size();
+            sinceByBus.put(busCursors.getKey(), sinceByChannel(busCursors.getKey(), channelCursors));
+        }
+        checkBatchSize(channels);
+
+        Map<String, Map<String, List<HashMap<String,Object>>>> frames = new LinkedHashMap<String, Map<String, List<HashMap<String, Object>>>>();
+        for (Map.Entry<String, Map<String,String>> busCursors : sinceByBus.entrySet()) {
+            frames.put(busCursors.getKey(), getFrames(busCursors.getKey(), busCursors.getValue()));
+        }
+        payLoadSizesOnGets.update(FrameWriter.writeGroups(frames, response));
+    }
+
+    /**
+     * The ID of the latest message on the channel, also returned as the ETag, or null if none is known.
+     */
+    @RequestMapping(value = "/bus/{bus}/channel/{channel}/head", method = { RequestMethod.GET, RequestMethod.HEAD })
+    public ResponseEntity<String> getChannelHead(
+                                @PathVariable String bus,
+                                @PathVariable String channel,
+                                @RequestParam(required = false) String callback,
+                                HttpServletResponse response) {
+
+        // log metric
+        headProbes.mark();
+
+        String head = channelHeads.getHead(bus, channel);
+        setETag(head, response);
+        return channelResponse(callback, headJson(head));
+    }
+
+    /**
+     * The ID of the latest message on the bus, also returned as the ETag, or null if none is known.
+     */
+    @RequestMapping(value = "/bus/{bus}/head", method = { RequestMethod.GET, RequestMethod.HEAD })
+    public ResponseEntity<String> getBusHead(
+                                @RequestHeader(value = "Authorization", required = false) String basicAuth,
+                                @PathVariable String bus,
+                                HttpServletResponse response) throws AuthException {
+
+        checkAuth(basicAuth, bus, BackplaneConfig.BUS_PERMISSION.GETALL);
+
+        // log metric
+        headProbes.mark();
+
+        String head = channelHeads.getHead(bus, null);
+        setETag(head, response);
+        return channelResponse(null, headJson(head));
+    }
+
+    /**
+     * Server-Sent Events stream of the channel's messages; resumes after the Last-Event-ID header if present,
+     * otherwise after the since parameter.
+     */
+    @RequestMapping(value = "/bus/{bus}/channel/{channel}/stream", method = RequestMethod.GET)
+    public void streamChannel(
+                                @PathVariable final String bus,
+                                @PathVariable final String channel,
+                                @RequestParam(value = "since", required = false) String since,
+                                @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                HttpServletRequest request,
+                                HttpServletResponse response)
+        throws SimpleDBException, IOException {
+
+        // log metric
+        channelStreams.mark();
+
+        ChannelStream stream = new ChannelStream(longPolls, bus, channel, StringUtils.isBlank(lastEventId) ? since : lastEventId) {
+            @Override
+            List<HashMap<String, Object>> poll(String since) throws Exception {
+                return getFrames(bus, channel, since, null);
+            }
+        };
+        if (! stream.open(request, response, bpConfig.getStreamMaxSeconds() * 1000L, bpConfig.getStreamMaxConnections())) {
+            // clients fall back to polling
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         }
     }
 
@@ -145,7 +324,7 @@ public class BackplaneController {
                                 @RequestBody List<Map<String,Object>> messages,
                                 @PathVariable String bus,
                                 @PathVariable String channel) throws AuthException, SimpleDBException, BackplaneServerException {
-        checkAuth(basicAuth, bus, BackplaneConfig.BUS_PERMISSION.POST);
+        BusConfig busConfig = checkAuth(basicAuth, bus, BackplaneConfig.BUS_PERMISSION.POST);
 
         //Block post if the caller has exceeded the message post limit
         Long count = superSimpleDb.retrieveCount(bpConfig.getMessagesTableName(),
@@ -162,90 +341,265 @@ public class BackplaneController {
         //log metric
         posts.mark();
 
-        for(Map<String,Object> messageData : messages) {
-            BackplaneMessage message = new BackplaneMessage(generateMessageId(), bus, channel, messageData);
-            superSimpleDb.store(bpConfig.getMessagesTableName(), BackplaneMessage.class, message, true); // todo: make long entries support configurable
+        BackplaneMessage.StorageFormat storageFormat = bpConfig.getMessageStorageFormat();
+        int offloadThreshold = bpConfig.getPayloadOffloadThresholdBytes();
+        List<ClusterEvent.PostedMessage> posted = new ArrayList<ClusterEvent.PostedMessage>();
+        String latestId = null;
+        int stored = 0;
+        boolean storing = false;
+        try {
+            for(Map<String,Object> messageData : messages) {
+                BackplaneMessage message = new BackplaneMessage(generateMessageId(), bus, channel, messageData);
+                long retentionSeconds = busConfig.getRetentionTimeSeconds(Boolean.valueOf(message.get(BackplaneMessage.Field.STICKY)));
+                if (offloadThreshold > 0) {
+                    message.offloadPayload(blobStore, offloadThreshold);
+                }
+                message.setStorageFormat(storageFormat, retentionSeconds);
+                storing = true;
+                superSimpleDb.store(bpConfig.getMessagesTableName(), BackplaneMessage.class, message, true); // todo: make long entries support configurable
+                storing = false;
+                latestId = message.getIdValue();
+                stored++;
+                HashMap<String,Object> frame = messageCache.isEnabled() || clusterBus.isEnabled() ? message.asFrame(blobStore) : null;
+                if (frame != null) {
+                    messageCache.add(bus, frame, retentionSeconds);
+                    posted.add(new ClusterEvent.PostedMessage(frame, retentionSeconds));
+                }
+            }
+        } finally {
+            // the messages stored before a failure are delivered
+            if (latestId != null) {
+                channelHeads.posted(bus, channel, latestId, stored);
+                longPolls.notifyPosted(bus, channel);
+                if (! posted.isEmpty()) {
+                    clusterBus.publish(ClusterEvent.messagesPosted(bus, channel, posted));
+                }
+            }
+            // a failed store may still have stored the message
+            if (storing) {
+                channelHeads.discard(bus, channel);
+            }
         }
 
         return "";
     }
 
     /**
-     * Handle auth errors
+     * Handle auth errors; the reason is only returned in debug mode
      */
     @ExceptionHandler
     @ResponseBody
-    public Map<String, String> handle(final AuthException e, HttpServletResponse response) {
-        logger.error("Backplane authentication error: " + bpConfig.getDebugException(e));
+    public Map<String, String> handle(AuthException e, HttpServletRequest request, HttpServletResponse response) {
+        if (clientFailures.clientFailed(request)) {
+            logger.error("Backplane authentication error: " + e.getMessage());
+        }
         response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-        return new HashMap<String,String>() {{
-            put(ERR_MSG_FIELD, e.getMessage());
-        }};
+        return bpConfig.isCachedDebugMode() ? Collections.singletonMap(ERR_MSG_FIELD, ACCESS_DENIED_MSG + " " + e.getMessage()) : ACCESS_DENIED;
     }
 
     /**
-     * Handle all other errors
+     * Handle all other errors; only invalid requests are counted against the client
      */
     @ExceptionHandler
     @ResponseBody
-    public Map<String, String> handle(final Exception e, HttpServletResponse response) {
-        logger.error("Error handling backplane request", bpConfig.getDebugException(e));
+    public Map<String, String> handle(Exception e, HttpServletRequest request, HttpServletResponse response) {
+        if (isClientError(e) ? clientFailures.clientFailed(request) : clientFailures.serverFailed()) {
+            logger.error("Error handling backplane request", bpConfig.getDebugException(e));
+        }
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        return new HashMap<String,String>() {{
-            try {
-                put(ERR_MSG_FIELD, bpConfig.isDebugMode() ? e.getMessage() : "Error processing request.");
-            } catch (SimpleDBException e1) {
-                put(ERR_MSG_FIELD, "Error processing request.");
-            }
-        }};
+        return bpConfig.isCachedDebugMode() ? Collections.singletonMap(ERR_MSG_FIELD, e.getMessage()) : REQUEST_ERROR;
     }
 
     /**
      * @return a time-based, lexicographically comparable message ID.
+     * @see MessageIds
      */
     public static String generateMessageId() {
-        return BackplaneConfig.ISO8601.format(new Date()) + "-" + randomString(10);
+        return MessageIds.next();
     }
 
     public static String randomString(int length) {
-        byte[] randomBytes = new byte[length];
-        random.nextBytes(randomBytes);
-        for (int i = 0; i < length; i++) {
-            byte b = randomBytes[i];
-            int c = Math.abs(b % 16);
-            if (c < 10) c += 48; // map (0..9) to '0' .. '9'
-            else c += (97 - 10);   // map (10..15) to 'a'..'f'
-            randomBytes[i] = (byte) c;
+        return MessageIds.randomHex(length);
+    }
+    
+    // - PACKAGE
+
+    /**
+     * @param authorization Basic auth credentials, or a Bearer access token
+     * @return the bus configuration, if the credentials or token are granted the permission on the bus;
+     * null for tokens granted other permissions than POST, which don't need it
+     */
+    BusConfig checkAuth(String authorization, String bus, BackplaneConfig.BUS_PERMISSION permission) throws AuthException {
+        if (authorization == null || ! authorization.startsWith(BusTokens.BEARER_PREFIX)) {
+            return busAuthorizer.authorize(authorization, bus, permission);
         }
+        busTokens.authorize(authorization, bus, permission);
+        if (permission != BackplaneConfig.BUS_PERMISSION.POST) return null;
+        BusConfig busConfig = busAuthorizer.getBusConfig(bus);
+        if (busConfig == null) {
+            throw new AuthException("Bus configuration not found for " + bus);
+        }
+        return busConfig;
+    }
+
+    /**
+     * @param channel the channel to retrieve messages from, or null for all channels on the bus
+     */
+    List<HashMap<String,Object>> getFrames(String bus, String channel, String since, String sticky) throws SimpleDBException, BackplaneServerException {
+        return getFrames(bus, channel, since, sticky, 0);
+    }
+
+    /**
+     * @param channel the channel to retrieve messages from, or null for all channels on the bus
+     * @param limit the maximum number of (oldest) messages to retrieve, 0 for all
+     */
+    List<HashMap<String,Object>> getFrames(String bus, String channel, String since, String sticky, int limit) throws SimpleDBException, BackplaneServerException {
+        return getFrames(bus, channel, since, sticky, limit, null);
+    }
+
+    /**
+     * @param channel the channel to retrieve messages from, or null for all channels on the bus
+     * @param limit the maximum number of (oldest) messages to retrieve, 0 for all
+     * @param fields the fields to build frames not already cached with, or null for all fields;
+     * frames with only some fields are not cached, and offloaded payloads are read only if requested
+     *
+     * Identical concurrent reads share one query, and bus reads may reuse the results of a read
+     * completed less than BUS_GET_MICRO_CACHE_MILLIS ago, if no message was posted since.
+     */
+    List<HashMap<String,Object>> getFrames(final String bus, final String channel, final String since, final String sticky,
+                                           final int limit, final Set<String> fields) throws SimpleDBException, BackplaneServerException {
+        List<HashMap<String,Object>> cached = messageCache.get(bus, channel, since, sticky);
+        if (cached != null) {
+            return limit > 0 && cached.size() > limit ? new ArrayList<HashMap<String, Object>>(cached.subList(0, limit)) : cached;
+        }
+        if (! StringUtils.isEmpty(since) && channelHeads.isCurrent(bus, channel, since)) {
+            return new ArrayList<HashMap<String, Object>>();
+        }
+
         try {
-            return new String(randomBytes, "US-ASCII");
+            List<HashMap<String,Object>> frames = messageReads.load(
+                Arrays.<Object>asList(bus, channel, since, sticky, limit, fields),
+                channel == null ? bpConfig.getBusGetMicroCacheMillis() : 0,
+                channelHeads.getHead(bus, channel),
+                new Callable<List<HashMap<String, Object>>>() {
+                    @Override
+                    public List<HashMap<String, Object>> call() throws Exception {
+                        return queryFrames(bus, channel, since, sticky, limit, fields);
+                    }
+                });
+            // the list is shared with the other callers of the same read
+            return new ArrayList<HashMap<String, Object>>(frames);
+        } catch (SimpleDBException sdbe) {
+            throw sdbe;
+        } catch (BackplaneServerException bse) {
+            throw bse;
+        } catch (Exception e) {
+            throw new BackplaneServerException(e.getMessage(), e);
         }
-        catch (UnsupportedEncodingException e) {
-            logger.error("US-ASCII character encoding not supported", e); // shouldn't happen
-            return null;
+    }
+
+    /**
+     * Polls several channels of a bus: each from the message cache or its channel head if possible,
+     * and the others with one query per MAX_QUERY_CHANNELS channels.
+     *
+     * @param sinceByChannel the channels, each mapped to the message ID after which messages are requested (empty for all)
+     * @return the frames of each channel
+     */
+    Map<String, List<HashMap<String,Object>>> getFrames(String bus, Map<String,String> sinceByChannel) throws SimpleDBException, BackplaneServerException {
+        Map<String, List<HashMap<String,Object>>> result = new LinkedHashMap<String, List<HashMap<String, Object>>>();
+        List<String> misses = new ArrayList<String>();
+        for (Map.Entry<String,String> cursor : sinceByChannel.entrySet()) {
+            String channel = cursor.getKey();
+            String since = cursor.getValue();
+            List<HashMap<String,Object>> cached = messageCache.get(bus, channel, since, null);
+            if (cached != null) {
+                result.put(channel, cached);
+            } else if (! StringUtils.isEmpty(since) && channelHeads.isCurrent(bus, channel, since)) {
+                result.put(channel, new ArrayList<HashMap<String, Object>>());
+            } else {
+                // keeps the requested order
+                result.put(channel, null);
+                misses.add(channel);
+            }
         }
+
+        // sorted, so that identical polls query the same channel groups, and share the queries
+        Collections.sort(misses);
+        for (int i = 0; i < misses.size(); i += MAX_QUERY_CHANNELS) {
+            List<String> channels = misses.subList(i, Math.min(i + MAX_QUERY_CHANNELS, misses.size()));
+            String floor = null;
+            for (String channel : channels) {
+                String since = sinceByChannel.get(channel);
+                if (floor == null || since.compareTo(floor) < 0) floor = since;
+            }
+
+            Map<String, List<HashMap<String,Object>>> byChannel = getChannelsFrames(bus, channels, floor);
+            for (String channel : channels) {
+                String since = sinceByChannel.get(channel);
+                List<HashMap<String,Object>> newer = new ArrayList<HashMap<String, Object>>();
+                for (HashMap<String,Object> frame : byChannel.get(channel)) {
+                    if (((String) frame.get(BackplaneMessage.Field.ID.getFieldName())).compareTo(since) > 0) newer.add(frame);
+                }
+                result.put(channel, newer);
+            }
+        }
+        return result;
     }
-    
+
     // - PRIVATE
 
     private static final Logger logger = Logger.getLogger(BackplaneController.class);
 
     private static final String NEW_CHANNEL_LAST_PATH = "new";
     private static final String ERR_MSG_FIELD = "ERR_MSG";
+    private static final String ACCESS_DENIED_MSG = "Access denied.";
+    // shared by all failed requests outside debug mode
+    private static final Map<String, String> ACCESS_DENIED = Collections.singletonMap(ERR_MSG_FIELD, ACCESS_DENIED_MSG);
+    private static final Map<String, String> REQUEST_ERROR = Collections.singletonMap(ERR_MSG_FIELD, "Error processing request.");
     private static final int CHANNEL_NAME_LENGTH = 32;
+    private static final int MAX_BATCH_CHANNELS = 100;
+    private static final String MORE_HEADER = "X-Backplane-More";
+    private static final String CURSOR_HEADER = "X-Backplane-Cursor";
+    private static final int MAX_QUERY_CHANNELS = 20;
 
     private final MeterMetric posts =
             Metrics.newMeter(BackplaneController.class, "post", "posts", TimeUnit.MINUTES);
 
     private final MeterMetric channelGets =
             Metrics.newMeter(BackplaneController.class, "channel_get", "channel_gets", TimeUnit.MINUTES);
+    private final MeterMetric headProbes =
+            Metrics.newMeter(BackplaneController.class, "head_probes", "head_probes", TimeUnit.MINUTES);
+    private final MeterMetric notModified =
+            Metrics.newMeter(BackplaneController.class, "not_modified", "not_modified", TimeUnit.MINUTES);
+    private final MeterMetric channelBatchGets =
+            Metrics.newMeter(BackplaneController.class, "channel_batch_get", "channel_batch_gets", TimeUnit.MINUTES);
+    private final MeterMetric channelStreams =
+            Metrics.newMeter(BackplaneController.class, "channel_stream", "channel_streams", TimeUnit.MINUTES);
     private final MeterMetric channelGetsSticky = Metrics.newMeter(BackplaneController.class, "channel_gets_sticky", "channel_gets_sticky", TimeUnit.MINUTES);
 
 
+    private final MeterMetric tokensIssued =
+            Metrics.newMeter(BackplaneController.class, "token_issued", "tokens", TimeUnit.MINUTES);
+
     private final MeterMetric busGets =
             Metrics.newMeter(BackplaneController.class, "bus_get", "bus_gets", TimeUnit.MINUTES);
     private final MeterMetric busGetsSticky = Metrics.newMeter(BackplaneController.class, "bus_gets_sticky", "bus_gets_sticky", TimeUnit.MINUTES);
 
+    private final MeterMetric coalescedReads =
+            Metrics.newMeter(BackplaneController.class, "coalesced_reads", "reads", TimeUnit.MINUTES);
+
+    /**
+     * Message reads in flight, and recent bus reads, by their parameters.
+     */
+    private final SingleFlight<List<Object>, List<HashMap<String,Object>>> messageReads =
+            new SingleFlight<List<Object>, List<HashMap<String, Object>>>(coalescedReads);
+
+    /**
+     * Batch channel reads in flight, by bus, channels and floor.
+     */
+    private final SingleFlight<List<Object>, Map<String, List<HashMap<String,Object>>>> channelsReads =
+            new SingleFlight<List<Object>, Map<String, List<HashMap<String, Object>>>>(coalescedReads);
+
     private final TimerMetric getMessagesTime =
             Metrics.newTimer(BackplaneController.class, "get_messages_time", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
 
@@ -262,64 +616,36 @@ public class BackplaneController {
     @Inject
     private MetricsAccumulator metricAccumulator;
 
-    private static final Random random = new SecureRandom();
-
-    private void checkAuth(String basicAuth, String bus, BackplaneConfig.BUS_PERMISSION permission) throws AuthException {
-        // authN
-        String userPass = null;
-        if ( basicAuth == null || ! basicAuth.startsWith("Basic ") || basicAuth.length() < 7) {
-            authError("Invalid Authorization header: " + basicAuth);
-        } else {
-            try {
-                userPass = new String(Base64.decodeBase64(basicAuth.substring(6).getBytes("utf-8")));
-            } catch (UnsupportedEncodingException e) {
-                authError("Cannot check authentication, unsupported encoding: utf-8"); // shouldn't happen
-            }
-        }
+    @Inject
+    private BlobStore blobStore;
 
-        @SuppressWarnings({"ConstantConditions"})
-        int delim = userPass.indexOf(":");
-        if (delim == -1) {
-            authError("Invalid Basic auth token: " + userPass);
-        }
-        String user = userPass.substring(0, delim);
-        String pass = userPass.substring(delim + 1);
+    @Inject
+    private LongPollRegistry longPolls;
 
-        User userEntry = null;
-        try {
-            userEntry = bpConfig.getConfig(user, User.class);
-        } catch (SimpleDBException e) {
-            authError("Error looking up user: " + user);
-        }
+    @Inject
+    private MessageCache messageCache;
 
-        if (userEntry == null) {
-            authError("User not found: " + user);
-        } else if ( ! HmacHashUtils.checkHmacHash(pass, userEntry.get(User.Field.PWDHASH)) ) {
-            authError("Incorrect password for user " + user);
-        }
+    @Inject
+    private ClusterBus clusterBus;
 
-        // authZ
-        BusConfig busConfig = null;
-        try {
-            busConfig = bpConfig.getConfig(bus, BusConfig.class);
-        } catch (SimpleDBException e) {
-            authError("Error looking up bus configuration for " + bus);
-        }
-        if (busConfig == null) {
-            authError("Bus configuration not found for " + bus);
-        } else if (!busConfig.getPermissions(user).contains(permission)) {
-            logger.error("User " + user + " denied " + permission + " to " + bus);
-            throw new AuthException("Access denied.");
-        }
-    }
+    @Inject
+    private ChannelHeads channelHeads;
 
-    private void authError(String errMsg) throws AuthException {
-        logger.error(errMsg);
-        try {
-            throw new AuthException("Access denied. " + (bpConfig.isDebugMode() ? errMsg : ""));
-        } catch (Exception e) {
-            throw new AuthException("Access denied.");
-        }
+    @Inject
+    private BusAuthorizer busAuthorizer;
+
+    @Inject
+    private BusTokens busTokens;
+
+    @Inject
+    private ClientFailureFilter clientFailures;
+
+    /**
+     * @return true if the request failed because it is invalid, rather than because of the server
+     */
+    private static boolean isClientError(Exception e) {
+        return e instanceof InvalidRequestException || e instanceof HttpMessageNotReadableException ||
+               e instanceof ServletRequestBindingException || e instanceof TypeMismatchException;
     }
 
     private String paddedResponse(String callback, String s) {
@@ -331,44 +657,214 @@ public class BackplaneController {
         return result.toString();
     }
 
+    /**
+     * @return how long the request may be parked, 0 if it should be answered right away
+     */
+    private long blockMillis(Integer block) throws SimpleDBException {
+        if (block == null || block <= 0) return 0;
+        return Math.min(block, bpConfig.getLongPollMaxSeconds()) * 1000L;
+    }
+
+    /**
+     * @return a registered long poll for the request, or null if the request is not to be parked
+     */
+    private LongPoll longPoll(HttpServletRequest request, long blockMillis, String since,
+                              String bus, String channel, LongPoll.Poll poll) {
+        // the initial poll (without since) returns the channel's current messages, not new ones
+        if (blockMillis <= 0 || StringUtils.isEmpty(since) || ! request.isAsyncSupported()) return null;
+        LongPoll longPoll = new LongPoll(longPolls, bus, channel, poll);
+        return longPoll.register() ? longPoll : null;
+    }
+
+    private ResponseEntity<String> channelResponse(String callback, String messages) {
+        final String contentType = FrameWriter.contentType(callback);
+        return new ResponseEntity<String>(
+                channelBody(callback, messages),
+                new HttpHeaders() {{
+                    add("Content-Type", contentType);
+                }},
+                HttpStatus.OK);
+    }
+
+    private String channelBody(String callback, String messages) {
+        return StringUtils.isBlank(callback) ? messages : paddedResponse(callback, messages);
+    }
+
+    /**
+     * Sets the 304 status, and the ETag for the channel or bus head, if the client's copy is current;
+     * long-polls are parked instead.
+     *
+     * @return true if the response is complete (not modified)
+     */
+    private boolean notModified(String head, String ifNoneMatch, long blockMillis, HttpServletResponse response) {
+        if (StringUtils.isEmpty(head) || ifNoneMatch == null || blockMillis > 0) return false;
+        String etag = "\"" + head + "\"";
+        for (String match : ifNoneMatch.split(",")) {
+            if (etag.equals(match.trim())) {
+                notModified.mark();
+                setETag(head, response);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the ETag set, or null if the head is not known
+     */
+    private String setETag(String head, HttpServletResponse response) {
+        if (StringUtils.isEmpty(head)) return null;
+        String etag = "\"" + head + "\"";
+        response.setHeader("ETag", etag);
+        return etag;
+    }
+
+    private String headJson(String head) {
+        return StringUtils.isEmpty(head) ? "null" : "\"" + head + "\"";
+    }
+
+    /**
+     * @return the bus configuration, or null if not found
+     */
+    private BusConfig getBusConfig(String bus) {
+        try {
+            return busAuthorizer.getBusConfig(bus);
+        } catch (Exception e) {
+            logger.warn("Error looking up bus configuration for " + bus + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     private String newChannel() {
         return "\"" + randomString(CHANNEL_NAME_LENGTH) +"\"";
     }
 
-    private String getChannelMessages(final String bus, final String channel, final String since, final String sticky) throws SimpleDBException, BackplaneServerException {
+    /**
+     * Reads the messages from SimpleDB, and fills the message cache and channel head with them if possible.
+     */
+    private List<HashMap<String,Object>> queryFrames(String bus, String channel, String since, String sticky, int limit, Set<String> fields) throws SimpleDBException, BackplaneServerException {
+        long queryStarted = System.currentTimeMillis();
+        StringBuilder whereClause = new StringBuilder()
+            .append(BackplaneMessage.Field.BUS.getFieldName()).append("='").append(bus).append("'");
+        if (channel != null) {
+            whereClause.append(" and ").append(BackplaneMessage.Field.CHANNEL_NAME.getFieldName()).append("='").append(channel).append("'");
+        }
+        if (! StringUtils.isEmpty(since)) {
+            whereClause.append(" and ").append(BackplaneMessage.Field.ID.getFieldName()).append(" > '").append(since).append("'");
+        }
+        if (! StringUtils.isEmpty(sticky)) {
+            whereClause.append(" and ").append(BackplaneMessage.Field.STICKY.getFieldName()).append("='").append(sticky).append("'");
+        }
+        if (limit > 0) {
+            if (StringUtils.isEmpty(since)) {
+                // SimpleDB sorts only on attributes with a predicate
+                whereClause.append(" and ").append(BackplaneMessage.Field.ID.getFieldName()).append(" > ''");
+            }
+            whereClause.append(" order by ").append(BackplaneMessage.Field.ID.getFieldName()).append(" limit ").append(limit);
+        }
+
+        List<BackplaneMessage> messages = superSimpleDb.retrieveWhere(bpConfig.getMessagesTableName(), BackplaneMessage.class, whereClause.toString(), limit == 0);
+        // only complete results tell the channel head, and can be cached
+        boolean complete = limit == 0 || messages.size() < limit;
+
+        boolean caching = complete && fields == null && messageCache.isEnabled() && StringUtils.isEmpty(sticky);
+        List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
+        for (BackplaneMessage message : messages) {
+            HashMap<String,Object> frame = message.asFrame(blobStore, fields);
+            if (frame == null) continue;
+            // encoded once, for both the cache and this response
+            frames.add(caching ? encoded(frame) : frame);
+        }
+        if (complete && StringUtils.isEmpty(since) && StringUtils.isEmpty(sticky)) {
+            channelHeads.read(bus, channel, frames);
+        }
+        if (caching) {
+            BusConfig busConfig = getBusConfig(bus);
+            if (busConfig != null) {
+                messageCache.fill(bus, channel, since, frames, queryStarted, busConfig);
+            }
+        }
+        return frames;
+    }
 
+    /**
+     * Reads the messages of several channels after the floor with one query, shared by identical concurrent reads,
+     * and fills the message cache and channel heads with them if possible.
+     *
+     * @param channels sorted channel names
+     * @return all of each channel's frames after the floor; the lists are shared with the other callers of the same read
+     */
+    private Map<String, List<HashMap<String,Object>>> getChannelsFrames(final String bus, final List<String> channels, final String floor)
+            throws SimpleDBException, BackplaneServerException {
         try {
-            return getMessagesTime.time(new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    StringBuilder whereClause = new StringBuilder()
-                        .append(BackplaneMessage.Field.BUS.getFieldName()).append("='").append(bus).append("'")
-                        .append(" and ").append(BackplaneMessage.Field.CHANNEL_NAME.getFieldName()).append("='").append(channel).append("'");
-                    if (! StringUtils.isEmpty(since)) {
-                        whereClause.append(" and ").append(BackplaneMessage.Field.ID.getFieldName()).append(" > '").append(since).append("'");
-                    }
-                    if (! StringUtils.isEmpty(sticky)) {
-                        whereClause.append(" and ").append(BackplaneMessage.Field.STICKY.getFieldName()).append("='").append(sticky).append("'");
+            return channelsReads.load(
+                Arrays.<Object>asList(bus, new ArrayList<String>(channels), floor),
+                0, null,
+                new Callable<Map<String, List<HashMap<String, Object>>>>() {
+                    @Override
+                    public Map<String, List<HashMap<String, Object>>> call() throws Exception {
+                        return queryChannelsFrames(bus, channels, floor);
                     }
+                });
+        } catch (SimpleDBException sdbe) {
+            throw sdbe;
+        } catch (BackplaneServerException bse) {
+            throw bse;
+        } catch (Exception e) {
+            throw new BackplaneServerException(e.getMessage(), e);
+        }
+    }
 
-                    List<BackplaneMessage> messages = superSimpleDb.retrieveWhere(bpConfig.getMessagesTableName(), BackplaneMessage.class, whereClause.toString(), true);
+    private Map<String, List<HashMap<String,Object>>> queryChannelsFrames(String bus, List<String> channels, String floor)
+            throws SimpleDBException, BackplaneServerException {
+        StringBuilder channelList = new StringBuilder();
+        for (String channel : channels) {
+            channelList.append(channelList.length() == 0 ? "" : ",").append(quote(channel));
+        }
 
-                    List<Map<String,Object>> frames = new ArrayList<Map<String, Object>>();
+        long queryStarted = System.currentTimeMillis();
+        StringBuilder whereClause = new StringBuilder()
+            .append(BackplaneMessage.Field.BUS.getFieldName()).append("=").append(quote(bus))
+            .append(" and ").append(BackplaneMessage.Field.CHANNEL_NAME.getFieldName()).append(" in (").append(channelList).append(")");
+        if (! StringUtils.isEmpty(floor)) {
+            whereClause.append(" and ").append(BackplaneMessage.Field.ID.getFieldName()).append(" > ").append(quote(floor));
+        }
+        List<BackplaneMessage> messages = superSimpleDb.retrieveWhere(bpConfig.getMessagesTableName(), BackplaneMessage.class, whereClause.toString(), true);
 
-                    for (BackplaneMessage message : messages) {
-                        frames.add(message.asFrame());
-                    }
+        boolean caching = messageCache.isEnabled();
+        Map<String, List<HashMap<String,Object>>> byChannel = new HashMap<String, List<HashMap<String, Object>>>();
+        for (String channel : channels) {
+            byChannel.put(channel, new ArrayList<HashMap<String, Object>>());
+        }
+        for (BackplaneMessage message : messages) {
+            HashMap<String,Object> frame = message.asFrame(blobStore);
+            if (frame == null) continue;
+            byChannel.get(message.get(BackplaneMessage.Field.CHANNEL_NAME)).add(caching ? encoded(frame) : frame);
+        }
 
-                    ObjectMapper mapper = new ObjectMapper();
-                    try {
-                        String payload = mapper.writeValueAsString(frames);
-                        payLoadSizesOnGets.update(payload.length());
-                        return mapper.writeValueAsString(frames);
-                    } catch (IOException e) {
-                        String errMsg = "Error converting frames to JSON: " + e.getMessage();
-                        logger.error(errMsg, bpConfig.getDebugException(e));
-                        throw new BackplaneServerException(errMsg, e);
-                    }
+        BusConfig busConfig = caching ? getBusConfig(bus) : null;
+        for (String channel : channels) {
+            // all the channel's messages after the floor
+            List<HashMap<String,Object>> frames = byChannel.get(channel);
+            if (StringUtils.isEmpty(floor)) {
+                channelHeads.read(bus, channel, frames);
+            }
+            if (busConfig != null) {
+                messageCache.fill(bus, channel, floor, frames, queryStarted, busConfig);
+            }
+        }
+        return byChannel;
+    }
+
+    private List<HashMap<String,Object>> getChannelFrames(final String bus, final String channel, final String since, final String sticky,
+                                                          final MessageFilter filter) throws SimpleDBException, BackplaneServerException {
+
+        try {
+            return getMessagesTime.time(new Callable<List<HashMap<String,Object>>>() {
+                @Override
+                public List<HashMap<String,Object>> call() throws Exception {
+                    return filter.apply(getFrames(bus, channel, since, sticky, 0, filter.getFrameFields()));
                 }
             });
         } catch (SimpleDBException sdbe) {
@@ -379,4 +875,67 @@ public class BackplaneController {
             throw new BackplaneServerException(e.getMessage());
         }
     }
+
+    private void writeFrames(List<HashMap<String,Object>> frames, String callback, HttpServletResponse response) throws IOException {
+        payLoadSizesOnGets.update(FrameWriter.write(frames, callback, response));
+    }
+
+    /**
+     * Writes the first pageSize frames that pass the filter, with headers telling if there are more
+     * and where the next page starts. The cursor is the last message of the unfiltered page,
+     * so that filtered out messages are not read again.
+     *
+     * @param head the bus head read before the query, sent as the ETag of the last page only
+     */
+    private void writePage(List<HashMap<String,Object>> frames, int pageSize, MessageFilter filter, String head, HttpServletResponse response) throws IOException {
+        boolean more = frames.size() > pageSize;
+        List<HashMap<String,Object>> page = more ? frames.subList(0, pageSize) : frames;
+        response.setHeader(MORE_HEADER, Boolean.toString(more));
+        if (! more) {
+            // only the last page holds the messages up to the head read before the query
+            setETag(head, response);
+        }
+        if (! page.isEmpty()) {
+            response.setHeader(CURSOR_HEADER, (String) page.get(page.size() - 1).get(BackplaneMessage.Field.ID.getFieldName()));
+        }
+        writeFrames(filter.apply(page), null, response);
+    }
+
+    private static void checkBatchSize(int channels) throws BackplaneServerException {
+        if (channels > MAX_BATCH_CHANNELS) {
+            throw new BackplaneServerException("Too many channels requested, the limit is " + MAX_BATCH_CHANNELS);
+        }
+    }
+
+    /**
+     * @return the since message ID of each channel, empty for all messages
+     */
+    private static Map<String,String> sinceByChannel(String bus, Map<String,Object> cursors) throws BackplaneServerException {
+        Map<String,String> sinceByChannel = new LinkedHashMap<String, String>();
+        for (Map.Entry<String,Object> cursor : cursors.entrySet()) {
+            Object since = cursor.getValue();
+            if (since != null && ! (since instanceof String)) {
+                throw new BackplaneServerException("Invalid since value for channel " + cursor.getKey() + " on bus " + bus);
+            }
+            sinceByChannel.put(cursor.getKey(), since == null ? "" : (String) since);
+        }
+        return sinceByChannel;
+    }
+
+    /**
+     * @return the value as a SimpleDB select literal
+     */
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static EncodedFrame encoded(HashMap<String,Object> frame) throws BackplaneServerException {
+        try {
+            return EncodedFrame.of(frame);
+        } catch (IOException e) {
+            String errMsg = "Error serializing message frame: " + e.getMessage();
+            logger.error(errMsg);
+            throw new BackplaneServerException(errMsg, e);
+        }
+    }
 }
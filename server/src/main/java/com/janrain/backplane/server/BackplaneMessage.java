@@ -16,28 +16,58 @@
 
 package com.janrain.backplane.server;
 
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.blob.BlobStore;
 import com.janrain.message.AbstractMessage;
+import com.janrain.message.Json;
 import com.janrain.message.MessageField;
+import com.janrain.message.PackableNamedMap;
+import com.janrain.message.PackedRecord;
+import com.janrain.message.RawJson;
+import com.janrain.util.Iso8601;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
+ * Backplane message, stored in one of two formats:
+ * <ul>
+ *   <li>V1: one (indexed) attribute per field</li>
+ *   <li>V2: only the query keys (id, bus, channel, sticky) and an expiry bucket are stored as attributes,
+ *       all other fields are packed in one record, decoded on first access</li>
+ * </ul>
+ * Messages in either format are read back the same.
+ *
+ * Large payloads may be offloaded to a BlobStore, the message keeping only the payload's reference and hash;
+ * the reference is always stored unpacked, so that the cleanup task can find the blobs of the messages it deletes.
+ *
+ * Not thread-safe, like the other messages: the packed record is unpacked into the message on first access,
+ * without locking, so a message must be used by one thread at a time, e.g. the request that posted it
+ * or the query that read it. Frames, not messages, are shared between threads.
+ *
  * @author Johnny Bufu
  */
-public class BackplaneMessage extends AbstractMessage {
+public class BackplaneMessage extends AbstractMessage implements PackableNamedMap {
 
     // - PUBLIC
 
     public BackplaneMessage(String id, String bus, String channel, Map<String, Object> data) throws BackplaneServerException {
         Map<String,String> d = new LinkedHashMap<String, String>(toStringMap(data));
+        d.keySet().removeAll(STORAGE_ATTRIBUTES);
         d.put(Field.ID.getFieldName(), id);
         d.put(Field.BUS.getFieldName(), bus);
         d.put(Field.CHANNEL_NAME.getFieldName(), channel);
+        // serialized from the parsed request body, so well-formed without parsing it again
         d.put(Field.PAYLOAD.getFieldName(), extractFieldValueAsJsonString(Field.PAYLOAD, data));
         if (! d.containsKey(Field.STICKY.getFieldName())) {
             d.put(Field.STICKY.getFieldName(), Boolean.FALSE.toString());
@@ -45,41 +75,173 @@ public class BackplaneMessage extends AbstractMessage {
         super.init(id, d);
     }
 
+    public static enum StorageFormat { V1, V2 }
+
+    /**
+     * @return the expiry bucket a message expiring at the given time falls in;
+     * buckets compare lexicographically in chronological order
+     */
+    public static String expiryBucket(long timeMillis) {
+        return Iso8601.format(timeMillis).substring(0, EXPIRY_BUCKET_LENGTH);
+    }
+
     @Override
-    public String getIdValue() {
-        return get(Field.ID);
+    public void init(String name, Map<String, String> data) {
+        if (FORMAT_V2.equals(data.get(FORMAT_ATTR))) {
+            Map<String,String> indexed = new LinkedHashMap<String, String>();
+            for (Field field : INDEXED_FIELDS) {
+                indexed.put(field.getFieldName(), data.get(field.getFieldName()));
+            }
+            if (data.containsKey(PAYLOAD_REF_ATTR)) {
+                indexed.put(PAYLOAD_REF_ATTR, data.get(PAYLOAD_REF_ATTR));
+            }
+            storageFormat = StorageFormat.V2;
+            expires = data.get(EXPIRES_ATTR);
+            packedRecord = data.get(RECORD_ATTR);
+            super.init(name, indexed);
+        } else {
+            storageFormat = StorageFormat.V1;
+            packedRecord = null;
+            super.init(name, data);
+        }
     }
 
     @Override
-    public Set<? extends MessageField> getFields() {
-        return EnumSet.allOf(Field.class);
+    public void validate() {
+        // packed fields were validated when the message was posted
+        for (Field field : packedRecord == null ? EnumSet.allOf(Field.class) : INDEXED_FIELDS) {
+            if (field == Field.PAYLOAD && super.map().containsKey(PAYLOAD_REF_ATTR)) continue; // offloaded
+            field.validate(super.map().get(field.getFieldName()));
+        }
+    }
+
+    @Override
+    public String getIdValue() {
+        // always stored unpacked
+        return super.map().get(Field.ID.getFieldName());
     }
 
-    public HashMap<String, Object> asFrame() throws BackplaneServerException {
+    public StorageFormat getStorageFormat() {
+        return storageFormat;
+    }
 
-        HashMap<String, Object> frame = new LinkedHashMap<String, Object>();
+    /**
+     * Sets the format in which the message is stored.
+     *
+     * @param retentionSeconds the message's retention time, determines its expiry bucket in the V2 format
+     */
+    public void setStorageFormat(StorageFormat storageFormat, long retentionSeconds) {
+        this.storageFormat = storageFormat;
+        this.expires = expiryBucket(System.currentTimeMillis() + retentionSeconds * 1000);
+    }
 
-        frame.put(Field.ID.getFieldName(), get(BackplaneMessage.Field.ID.getFieldName()));
-        frame.put(Field.CHANNEL_NAME.getFieldName(), get(BackplaneMessage.Field.CHANNEL_NAME.getFieldName()));
+    @Override
+    public Map<String, String> getStorageAttributes() {
+        if (storageFormat != StorageFormat.V2) return this;
 
-        Map <String,Object> msg = new LinkedHashMap<String, Object>(this);
-        msg.remove(Field.ID.getFieldName());
-        msg.remove(Field.BUS.getFieldName());
-        msg.remove(Field.CHANNEL_NAME.getFieldName());
-        String sticky = get(Field.STICKY.getFieldName());
-        if (sticky != null) {
-            // print sticky as a (json) boolean
-            msg.put(Field.STICKY.getFieldName(), Boolean.valueOf(sticky));
+        Map<String,String> attributes = new LinkedHashMap<String, String>();
+        Map<String,String> packed = new LinkedHashMap<String, String>(map());
+        for (Field field : INDEXED_FIELDS) {
+            attributes.put(field.getFieldName(), packed.remove(field.getFieldName()));
+        }
+        if (packed.containsKey(PAYLOAD_REF_ATTR)) {
+            attributes.put(PAYLOAD_REF_ATTR, packed.remove(PAYLOAD_REF_ATTR));
         }
+        attributes.put(EXPIRES_ATTR, expires);
+        attributes.put(FORMAT_ATTR, FORMAT_V2);
+        attributes.put(RECORD_ATTR, PackedRecord.pack(packed));
+        return attributes;
+    }
+
+    @Override
+    public Set<? extends MessageField> getFields() {
+        return EnumSet.allOf(Field.class);
+    }
+
+    /**
+     * Moves the payload to the blob store if it is larger than thresholdBytes, keeping only its reference and hash.
+     *
+     * @return true if the payload was offloaded
+     */
+    public boolean offloadPayload(BlobStore blobStore, int thresholdBytes) throws BackplaneServerException {
+        String payload = get(Field.PAYLOAD);
+        if (payload == null || payload.length() * 3 <= thresholdBytes) return false; // at most 3 UTF-8 bytes per char
+        byte[] content = payload.getBytes(UTF8);
+        if (content.length <= thresholdBytes) return false;
         try {
-            msg.put(
-                BackplaneMessage.Field.PAYLOAD.getFieldName(),
-                (new ObjectMapper()).readValue(get(BackplaneMessage.Field.PAYLOAD), Object.class) ); // un-quote the value
+            String reference = blobStore.store(content);
+            remove(Field.PAYLOAD.getFieldName());
+            put(PAYLOAD_REF_ATTR, reference);
+            put(PAYLOAD_HASH_ATTR, sha256(content));
+            return true;
         } catch (IOException e) {
-            String errMsg = "Error deserializing message payload: " + e.getMessage();
+            String errMsg = "Error storing message payload: " + e.getMessage();
             logger.error(errMsg);
             throw new BackplaneServerException(errMsg, e);
         }
+    }
+
+    /**
+     * @return the reference of the offloaded payload, or null if the payload is stored in the message
+     */
+    public String getPayloadReference() {
+        // always stored unpacked
+        return super.map().get(PAYLOAD_REF_ATTR);
+    }
+
+    /**
+     * @param blobStore the store to read offloaded payloads from
+     * @return the message's frame, or null if its offloaded payload cannot be read
+     */
+    public HashMap<String, Object> asFrame(BlobStore blobStore) {
+        return asFrame(blobStore, null);
+    }
+
+    /**
+     * Builds a frame with only the requested fields; a packed record is not unpacked into the message for it,
+     * and the payload is neither decoded nor read from the blob store unless it is requested.
+     *
+     * @param blobStore the store to read offloaded payloads from
+     * @param fields the frame and message fields to include, or null for all; the message ID is always included
+     * @return the message's frame, or null if its offloaded payload cannot be read
+     */
+    public HashMap<String, Object> asFrame(BlobStore blobStore, Set<String> fields) {
+
+        HashMap<String, Object> frame = new LinkedHashMap<String, Object>();
+
+        // always stored unpacked
+        frame.put(Field.ID.getFieldName(), getIdValue());
+        if (includes(fields, Field.CHANNEL_NAME.getFieldName())) {
+            frame.put(Field.CHANNEL_NAME.getFieldName(), super.map().get(Field.CHANNEL_NAME.getFieldName()));
+        }
+
+        boolean includePayload = includes(fields, Field.PAYLOAD.getFieldName());
+        Map<String,String> values = fieldValues(fields, includePayload);
+        Map<String,Object> msg = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String,String> entry : values.entrySet()) {
+            String name = entry.getKey();
+            if (FRAME_FIELDS.contains(name) || STORAGE_ATTRIBUTES.contains(name) || ! includes(fields, name)) continue;
+            String value = entry.getValue();
+            if (Field.STICKY.getFieldName().equals(name) && value != null) {
+                // print sticky as a (json) boolean
+                msg.put(name, Boolean.valueOf(value));
+            } else if (Field.PAYLOAD.getFieldName().equals(name)) {
+                // stored payloads were validated when posted, and are written out as they are
+                msg.put(name, value == null ? null : new RawJson(value));
+            } else {
+                msg.put(name, value);
+            }
+        }
+        if (includePayload && ! msg.containsKey(Field.PAYLOAD.getFieldName())) {
+            String payloadRef = values.get(PAYLOAD_REF_ATTR);
+            try {
+                msg.put(Field.PAYLOAD.getFieldName(), payloadRef == null ? null : readPayload(blobStore, payloadRef, values.get(PAYLOAD_HASH_ATTR)));
+            } catch (IOException e) {
+                // left out of the response, rather than failing the other messages with it
+                logger.error("Skipping message " + getIdValue() + ", error reading its payload: " + e.getMessage());
+                return null;
+            }
+        }
         frame.put("message", msg);
 
         return frame;
@@ -141,19 +303,120 @@ public class BackplaneMessage extends AbstractMessage {
         }
     }
 
+    /**
+     * Expiry bucket attribute name, V2 format only.
+     */
+    public static final String EXPIRES_ATTR = "bp_expires";
+
+    /**
+     * Offloaded payload reference attribute name.
+     */
+    public static final String PAYLOAD_REF_ATTR = "bp_payload_ref";
+
     // - PACKAGE
 
     public BackplaneMessage() {
     }
 
+    // - PROTECTED
+
+    @Override
+    protected Map<String, String> map() {
+        Map<String, String> map = super.map();
+        if (packedRecord != null) {
+            unpack(map);
+        }
+        return map;
+    }
+
     // - PRIVATE
 
     private static final Logger logger = Logger.getLogger(BackplaneMessage.class);
 
+    private static final String FORMAT_ATTR = "bp_format";
+    private static final String FORMAT_V2 = "2";
+    private static final String RECORD_ATTR = "bp_record";
+    private static final String PAYLOAD_HASH_ATTR = "bp_payload_sha256";
+    private static final Set<String> STORAGE_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+        FORMAT_ATTR, RECORD_ATTR, EXPIRES_ATTR, PAYLOAD_REF_ATTR, PAYLOAD_HASH_ATTR));
+    private static final Set<String> FRAME_FIELDS = new HashSet<String>(Arrays.asList(
+        Field.ID.getFieldName(), Field.BUS.getFieldName(), Field.CHANNEL_NAME.getFieldName()));
+    private static final Set<Field> INDEXED_FIELDS = EnumSet.of(Field.ID, Field.CHANNEL_NAME, Field.BUS, Field.STICKY);
+    private static final int EXPIRY_BUCKET_LENGTH = "yyyy-MM-ddTHH:mm".length();
+
+    private StorageFormat storageFormat = StorageFormat.V1;
+    private String expires;
+    private String packedRecord;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        return new String(Hex.encodeHex(newSha256().digest(content)));
+    }
+
+    /**
+     * Reads the payload from the blob store, checking its hash.
+     */
+    private static RawJson readPayload(BlobStore blobStore, String reference, String hash) throws IOException {
+        if (blobStore == null) {
+            throw new IOException("No blob store to read offloaded payload from: " + reference);
+        }
+        MessageDigest digest = newSha256();
+        InputStream in = new DigestInputStream(blobStore.open(reference), digest);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            if (! new String(Hex.encodeHex(digest.digest())).equals(hash)) {
+                throw new IOException("Hash mismatch for offloaded payload " + reference);
+            }
+            return new RawJson(content.toString("UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean includes(Set<String> fields, String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    /**
+     * @return all fields, or, while the record is still packed, only the indexed and the requested ones,
+     * read from the record without unpacking it into the message
+     */
+    private Map<String, String> fieldValues(Set<String> fields, boolean includePayload) {
+        if (packedRecord == null || fields == null) return map();
+        Set<String> packedFields = fields;
+        if (includePayload) {
+            packedFields = new HashSet<String>(fields);
+            packedFields.add(PAYLOAD_HASH_ATTR);
+        }
+        Map<String,String> values = new LinkedHashMap<String, String>(super.map());
+        values.putAll(PackedRecord.unpack(packedRecord, packedFields));
+        return values;
+    }
+
+    private void unpack(Map<String, String> map) {
+        if (packedRecord == null) return;
+        map.putAll(PackedRecord.unpack(packedRecord));
+        packedRecord = null;
+    }
+
     private String extractFieldValueAsJsonString(Field field, Map<String,Object> data) throws BackplaneServerException {
         try {
             Object value = data.get(field.getFieldName());
-            return value == null ? null : (new ObjectMapper()).writeValueAsString(value);
+            return value == null ? null : Json.writeString(value);
         } catch (IOException e) {
             String errMsg = "Error serializing message payload: " + e.getMessage();
             logger.error(errMsg);
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.AuthException;
+import com.janrain.backplane.server.config.BackplaneConfig;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.websocket.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WebSocket connection streaming a bus' message frames to a back-end subscriber.
+ *
+ * The connection is authenticated with the Basic credentials sent with the handshake, which need GETALL permission
+ * on the bus. Frames are sent one per text message, starting after the since request parameter if present.
+ *
+ * Flow control is credit based: the subscriber sends the number of additional frames it is ready to receive,
+ * as a text message (e.g. "100"), and the server sends no more frames than the credit granted.
+ *
+ * Frames are sent asynchronously, one after the other, so that a slow subscriber doesn't hold the push threads
+ * shared by all sockets; subscribers that don't accept a frame within SEND_TIMEOUT_MILLIS are disconnected.
+ *
+ * @see BusSocketServer
+ */
+public class BusSocket extends Endpoint implements LongPollRegistry.Waiter, MessageHandler.Whole<String> {
+
+    // - PUBLIC
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        this.session = session;
+        bus = session.getPathParameters().get("bus");
+        List<String> since = session.getRequestParameterMap().get("since");
+        lastId = since == null || since.isEmpty() ? null : since.get(0);
+
+        try {
+            controller.checkAuth((String) config.getUserProperties().get(AUTHORIZATION), bus, BackplaneConfig.BUS_PERMISSION.GETALL);
+        } catch (AuthException e) {
+            close(CloseReason.CloseCodes.VIOLATED_POLICY, e.getMessage());
+            return;
+        }
+
+        session.getAsyncRemote().setSendTimeout(SEND_TIMEOUT_MILLIS);
+
+        session.addMessageHandler(this);
+        if (! registry.register(bus, null, this)) {
+            close(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many subscribers");
+            return;
+        }
+        open.add(this);
+    }
+
+    /**
+     * Credit from the subscriber.
+     */
+    @Override
+    public void onMessage(String message) {
+        long granted;
+        try {
+            granted = Long.parseLong(message.trim());
+        } catch (NumberFormatException e) {
+            close(CloseReason.CloseCodes.CANNOT_ACCEPT, "Invalid credit: " + message);
+            return;
+        }
+        if (granted <= 0) return;
+        credit.addAndGet(granted);
+        wake();
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        closed.set(true);
+        open.remove(this);
+        registry.unregister(bus, null, this);
+    }
+
+    @Override
+    public void onError(Session session, Throwable thr) {
+        logger.error("Error on bus socket for " + bus + ": " + thr.getMessage());
+        close(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Error processing request.");
+    }
+
+    @Override
+    public void wake() {
+        pending.set(true);
+        schedulePush();
+    }
+
+    // - PACKAGE
+
+    /**
+     * Key of the handshake's Authorization header in the endpoint configuration's user properties.
+     */
+    static final String AUTHORIZATION = "Authorization";
+
+    /**
+     * @param open the open sockets, which this socket joins while it is open
+     */
+    BusSocket(BackplaneController controller, LongPollRegistry registry, Executor executor, Set<BusSocket> open) {
+        this.controller = controller;
+        this.registry = registry;
+        this.executor = executor;
+        this.open = open;
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(BusSocket.class);
+
+    private static final int MAX_FRAMES_PER_PUSH = 1000;
+    private static final long SEND_TIMEOUT_MILLIS = 10000L;
+
+    private final BackplaneController controller;
+    private final LongPollRegistry registry;
+    private final Executor executor;
+    private final Set<BusSocket> open;
+
+    private volatile Session session;
+    private volatile String bus;
+    private volatile String lastId;
+    private final AtomicLong credit = new AtomicLong(0);
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final AtomicBoolean pushing = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private void schedulePush() {
+        if (closed.get()) return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                push();
+            }
+        });
+    }
+
+    /**
+     * Starts sending the frames posted since the last one sent, as far as the credit allows; only one push runs
+     * at a time, wake-ups received meanwhile are handled once it is done.
+     */
+    private void push() {
+        if (closed.get() || ! pending.get() || ! pushing.compareAndSet(false, true)) return;
+        try {
+            pending.set(false);
+            if (credit.get() <= 0) {
+                pushed();
+                return;
+            }
+            // registry wake-ups are one-shot: register again before polling, so that no post is missed while it runs
+            if (! registry.register(bus, null, this)) {
+                close(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many subscribers");
+                return;
+            }
+            int limit = (int) Math.min(credit.get(), MAX_FRAMES_PER_PUSH);
+            List<HashMap<String,Object>> frames = controller.getFrames(bus, null, lastId, null, limit);
+            if (frames.size() >= limit) {
+                // push the next ones too, as far as the credit allows
+                pending.set(true);
+            }
+            send(frames.iterator());
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Sends the next frame, and the following ones once it is sent, from the container's completion callback.
+     */
+    private void send(final Iterator<HashMap<String,Object>> frames) throws IOException {
+        if (closed.get() || ! frames.hasNext() || credit.get() <= 0) {
+            // the rest is sent when more credit is granted
+            pushed();
+            return;
+        }
+        final HashMap<String,Object> frame = frames.next();
+        session.getAsyncRemote().sendText(EncodedFrame.toJson(frame), new SendHandler() {
+            @Override
+            public void onResult(SendResult result) {
+                if (! result.isOK()) {
+                    logger.warn("Error sending to bus socket for " + bus + ", closing it: " + result.getException());
+                    close(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Error sending message.");
+                    pushing.set(false);
+                    return;
+                }
+                lastId = (String) frame.get(BackplaneMessage.Field.ID.getFieldName());
+                credit.decrementAndGet();
+                // on a push thread, rather than recursively on the callback's
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            send(frames);
+                        } catch (Exception e) {
+                            failed(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void pushed() {
+        pushing.set(false);
+        if (pending.get()) {
+            schedulePush();
+        }
+    }
+
+    private void failed(Exception e) {
+        logger.error("Error pushing messages to bus socket for " + bus + ": " + e.getMessage(), e);
+        close(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Error processing request.");
+        pushing.set(false);
+    }
+
+    private void close(CloseReason.CloseCode code, String reason) {
+        if (! closed.compareAndSet(false, true)) return;
+        open.remove(this);
+        registry.unregister(bus, null, this);
+        try {
+            // close reasons are limited to 123 bytes
+            session.close(new CloseReason(code, StringUtils.abbreviate(reason, 120)));
+        } catch (IOException e) {
+            logger.debug("Error closing bus socket for " + bus + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import org.apache.log4j.Logger;
+import org.springframework.web.context.ServletContextAware;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.ServletContext;
+import javax.websocket.DeploymentException;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers the bus WebSocket endpoint, at /ws/bus/{bus}, with the container's (JSR-356) WebSocket server.
+ *
+ * Must be created while the web application starts, i.e. in the root application context.
+ *
+ * @see BusSocket
+ */
+public class BusSocketServer implements ServletContextAware {
+
+    // - PUBLIC
+
+    public static final String PATH = "/ws/bus/{bus}";
+
+    @Override
+    public void setServletContext(ServletContext servletContext) {
+        ServerContainer container = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+        if (container == null) {
+            logger.warn("No WebSocket support in the servlet container, bus sockets are disabled");
+            return;
+        }
+        try {
+            container.addEndpoint(ServerEndpointConfig.Builder.create(BusSocket.class, PATH)
+                .configurator(new Configurator())
+                .build());
+            logger.info("Bus sockets enabled at " + PATH);
+        } catch (DeploymentException e) {
+            logger.error("Error registering bus socket endpoint: " + e.getMessage(), e);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getOpenSockets() {
+        return sockets.size();
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(BusSocketServer.class);
+
+    private static final int PUSH_THREADS = 8;
+    private static final int REFRESH_SECONDS = 10;
+
+    @Inject
+    private BackplaneController controller;
+
+    @Inject
+    private LongPollRegistry longPolls;
+
+    private final Set<BusSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<BusSocket, Boolean>());
+
+    // pushes run here rather than on the posting request's thread
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(PUSH_THREADS);
+
+    @PostConstruct
+    private void init() {
+        // posts received by other server instances wake up the sockets only if forwarded by the cluster bus, best effort
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (BusSocket socket : sockets) {
+                    socket.wake();
+                }
+            }
+        }, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hands each handshake's Authorization header to the endpoint instance opened for it, which checks it
+     * when the connection opens.
+     *
+     * The header is kept in the user properties of the handshake's endpoint configuration, which the container
+     * copies for each session and passes to the endpoint's onOpen; unlike the endpoint instance, these don't depend
+     * on the order or the thread in which the container calls the configurator.
+     */
+    class Configurator extends ServerEndpointConfig.Configurator {
+
+        @Override
+        public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
+            String authorization = null;
+            for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+                if (BusSocket.AUTHORIZATION.equalsIgnoreCase(header.getKey()) && ! header.getValue().isEmpty()) {
+                    authorization = header.getValue().get(0);
+                }
+            }
+            // set or cleared for every handshake, so that no other handshake's header is used
+            if (authorization != null) {
+                sec.getUserProperties().put(BusSocket.AUTHORIZATION, authorization);
+            } else {
+                sec.getUserProperties().remove(BusSocket.AUTHORIZATION);
+            }
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked"})
+        public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+            return (T) new BusSocket(controller, longPolls, executor, sockets);
+        }
+    }
+}
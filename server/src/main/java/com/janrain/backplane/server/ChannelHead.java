@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.message.AbstractNamedMap;
+import com.janrain.util.Iso8601;
+
+/**
+ * The latest message ID on a channel, or on a whole bus, and the number of messages posted since the record
+ * was created.
+ *
+ * The count is also the record's version: records are only replaced if their count didn't change since read.
+ *
+ * @see ChannelHeads
+ */
+public class ChannelHead extends AbstractNamedMap {
+
+    // - PUBLIC
+
+    public static final String BUS = "bus";
+    public static final String ID = "id";
+    public static final String COUNT = "count";
+    public static final String UPDATED = "updated";
+
+    @SuppressWarnings({"UnusedDeclaration"}) // instantiation through reflection
+    public ChannelHead() { }
+
+    public ChannelHead(String key, String bus, String latestId, long count) {
+        this.key = key;
+        put(BUS, bus);
+        if (latestId != null && latestId.length() > 0) {
+            put(ID, latestId);
+        }
+        put(COUNT, Long.toString(count));
+        put(UPDATED, Iso8601.format(System.currentTimeMillis()));
+    }
+
+    /**
+     * @param channel the channel name, or null for the bus head
+     */
+    public static String key(String bus, String channel) {
+        return channel == null ? bus : bus + "/" + channel;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.key = name;
+    }
+
+    @Override
+    public String getName() {
+        return key;
+    }
+
+    /**
+     * @return the latest message ID, or the empty string if no messages were posted
+     */
+    public String getLatestId() {
+        String id = get(ID);
+        return id == null ? "" : id;
+    }
+
+    public long getCount() {
+        try {
+            return Long.parseLong(get(COUNT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return a new head for the posted messages
+     */
+    public ChannelHead advance(String latestId, int posted) {
+        String id = latestId.compareTo(getLatestId()) > 0 ? latestId : getLatestId();
+        return new ChannelHead(key, get(BUS), id, getCount() + posted);
+    }
+
+    // - PRIVATE
+
+    private String key;
+}
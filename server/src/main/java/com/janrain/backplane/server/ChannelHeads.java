@@ -0,0 +1,331 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.simpledb.SimpleDBException;
+import com.janrain.simpledb.SuperSimpleDB;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the latest message ID of each channel and bus (their heads) in SimpleDB, and a short-lived copy in memory,
+ * so that polls for messages newer than the head can be answered without querying the messages.
+ *
+ * Posts advance the heads in memory right away, and in SimpleDB on a background thread every FLUSH_MILLIS:
+ * the posts to a head received meanwhile are written at once, so that a busy bus' head is written once per flush
+ * rather than once per post.
+ *
+ * Heads only ever move forward: they are advanced with conditional writes, against the version last written by
+ * this server instance, and retried from a fresh read if another instance advanced the head meanwhile; writes still
+ * conflicting are retried with the next flush. A head that could not be written is removed, and polls on its
+ * channel query the messages until the head is created again by a full read of the channel.
+ *
+ * @see ChannelHead
+ */
+public class ChannelHeads {
+
+    // - PUBLIC
+
+    /**
+     * @param channel the channel name, or null for the bus
+     * @return the latest message ID, the empty string if there are no messages, or null if not known
+     */
+    public String getHead(String bus, String channel) {
+        String key = ChannelHead.key(bus, channel);
+        // the stored head may be behind the messages
+        if (pending.get(key) == Write.REMOVE) return null;
+        long now = System.currentTimeMillis();
+        CachedHead cached = heads.get(key);
+        if (cached != null && now - cached.readAt < cacheMillis()) {
+            hits.mark();
+            return cached.id;
+        }
+        try {
+            ChannelHead head = superSimpleDb.retrieve(table(), ChannelHead.class, key);
+            String id = head == null ? null : head.getLatestId();
+            // posts through this instance may not be written yet
+            if (id != null && cached != null && cached.id != null && cached.id.compareTo(id) > 0) {
+                id = cached.id;
+            }
+            cache(key, id, now);
+            return id;
+        } catch (Exception e) {
+            logger.warn("Error reading channel head " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the channel (or bus, if channel is null) is known to have no messages newer than since
+     */
+    public boolean isCurrent(String bus, String channel, String since) {
+        String head = getHead(bus, channel);
+        return head != null && since.compareTo(head) >= 0;
+    }
+
+    /**
+     * Advances the channel's and the bus' heads for messages stored through this server instance:
+     * right away in memory, and in SimpleDB with the next flush.
+     */
+    public void posted(String bus, String channel, String latestId, int count) {
+        long now = System.currentTimeMillis();
+        for (String key : new String[] { ChannelHead.key(bus, channel), ChannelHead.key(bus, null) }) {
+            observe(key, latestId, now);
+            queue(key, new Write(bus, latestId, count, 0));
+        }
+    }
+
+    /**
+     * Removes the channel's and the bus' heads, after a post failed to store a message that may have been stored
+     * nonetheless: a head behind it would hide it from polls.
+     */
+    public void discard(String bus, String channel) {
+        for (String key : new String[] { ChannelHead.key(bus, channel), ChannelHead.key(bus, null) }) {
+            heads.remove(key);
+            queue(key, Write.REMOVE);
+        }
+    }
+
+    /**
+     * Updates the in-memory heads for messages posted through other server instances.
+     */
+    public void observed(String bus, String channel, String latestId) {
+        long now = System.currentTimeMillis();
+        observe(ChannelHead.key(bus, channel), latestId, now);
+        observe(ChannelHead.key(bus, null), latestId, now);
+    }
+
+    /**
+     * Creates the head of a channel (or bus, if channel is null) that has none, from all its current messages.
+     */
+    public void read(String bus, String channel, List<HashMap<String,Object>> frames) {
+        String key = ChannelHead.key(bus, channel);
+        CachedHead cached = heads.get(key);
+        if (cached != null && cached.id != null) return;
+        String latestId = "";
+        for (HashMap<String,Object> frame : frames) {
+            String id = (String) frame.get(BackplaneMessage.Field.ID.getFieldName());
+            if (id != null && id.compareTo(latestId) > 0) latestId = id;
+        }
+        try {
+            // fails if the head was created meanwhile
+            if (superSimpleDb.storeIf(table(), ChannelHead.class, new ChannelHead(key, bus, latestId, 0), ChannelHead.COUNT, null)) {
+                cache(key, latestId, System.currentTimeMillis());
+            }
+        } catch (Exception e) {
+            logger.warn("Error creating channel head " + key + ": " + e.getMessage());
+        }
+    }
+
+    // - PACKAGE
+
+    /**
+     * Writes the heads advanced or discarded since the last flush.
+     */
+    void flush() {
+        for (String key : new ArrayList<String>(pending.keySet())) {
+            Write write = pending.remove(key);
+            if (write == null) continue;
+            if (write == Write.REMOVE) {
+                remove(key);
+            } else {
+                advance(key, write);
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(ChannelHeads.class);
+
+    private static final int MAX_ADVANCE_ATTEMPTS = 5;
+    private static final int MAX_FLUSHES = 10;
+    private static final int MAX_CACHED_HEADS = 100000;
+    private static final long FLUSH_MILLIS = 250L;
+
+    @Inject
+    private SuperSimpleDB superSimpleDb;
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    private final Map<String, CachedHead> heads = new ConcurrentHashMap<String, CachedHead>();
+
+    /**
+     * The heads to write with the next flush.
+     */
+    private final ConcurrentMap<String, Write> pending = new ConcurrentHashMap<String, Write>();
+
+    /**
+     * The heads as last written by this instance, whose versions the next writes are conditioned on.
+     */
+    private final Map<String, ChannelHead> written = new ConcurrentHashMap<String, ChannelHead>();
+
+    private ScheduledExecutorService flusher;
+
+    private final MeterMetric hits =
+            Metrics.newMeter(ChannelHeads.class, "channel_head_cache_hits", "reads", TimeUnit.MINUTES);
+    private final MeterMetric conflicts =
+            Metrics.newMeter(ChannelHeads.class, "channel_head_conflicts", "writes", TimeUnit.MINUTES);
+
+    private static class CachedHead {
+
+        private CachedHead(String id, long readAt) {
+            this.id = id;
+            this.readAt = readAt;
+        }
+
+        private final String id;
+        private final long readAt;
+    }
+
+    /**
+     * The messages posted to a head since the last flush, or the head's removal.
+     */
+    private static final class Write {
+
+        private static final Write REMOVE = new Write(null, null, 0, 0);
+
+        private Write(String bus, String latestId, int count, int flushes) {
+            this.bus = bus;
+            this.latestId = latestId;
+            this.count = count;
+            this.flushes = flushes;
+        }
+
+        /**
+         * @return this write, followed by the later one
+         */
+        private Write merge(Write later) {
+            // posts after a removal are newer than the messages it was for, and advance the head past them
+            if (this == REMOVE || later == REMOVE) return later;
+            String id = later.latestId.compareTo(latestId) > 0 ? later.latestId : latestId;
+            return new Write(bus, id, count + later.count, Math.max(flushes, later.flushes));
+        }
+
+        private final String bus;
+        private final String latestId;
+        private final int count;
+        private final int flushes;
+    }
+
+    @PostConstruct
+    private void init() {
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    logger.error("Error writing channel heads: " + e.getMessage(), e);
+                }
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    private void queue(String key, Write write) {
+        while (true) {
+            Write current = pending.get(key);
+            if (current == null ? pending.putIfAbsent(key, write) == null : pending.replace(key, current, current.merge(write))) return;
+        }
+    }
+
+    private String table() {
+        return bpConfig.getTableNameForType(ChannelHead.class);
+    }
+
+    private long cacheMillis() {
+        try {
+            return bpConfig.getChannelHeadCacheSeconds() * 1000L;
+        } catch (SimpleDBException e) {
+            return 0;
+        }
+    }
+
+    private void advance(String key, Write write) {
+        try {
+            ChannelHead current = written.get(key);
+            for (int attempt = 0; attempt < MAX_ADVANCE_ATTEMPTS; attempt++) {
+                if (current == null || attempt > 0) {
+                    current = superSimpleDb.retrieve(table(), ChannelHead.class, key);
+                }
+                ChannelHead updated = current == null ? new ChannelHead(key, write.bus, write.latestId, write.count) : current.advance(write.latestId, write.count);
+                if (superSimpleDb.storeIf(table(), ChannelHead.class, updated, ChannelHead.COUNT, current == null ? null : current.get(ChannelHead.COUNT))) {
+                    if (written.size() >= MAX_CACHED_HEADS) written.clear();
+                    written.put(key, updated);
+                    observe(key, updated.getLatestId(), System.currentTimeMillis());
+                    return;
+                }
+                conflicts.mark();
+            }
+            if (write.flushes + 1 < MAX_FLUSHES) {
+                // merged with the posts received meanwhile
+                queue(key, new Write(write.bus, write.latestId, write.count, write.flushes + 1));
+                return;
+            }
+            logger.warn("Could not advance channel head " + key + " in " + MAX_FLUSHES + " flushes");
+        } catch (Exception e) {
+            logger.error("Error advancing channel head " + key + ": " + e.getMessage());
+        }
+        // a head behind the messages would hide them from polls
+        heads.remove(key);
+        remove(key);
+    }
+
+    private void remove(String key) {
+        written.remove(key);
+        try {
+            superSimpleDb.delete(table(), key);
+        } catch (Exception e) {
+            logger.error("Error removing channel head " + key + ": " + e.getMessage());
+            // retried with the next flush, unless posts advance the head meanwhile
+            queue(key, Write.REMOVE);
+        }
+    }
+
+    private void observe(String key, String latestId, long now) {
+        CachedHead cached = heads.get(key);
+        if (cached != null && cached.id != null && cached.id.compareTo(latestId) >= 0) return;
+        cache(key, latestId, now);
+    }
+
+    private void cache(String key, String id, long now) {
+        if (heads.size() >= MAX_CACHED_HEADS) {
+            long maxAge = cacheMillis();
+            for (Iterator<CachedHead> it = heads.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().readAt >= maxAge) it.remove();
+            }
+            if (heads.size() >= MAX_CACHED_HEADS) heads.clear();
+        }
+        heads.put(key, new CachedHead(id, now));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Server-Sent Events (text/event-stream) connection pushing a channel's new message frames,
+ * each as an event with the message ID as the event ID.
+ *
+ * The connection is held open through the Servlet 3.0 async API, so idle streams don't hold a container thread;
+ * a container thread is only used, briefly, to push the messages posted to the channel.
+ * Streams are closed after a maximum time; clients reconnect with the Last-Event-ID header and resume from there.
+ */
+abstract class ChannelStream implements LongPollRegistry.Waiter, AsyncListener {
+
+    // - PACKAGE
+
+    /**
+     * @param lastEventId the ID of the last message the client received, null or empty for all the channel's messages
+     */
+    ChannelStream(LongPollRegistry registry, String bus, String channel, String lastEventId) {
+        this.registry = registry;
+        this.bus = bus;
+        this.channel = channel;
+        this.lastEventId = lastEventId;
+    }
+
+    /**
+     * @return the channel's message frames newer than since, or all of them if since is empty
+     */
+    abstract List<HashMap<String,Object>> poll(String since) throws Exception;
+
+    /**
+     * Starts the event stream and pushes the channel's messages since the last event ID.
+     *
+     * @param maxStreams the maximum number of streams open at once on this server instance
+     * @return false if the stream could not be started, e.g. maxStreams streams are already open,
+     * in which case the response is left untouched
+     */
+    boolean open(HttpServletRequest request, HttpServletResponse response, long timeoutMillis, int maxStreams) throws IOException {
+        if (! request.isAsyncSupported() || ! registry.openStream(maxStreams)) return false;
+
+        boolean started = false;
+        try {
+            registry.registerStream(bus, channel, this);
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            // the channel is readable by anyone who knows its name, as with JSONP GETs
+            response.setHeader("Access-Control-Allow-Origin", "*");
+
+            AsyncContext context = request.startAsync(request, response);
+            context.setTimeout(timeoutMillis);
+            context.addListener(this);
+            started = true;
+            PrintWriter writer = response.getWriter();
+            writer.write("retry: " + RECONNECT_MILLIS + "\n\n");
+            writer.flush();
+
+            async = context;
+            start();
+            return true;
+        } finally {
+            if (! started) release();
+        }
+    }
+
+    @Override
+    public void wake() {
+        pending.set(true);
+        // posts before open() completes are picked up by its initial push
+        if (async != null) start();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+        closed.set(true);
+        release();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException { }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(ChannelStream.class);
+
+    private static final int RECONNECT_MILLIS = 1000;
+
+    private final LongPollRegistry registry;
+    private final String bus;
+    private final String channel;
+
+    private volatile AsyncContext async;
+    private volatile String lastEventId;
+    private final AtomicBoolean pending = new AtomicBoolean(true);
+    private final AtomicBoolean pushing = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private void start() {
+        if (closed.get()) return;
+        async.start(new Runnable() {
+            @Override
+            public void run() {
+                push();
+            }
+        });
+    }
+
+    /**
+     * Pushes the messages posted since the last event; only one thread pushes at a time,
+     * wake-ups received meanwhile are handled by the pushing thread before it returns.
+     */
+    private void push() {
+        while (! closed.get() && pending.get() && pushing.compareAndSet(false, true)) {
+            try {
+                pending.set(false);
+                // registry wake-ups are one-shot: register again before polling, so that no post is missed while it runs
+                registry.registerStream(bus, channel, this);
+                List<HashMap<String,Object>> frames = poll(lastEventId);
+                if (frames.isEmpty()) continue;
+
+                StringBuilder events = new StringBuilder();
+                String id = lastEventId;
+                for (HashMap<String,Object> frame : frames) {
+                    id = (String) frame.get(BackplaneMessage.Field.ID.getFieldName());
+                    events.append("id: ").append(id).append('\n')
+                          .append("data: ").append(EncodedFrame.toJson(frame)).append("\n\n");
+                }
+                PrintWriter writer = async.getResponse().getWriter();
+                writer.write(events.toString());
+                writer.flush();
+                if (writer.checkError()) {
+                    close();
+                    return;
+                }
+                lastEventId = id;
+            } catch (Exception e) {
+                logger.error("Error pushing messages to stream on " + bus + "/" + channel + ": " + e.getMessage(), e);
+                close();
+                return;
+            } finally {
+                pushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the stream and releases its place among the open streams, once.
+     */
+    private void release() {
+        if (! released.compareAndSet(false, true)) return;
+        registry.unregister(bus, channel, this);
+        registry.closeStream();
+    }
+
+    private void close() {
+        if (! closed.compareAndSet(false, true)) return;
+        release();
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // already completed by the container
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.cluster.ClusterBus;
+import com.janrain.backplane.server.cluster.ClusterEvent;
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusAuthorizer;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+/**
+ * Applies the events published by the other server instances:
+ * messages they received are added to the message cache and channel heads, and wake up the local long-polls,
+ * streams and sockets;
+ * configuration changes discard the cached configuration and authorization snapshot.
+ */
+public class ClusterReceiver implements ClusterBus.Listener {
+
+    // - PUBLIC
+
+    @Override
+    public void onEvent(ClusterEvent event) {
+        switch (event.getType()) {
+            case MESSAGES_POSTED:
+                if (event.getMessages() != null) {
+                    String latestId = "";
+                    for (ClusterEvent.PostedMessage message : event.getMessages()) {
+                        messageCache.add(event.getBus(), message.getFrame(), message.getRetentionSeconds());
+                        String id = (String) message.getFrame().get(BackplaneMessage.Field.ID.getFieldName());
+                        if (id != null && id.compareTo(latestId) > 0) latestId = id;
+                    }
+                    if (latestId.length() > 0) {
+                        channelHeads.observed(event.getBus(), event.getChannel(), latestId);
+                    }
+                }
+                longPolls.notifyPosted(event.getBus(), event.getChannel());
+                break;
+            case CONFIG_CHANGED:
+                logger.debug("Configuration changed: " + event.getEntityType() + " " + event.getEntityNames());
+                bpConfig.invalidateCachedConfig();
+                busAuthorizer.invalidate();
+                break;
+            default:
+                logger.warn("Unknown cluster event type: " + event.getType());
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(ClusterReceiver.class);
+
+    @Inject
+    private ClusterBus clusterBus;
+
+    @Inject
+    private LongPollRegistry longPolls;
+
+    @Inject
+    private MessageCache messageCache;
+
+    @Inject
+    private ChannelHeads channelHeads;
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    @Inject
+    private BusAuthorizer busAuthorizer;
+
+    @PostConstruct
+    private void init() {
+        clusterBus.setListener(this);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.message.Json;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A message frame together with its UTF-8 encoded JSON, for frames served many times, e.g. from the message cache.
+ *
+ * Messages do not change once posted, and neither may their encoded frames: the encoding is not updated
+ * if the map is modified.
+ */
+public final class EncodedFrame extends LinkedHashMap<String, Object> {
+
+    // - PUBLIC
+
+    /**
+     * @return the frame itself if it is already encoded, or an encoded copy
+     */
+    public static EncodedFrame of(Map<String, Object> frame) throws IOException {
+        if (frame instanceof EncodedFrame) return (EncodedFrame) frame;
+        return new EncodedFrame(frame, Json.writeFrameBytes(frame));
+    }
+
+    /**
+     * @return the frame's UTF-8 encoded JSON, not to be modified
+     */
+    public static byte[] encode(Map<String, Object> frame) throws IOException {
+        return frame instanceof EncodedFrame ? ((EncodedFrame) frame).json : Json.writeFrameBytes(frame);
+    }
+
+    public static String toJson(Map<String, Object> frame) throws IOException {
+        return new String(encode(frame), "UTF-8");
+    }
+
+    /**
+     * @return the length of the encoded JSON, in bytes
+     */
+    public int getEncodedLength() {
+        return json.length;
+    }
+
+    // - PRIVATE
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] json;
+
+    private EncodedFrame(Map<String, Object> frame, byte[] json) {
+        super(frame);
+        this.json = json;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.message.Json;
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes lists of backplane frames as JSON straight to the output stream, and padded for JSONP if a callback is given,
+ * or several lists as a JSON object.
+ * Frames already encoded, e.g. by the message cache, are copied as they are.
+ */
+public class FrameWriter {
+
+    // - PUBLIC
+
+    public static String contentType(String callback) {
+        return StringUtils.isBlank(callback) ? "application/json" : "application/x-javascript";
+    }
+
+    /**
+     * Writes the frames as the response body, with its content type.
+     *
+     * @return the number of bytes written
+     */
+    public static long write(List<HashMap<String,Object>> frames, String callback, HttpServletResponse response) throws IOException {
+        response.setContentType(contentType(callback));
+        response.setCharacterEncoding("UTF-8");
+        return write(frames, callback, response.getOutputStream());
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public static long write(List<HashMap<String,Object>> frames, String callback, OutputStream out) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(out);
+        boolean padded = ! StringUtils.isBlank(callback);
+        if (padded) {
+            counting.write(callback.getBytes(UTF8));
+            counting.write('(');
+        }
+        writeFrames(frames, counting);
+        if (padded) {
+            counting.write(')');
+        }
+        counting.flush();
+        return counting.count;
+    }
+
+    /**
+     * Writes frame lists grouped by name, e.g. by channel, or by bus and then channel, as the response body.
+     *
+     * @param groups values are frame lists, or nested groups
+     * @return the number of bytes written
+     */
+    public static long writeGroups(Map<String, ?> groups, HttpServletResponse response) throws IOException {
+        response.setContentType(contentType(null));
+        response.setCharacterEncoding("UTF-8");
+        return writeGroups(groups, response.getOutputStream());
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public static long writeGroups(Map<String, ?> groups, OutputStream out) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(out);
+        writeGroup(groups, counting);
+        counting.flush();
+        return counting.count;
+    }
+
+    // - PRIVATE
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FrameWriter() { }
+
+    private static void writeFrames(List<HashMap<String,Object>> frames, OutputStream out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (HashMap<String,Object> frame : frames) {
+            if (! first) out.write(',');
+            first = false;
+            // cached frames are already encoded, and only copied
+            out.write(EncodedFrame.encode(frame));
+        }
+        out.write(']');
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static void writeGroup(Map<String, ?> group, OutputStream out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : group.entrySet()) {
+            if (! first) out.write(',');
+            first = false;
+            out.write(Json.writeBytes(entry.getKey()));
+            out.write(':');
+            if (entry.getValue() instanceof Map) {
+                writeGroup((Map<String, ?>) entry.getValue(), out);
+            } else {
+                writeFrames((List<HashMap<String,Object>>) entry.getValue(), out);
+            }
+        }
+        out.write('}');
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        private long count = 0;
+    }
+}
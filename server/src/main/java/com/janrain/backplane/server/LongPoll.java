@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A poll request that is parked, through the Servlet 3.0 async API, while there are no new messages for it.
+ *
+ * Usage: register() before the initial query, so that no post is missed while it runs;
+ * if the query comes back empty, park() the request, otherwise cancel().
+ * A parked request is answered by running the poll again, when a message is posted or when it times out.
+ */
+class LongPoll implements LongPollRegistry.Waiter, AsyncListener {
+
+    // - PACKAGE
+
+    /**
+     * Answers a parked poll.
+     */
+    interface Poll {
+
+        /**
+         * Writes the response, with the request's new messages.
+         */
+        void respond(HttpServletResponse response) throws Exception;
+    }
+
+    /**
+     * @param channel the polled channel, or null for bus polls
+     */
+    LongPoll(LongPollRegistry registry, String bus, String channel, Poll poll) {
+        this.registry = registry;
+        this.bus = bus;
+        this.channel = channel;
+        this.poll = poll;
+    }
+
+    /**
+     * @return false if the poll cannot be parked, e.g. too many requests are already parked
+     */
+    boolean register() {
+        return registry.register(bus, channel, this);
+    }
+
+    /**
+     * @return true if the request was parked; false if a message was posted since register(),
+     * in which case the caller responds right away and the client's next poll picks the message up
+     */
+    synchronized boolean park(HttpServletRequest request, long timeoutMillis) {
+        if (woken) return false;
+        async = request.startAsync();
+        async.setTimeout(timeoutMillis);
+        async.addListener(this);
+        return true;
+    }
+
+    void cancel() {
+        registry.unregister(bus, channel, this);
+    }
+
+    @Override
+    public synchronized void wake() {
+        woken = true;
+        if (async != null && ! responded.get()) {
+            async.start(new Runnable() {
+                @Override
+                public void run() {
+                    respond();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        cancel();
+        respond();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        cancel();
+        responded.set(true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException { }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException { }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(LongPoll.class);
+
+    private static final String ERROR_BODY = "{\"ERR_MSG\":\"Error processing request.\"}";
+
+    private final LongPollRegistry registry;
+    private final String bus;
+    private final String channel;
+    private final Poll poll;
+
+    private final AtomicBoolean responded = new AtomicBoolean(false);
+    private boolean woken = false;
+    private AsyncContext async;
+
+    private void respond() {
+        if (! responded.compareAndSet(false, true)) return;
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+            poll.respond(response);
+        } catch (Exception e) {
+            logger.error("Error answering long-poll on " + bus + (channel == null ? "" : "/" + channel) + ": " + e.getMessage(), e);
+            if (! response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                try {
+                    response.getOutputStream().write(ERROR_BODY.getBytes("UTF-8"));
+                } catch (IOException ioe) {
+                    logger.error("Error writing long-poll error response: " + ioe.getMessage());
+                }
+            }
+        } finally {
+            async.complete();
+        }
+    }
+}
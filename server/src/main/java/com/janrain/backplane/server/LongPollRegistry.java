@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the parked (long-poll) requests waiting for new messages on a channel or a bus,
+ * and wakes them up when messages are posted there.
+ *
+ * Posts received by this server instance, and those forwarded by the other instances through the cluster bus,
+ * wake up its waiters; waiters also wake up on their own timeout, which catches posts the cluster bus dropped or
+ * that were received by other instances while it is disabled.
+ *
+ * Event streams are limited separately from the other waiters: by the number of open streams,
+ * and their registrations don't count toward the other waiters' limit.
+ */
+public class LongPollRegistry {
+
+    // - PUBLIC
+
+    /**
+     * A parked request.
+     */
+    public static interface Waiter {
+
+        /**
+         * Called, at most once, when a message is posted on the channel or bus the waiter is registered for.
+         * Must not block.
+         */
+        void wake();
+    }
+
+    /**
+     * @param channel the channel to wait for, or null for all channels on the bus
+     * @return false if the maximum number of waiters was reached, in which case the waiter is not registered
+     */
+    public synchronized boolean register(String bus, String channel, Waiter waiter) {
+        if (waiting >= maxWaiters) {
+            rejected.mark();
+            return false;
+        }
+        String key = key(bus, channel);
+        Set<Waiter> keyWaiters = waiters.get(key);
+        if (keyWaiters == null) {
+            keyWaiters = new HashSet<Waiter>();
+            waiters.put(key, keyWaiters);
+        }
+        if (keyWaiters.add(waiter)) waiting++;
+        return true;
+    }
+
+    /**
+     * Registers an open event stream's waiter, without a limit: streams are limited when opened.
+     *
+     * @see #openStream(int)
+     */
+    public synchronized void registerStream(String bus, String channel, Waiter waiter) {
+        String key = key(bus, channel);
+        Set<Waiter> keyWaiters = waiters.get(key);
+        if (keyWaiters == null) {
+            keyWaiters = new HashSet<Waiter>();
+            waiters.put(key, keyWaiters);
+        }
+        if (keyWaiters.add(waiter)) streamWaiters.add(waiter);
+    }
+
+    /**
+     * @return true if the waiter was still registered, false if it was already woken up
+     */
+    public synchronized boolean unregister(String bus, String channel, Waiter waiter) {
+        String key = key(bus, channel);
+        Set<Waiter> keyWaiters = waiters.get(key);
+        if (keyWaiters == null || ! keyWaiters.remove(waiter)) return false;
+        if (! streamWaiters.remove(waiter)) waiting--;
+        if (keyWaiters.isEmpty()) waiters.remove(key);
+        return true;
+    }
+
+    /**
+     * Counts an event stream being opened, to be released with closeStream().
+     *
+     * @return false if maxStreams streams are already open, in which case the stream is not counted
+     */
+    public synchronized boolean openStream(int maxStreams) {
+        if (streams >= maxStreams) {
+            rejectedStreams.mark();
+            return false;
+        }
+        streams++;
+        return true;
+    }
+
+    public synchronized void closeStream() {
+        streams--;
+    }
+
+    public synchronized int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Wakes up the waiters for the channel and for its bus.
+     */
+    public void notifyPosted(String bus, String channel) {
+        wakeAll(key(bus, channel));
+        wakeAll(key(bus, null));
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    public void setMaxWaiters(int maxWaiters) {
+        this.maxWaiters = maxWaiters;
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(LongPollRegistry.class);
+
+    private static final int DEFAULT_MAX_WAITERS = 10000;
+
+    private final Map<String, Set<Waiter>> waiters = new HashMap<String, Set<Waiter>>();
+    private int waiting = 0;
+    private final Set<Waiter> streamWaiters = new HashSet<Waiter>();
+    private int streams = 0;
+    private volatile int maxWaiters = DEFAULT_MAX_WAITERS;
+
+    private final MeterMetric woken =
+            Metrics.newMeter(LongPollRegistry.class, "long_poll_woken", "polls", TimeUnit.MINUTES);
+    private final MeterMetric rejected =
+            Metrics.newMeter(LongPollRegistry.class, "long_poll_rejected", "polls", TimeUnit.MINUTES);
+    private final MeterMetric rejectedStreams =
+            Metrics.newMeter(LongPollRegistry.class, "stream_rejected", "streams", TimeUnit.MINUTES);
+
+    private static String key(String bus, String channel) {
+        return channel == null ? bus : bus + "/" + channel;
+    }
+
+    private void wakeAll(String key) {
+        Set<Waiter> keyWaiters;
+        synchronized (this) {
+            keyWaiters = waiters.remove(key);
+            if (keyWaiters == null) return;
+            for (Waiter waiter : keyWaiters) {
+                if (! streamWaiters.remove(waiter)) waiting--;
+            }
+        }
+        for (Waiter waiter : keyWaiters) {
+            woken.mark();
+            try {
+                waiter.wake();
+            } catch (Exception e) {
+                logger.error("Error waking up long-poll request for " + key + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
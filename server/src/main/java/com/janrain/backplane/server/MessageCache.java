@@ -0,0 +1,606 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusConfig;
+import com.janrain.util.Iso8601;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-local cache of recent message frames, answering channel and bus GETs without a SimpleDB select.
+ *
+ * Each bus has a tail index of its cached messages ordered by message ID, and each cached channel a ring buffer
+ * of its messages, also ordered by ID and bounded by the channel message limit.
+ * Each index is complete after a floor message ID: it holds all the messages newer than the floor,
+ * as of when it was last filled from SimpleDB, plus the messages posted through this server instance since,
+ * and those posted through other instances and forwarded over the cluster bus.
+ * Forwarding is best effort (and may be disabled), so an index only answers requests
+ * for a limited time (the refill interval) after it was filled; requests with a since cursor below the floor,
+ * or on a stale index, are misses that the caller answers from SimpleDB and fills the cache with.
+ *
+ * Messages expire according to their bus' retention times, on a timing wheel.
+ * Frames are kept along with their encoded JSON, which responses copy instead of serializing the frames again.
+ * Memory is bounded by the total size of the cached frames; the oldest messages are evicted first.
+ */
+public class MessageCache {
+
+    // - PUBLIC
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param channel the channel, or null for all channels on the bus
+     * @param since the message ID after which messages are requested, null or empty for all
+     * @param sticky if not empty, only messages with this sticky value are returned
+     * @return the cached frames, in message ID order, or null if the cache cannot answer the request
+     */
+    public List<HashMap<String,Object>> get(String bus, String channel, String since, String sticky) {
+        if (! isEnabled()) return null;
+        String after = since == null ? "" : since;
+        List<HashMap<String,Object>> frames = null;
+        synchronized (this) {
+            BusIndex busIndex = buses.get(bus);
+            long now = System.currentTimeMillis();
+            if (busIndex == null) {
+                // miss
+            } else if (channel == null) {
+                if (busIndex.covers(after, now, refillMillis)) {
+                    frames = new ArrayList<HashMap<String, Object>>();
+                    for (CachedMessage message : busIndex.messages.tailMap(after, false).values()) {
+                        if (message.matches(sticky)) frames.add(message.frame);
+                    }
+                }
+            } else {
+                ChannelRing ring = busIndex.channels.get(channel);
+                if (ring != null && ring.covers(after, now, refillMillis)) {
+                    frames = new ArrayList<HashMap<String, Object>>();
+                    for (int i = ring.after(after); i < ring.size; i++) {
+                        CachedMessage message = ring.get(i);
+                        if (message.matches(sticky)) frames.add(message.frame);
+                    }
+                }
+            }
+        }
+        (frames == null ? misses : hits).mark();
+        return frames;
+    }
+
+    /**
+     * Fills the cache with the result of a (non sticky-filtered) SimpleDB query.
+     *
+     * @param channel the queried channel, or null if all channels on the bus were queried
+     * @param frames all the messages newer than since, as of queryStartedMillis
+     */
+    public void fill(String bus, String channel, String since, List<HashMap<String,Object>> frames, long queryStartedMillis, BusConfig busConfig) {
+        if (! isEnabled()) return;
+        String floor = since == null ? "" : since;
+        List<CachedMessage> messages = cachedMessages(frames, busConfig);
+        synchronized (this) {
+            BusIndex busIndex = busIndex(bus);
+            if (channel == null) {
+                busIndex.floor = floor;
+                busIndex.filledAt = queryStartedMillis;
+            } else {
+                ChannelRing ring = ring(busIndex, channel);
+                ring.floor = floor;
+                ring.filledAt = queryStartedMillis;
+                wheel.schedule(ring, queryStartedMillis + refillMillis);
+            }
+            for (CachedMessage message : messages) {
+                // bus queries only add to the channels already cached
+                add(busIndex, message, channel != null);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Adds a newly posted message.
+     *
+     * @param retentionSeconds the message's retention time, according to its bus configuration
+     */
+    public void add(String bus, HashMap<String,Object> frame, long retentionSeconds) {
+        if (! isEnabled()) return;
+        CachedMessage message = cachedMessage(frame, retentionSeconds);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            BusIndex busIndex = buses.get(bus);
+            if (busIndex == null) {
+                busIndex = busIndex(bus);
+                // nothing is known about the bus' older messages
+                busIndex.floor = message.id;
+                busIndex.filledAt = now;
+            }
+            if (! busIndex.channels.containsKey(message.channel)) {
+                ChannelRing ring = ring(busIndex, message.channel);
+                ring.floor = message.id;
+                ring.filledAt = now;
+                wheel.schedule(ring, now + refillMillis);
+            }
+            add(busIndex, message, true);
+            evict();
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getMessages() {
+        int count = 0;
+        for (BusIndex busIndex : buses.values()) {
+            count += busIndex.messages.size();
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        buses.clear();
+        wheel.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param maxBytes the cache's size limit, 0 disables the cache
+     */
+    public synchronized void setLimits(long maxBytes, int channelCapacity, long refillMillis) {
+        this.maxBytes = maxBytes;
+        this.channelCapacity = channelCapacity;
+        this.refillMillis = refillMillis;
+        if (maxBytes <= 0) {
+            clear();
+        } else {
+            evict();
+        }
+    }
+
+    // - PACKAGE
+
+    /**
+     * Expires the messages and stale channel rings due by the given time.
+     */
+    synchronized void expire(long now) {
+        for (Object expired : wheel.advance(now)) {
+            if (expired instanceof CachedMessage) {
+                remove((CachedMessage) expired);
+            } else {
+                ChannelRing ring = (ChannelRing) expired;
+                BusIndex busIndex = buses.get(ring.bus);
+                if (busIndex != null && busIndex.channels.get(ring.channel) == ring && now - ring.filledAt >= refillMillis) {
+                    // stale rings answer no requests; their messages stay in the bus index
+                    busIndex.channels.remove(ring.channel);
+                    bytes -= ring.bytes();
+                    removeIfEmpty(busIndex);
+                }
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(MessageCache.class);
+
+    private static final long TICK_MILLIS = 1000L;
+    private static final int WHEEL_SLOTS = 1024;
+    private static final int RING_INITIAL_CAPACITY = 4;
+    private static final int INDEX_OVERHEAD_BYTES = 128;
+    private static final int REFERENCE_BYTES = 8;
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    private final Map<String, BusIndex> buses = new HashMap<String, BusIndex>();
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS);
+
+    private volatile long maxBytes = 0;
+    private int channelCapacity = 100;
+    private long refillMillis = 5000L;
+    private long bytes = 0;
+
+    private ScheduledExecutorService ticker;
+
+    private final MeterMetric hits =
+            Metrics.newMeter(MessageCache.class, "message_cache_hits", "requests", TimeUnit.MINUTES);
+    private final MeterMetric misses =
+            Metrics.newMeter(MessageCache.class, "message_cache_misses", "requests", TimeUnit.MINUTES);
+    private final MeterMetric evictions =
+            Metrics.newMeter(MessageCache.class, "message_cache_evictions", "messages", TimeUnit.MINUTES);
+
+    private static final class CachedMessage {
+
+        private CachedMessage(String id, String channel, String sticky, EncodedFrame frame, int bytes, long expiresAt) {
+            this.id = id;
+            this.channel = channel;
+            this.sticky = sticky;
+            this.frame = frame;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean matches(String sticky) {
+            return StringUtils.isEmpty(sticky) || sticky.equals(this.sticky);
+        }
+
+        private final String id;
+        private final String channel;
+        private final String sticky;
+        private final EncodedFrame frame;
+        private final int bytes;
+        private final long expiresAt;
+        private String bus;
+    }
+
+    private static final class BusIndex {
+
+        private BusIndex(String bus) {
+            this.bus = bus;
+        }
+
+        private boolean covers(String since, long now, long refillMillis) {
+            return floor != null && since.compareTo(floor) >= 0 && now - filledAt < refillMillis;
+        }
+
+        private final String bus;
+        private final TreeMap<String, CachedMessage> messages = new TreeMap<String, CachedMessage>();
+        private final Map<String, ChannelRing> channels = new HashMap<String, ChannelRing>();
+        private String floor;
+        private long filledAt;
+    }
+
+    /**
+     * A channel's cached messages, in a circular buffer ordered by message ID.
+     */
+    private static final class ChannelRing {
+
+        private ChannelRing(String bus, String channel, int capacity) {
+            this.bus = bus;
+            this.channel = channel;
+            this.capacity = capacity;
+        }
+
+        private boolean covers(String since, long now, long refillMillis) {
+            return floor != null && since.compareTo(floor) >= 0 && now - filledAt < refillMillis;
+        }
+
+        private CachedMessage get(int i) {
+            return items[(head + i) % items.length];
+        }
+
+        /**
+         * @return the index of the first message newer than since
+         */
+        private int after(String since) {
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (get(mid).id.compareTo(since) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the message dropped to make room for the new one (possibly the new one itself, if it's the oldest),
+         * or null
+         */
+        private CachedMessage insert(CachedMessage message) {
+            int pos = after(message.id);
+            if (pos > 0 && get(pos - 1).id.equals(message.id)) return null;
+            CachedMessage dropped = null;
+            if (size == capacity) {
+                if (pos == 0) return message;
+                dropped = get(0);
+                items[head] = null;
+                head = (head + 1) % items.length;
+                size--;
+                pos--;
+            }
+            if (size == items.length) {
+                grow();
+            }
+            for (int i = size; i > pos; i--) {
+                items[(head + i) % items.length] = get(i - 1);
+            }
+            items[(head + pos) % items.length] = message;
+            size++;
+            return dropped;
+        }
+
+        private void remove(String id) {
+            int pos = after(id) - 1;
+            if (pos < 0 || ! get(pos).id.equals(id)) return;
+            if (pos == 0) {
+                items[head] = null;
+                head = (head + 1) % items.length;
+            } else {
+                for (int i = pos; i < size - 1; i++) {
+                    items[(head + i) % items.length] = get(i + 1);
+                }
+                items[(head + size - 1) % items.length] = null;
+            }
+            size--;
+        }
+
+        private void grow() {
+            CachedMessage[] grown = new CachedMessage[Math.min(Math.max(items.length * 2, 1), capacity)];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            items = grown;
+            head = 0;
+        }
+
+        private long bytes() {
+            return INDEX_OVERHEAD_BYTES + REFERENCE_BYTES * items.length;
+        }
+
+        private final String bus;
+        private final String channel;
+        private final int capacity;
+        private CachedMessage[] items = new CachedMessage[RING_INITIAL_CAPACITY];
+        private int head = 0;
+        private int size = 0;
+        private String floor;
+        private long filledAt;
+    }
+
+    /**
+     * Hashed timing wheel: timeouts are kept in the slot of their tick, and checked when the wheel
+     * passes over it; those due later than one revolution stay for the next one.
+     */
+    private static final class TimingWheel {
+
+        @SuppressWarnings({"unchecked"})
+        private TimingWheel(long tickMillis, int slots) {
+            this.tickMillis = tickMillis;
+            this.slots = new ArrayList[slots];
+        }
+
+        private void schedule(Object target, long atMillis) {
+            int slot = (int) ((atMillis / tickMillis) % slots.length);
+            if (slots[slot] == null) {
+                slots[slot] = new ArrayList<Timeout>();
+            }
+            slots[slot].add(new Timeout(target, atMillis));
+        }
+
+        /**
+         * @return the targets due by now
+         */
+        private List<Object> advance(long now) {
+            List<Object> due = new ArrayList<Object>();
+            long tick = now / tickMillis;
+            if (lastTick < 0 || tick - lastTick > slots.length) {
+                lastTick = tick - slots.length;
+            }
+            while (lastTick < tick) {
+                lastTick++;
+                List<Timeout> slot = slots[(int) (lastTick % slots.length)];
+                if (slot == null) continue;
+                Iterator<Timeout> timeouts = slot.iterator();
+                while (timeouts.hasNext()) {
+                    Timeout timeout = timeouts.next();
+                    if (timeout.atMillis <= now) {
+                        due.add(timeout.target);
+                        timeouts.remove();
+                    }
+                }
+            }
+            return due;
+        }
+
+        private void clear() {
+            Arrays.fill(slots, null);
+        }
+
+        private final long tickMillis;
+        private final List<Timeout>[] slots;
+        private long lastTick = -1;
+
+        private static final class Timeout {
+            private Timeout(Object target, long atMillis) {
+                this.target = target;
+                this.atMillis = atMillis;
+            }
+
+            private final Object target;
+            private final long atMillis;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    configure();
+                    expire(System.currentTimeMillis());
+                } catch (Exception e) {
+                    logger.error("Error expiring cached messages: " + e.getMessage(), e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void configure() throws Exception {
+        if (bpConfig == null) return;
+        long max = bpConfig.getMessageCacheMaxBytes();
+        int capacity = (int) bpConfig.getDefaultMaxMessageLimit();
+        long refill = bpConfig.getMessageCacheRefillSeconds() * 1000L;
+        if (max != maxBytes || capacity != channelCapacity || refill != refillMillis) {
+            logger.info("Message cache limits: " + max + " bytes, " + capacity + " messages per channel, refill after " + refill + "ms");
+            setLimits(max, capacity, refill);
+        }
+    }
+
+    private List<CachedMessage> cachedMessages(List<HashMap<String,Object>> frames, BusConfig busConfig) {
+        List<CachedMessage> messages = new ArrayList<CachedMessage>(frames.size());
+        for (HashMap<String,Object> frame : frames) {
+            messages.add(cachedMessage(frame, busConfig.getRetentionTimeSeconds(Boolean.valueOf(sticky(frame)))));
+        }
+        return messages;
+    }
+
+    private CachedMessage cachedMessage(HashMap<String,Object> frame, long retentionSeconds) {
+        String id = (String) frame.get(BackplaneMessage.Field.ID.getFieldName());
+        EncodedFrame encoded;
+        try {
+            encoded = EncodedFrame.of(frame);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error serializing frame " + id + ": " + e.getMessage(), e);
+        }
+        // the frame's map is about as large as its encoding
+        int size = 2 * encoded.getEncodedLength();
+        return new CachedMessage(id, (String) frame.get(BackplaneMessage.Field.CHANNEL_NAME.getFieldName()),
+                sticky(frame), encoded, size + INDEX_OVERHEAD_BYTES, postedAt(id) + retentionSeconds * 1000L);
+    }
+
+    private static String sticky(HashMap<String,Object> frame) {
+        Object sticky = ((Map) frame.get("message")).get(BackplaneMessage.Field.STICKY.getFieldName());
+        return sticky == null ? null : sticky.toString();
+    }
+
+    private long postedAt(String id) {
+        try {
+            return Iso8601.parse(id);
+        } catch (ParseException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private BusIndex busIndex(String bus) {
+        BusIndex busIndex = buses.get(bus);
+        if (busIndex == null) {
+            busIndex = new BusIndex(bus);
+            buses.put(bus, busIndex);
+            bytes += INDEX_OVERHEAD_BYTES;
+        }
+        return busIndex;
+    }
+
+    private ChannelRing ring(BusIndex busIndex, String channel) {
+        ChannelRing ring = busIndex.channels.get(channel);
+        if (ring == null) {
+            ring = new ChannelRing(busIndex.bus, channel, channelCapacity);
+            busIndex.channels.put(channel, ring);
+            bytes += ring.bytes();
+        }
+        return ring;
+    }
+
+    private void add(BusIndex busIndex, CachedMessage message, boolean createRing) {
+        if (busIndex.messages.containsKey(message.id)) return;
+        message.bus = busIndex.bus;
+        busIndex.messages.put(message.id, message);
+        bytes += message.bytes;
+        wheel.schedule(message, message.expiresAt);
+
+        ChannelRing ring = createRing ? ring(busIndex, message.channel) : busIndex.channels.get(message.channel);
+        if (ring != null) {
+            long ringBytes = ring.bytes();
+            CachedMessage dropped = ring.insert(message);
+            bytes += ring.bytes() - ringBytes;
+            if (dropped != null && (ring.floor == null || dropped.id.compareTo(ring.floor) > 0)) {
+                // the ring no longer holds all the messages after its floor
+                ring.floor = dropped.id;
+            }
+        }
+    }
+
+    private void remove(CachedMessage message) {
+        BusIndex busIndex = buses.get(message.bus);
+        // already evicted, possibly cached again since
+        if (busIndex == null || busIndex.messages.get(message.id) != message) return;
+        busIndex.messages.remove(message.id);
+        bytes -= message.bytes;
+        ChannelRing ring = busIndex.channels.get(message.channel);
+        if (ring != null) {
+            ring.remove(message.id);
+        }
+        removeIfEmpty(busIndex);
+    }
+
+    private void removeIfEmpty(BusIndex busIndex) {
+        if (busIndex.messages.isEmpty() && busIndex.channels.isEmpty()) {
+            buses.remove(busIndex.bus);
+            bytes -= INDEX_OVERHEAD_BYTES;
+        }
+    }
+
+    /**
+     * Evicts the oldest messages until the cache is within its size limit.
+     */
+    private void evict() {
+        while (bytes > maxBytes) {
+            BusIndex oldest = null;
+            for (BusIndex busIndex : buses.values()) {
+                if (! busIndex.messages.isEmpty() &&
+                    (oldest == null || busIndex.messages.firstKey().compareTo(oldest.messages.firstKey()) < 0)) {
+                    oldest = busIndex;
+                }
+            }
+            if (oldest == null) {
+                // only (empty) channel rings left
+                for (BusIndex busIndex : buses.values()) {
+                    for (ChannelRing ring : busIndex.channels.values()) {
+                        bytes -= ring.bytes();
+                    }
+                }
+                buses.clear();
+                bytes = 0;
+                break;
+            }
+            CachedMessage message = oldest.messages.firstEntry().getValue();
+            ChannelRing ring = oldest.channels.get(message.channel);
+            // the indexes no longer hold all the messages after their floors
+            if (oldest.floor != null && message.id.compareTo(oldest.floor) > 0) {
+                oldest.floor = message.id;
+            }
+            if (ring != null && ring.floor != null && message.id.compareTo(ring.floor) > 0) {
+                ring.floor = message.id;
+            }
+            remove(message);
+            evictions.mark();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.*;
+
+/**
+ * Message type filter and field projection requested for GET responses.
+ *
+ * Types are given as a comma separated list of message types, or type prefixes ending with '*',
+ * e.g. "identity/login,identity/ack*"; fields as a comma separated list of frame or message field names,
+ * e.g. "channel_name,type,source". Frames always keep their message ID.
+ */
+public class MessageFilter {
+
+    // - PUBLIC
+
+    public static final MessageFilter NONE = new MessageFilter(null, null);
+
+    /**
+     * @param types message types and type prefixes, or blank for all types
+     * @param fields the fields to keep, or blank for all fields
+     */
+    public static MessageFilter parse(String types, String fields) throws BackplaneServerException {
+        if (StringUtils.isBlank(types) && StringUtils.isBlank(fields)) return NONE;
+        return new MessageFilter(split(types), split(fields));
+    }
+
+    public boolean isNone() {
+        return types == null && fields == null;
+    }
+
+    /**
+     * @return the fields the frames need to be built with for this filter to apply to them, or null for all fields
+     */
+    public Set<String> getFrameFields() {
+        return frameFields;
+    }
+
+    /**
+     * @return the frames of the requested types, with the requested fields
+     */
+    public List<HashMap<String,Object>> apply(List<HashMap<String,Object>> frames) {
+        if (isNone()) return frames;
+        List<HashMap<String,Object>> result = new ArrayList<HashMap<String, Object>>(frames.size());
+        for (HashMap<String,Object> frame : frames) {
+            if (matches(frame)) {
+                result.add(fields == null ? frame : project(frame));
+            }
+        }
+        return result;
+    }
+
+    // - PRIVATE
+
+    private static final String PREFIX_WILDCARD = "*";
+    private static final String MESSAGE = "message";
+
+    private final Set<String> exactTypes = new HashSet<String>();
+    private final List<String> typePrefixes = new ArrayList<String>();
+    private final List<String> types;
+    private final Set<String> fields;
+    private final Set<String> frameFields;
+
+    private MessageFilter(List<String> types, List<String> fields) {
+        this.types = types;
+        this.fields = fields == null ? null : new HashSet<String>(fields);
+        if (fields == null) {
+            frameFields = null;
+        } else {
+            // the type is needed to match types, even if it is not returned
+            Set<String> frameFields = new HashSet<String>(fields);
+            if (types != null) frameFields.add(BackplaneMessage.Field.TYPE.getFieldName());
+            this.frameFields = Collections.unmodifiableSet(frameFields);
+        }
+        if (types != null) {
+            for (String type : types) {
+                if (type.endsWith(PREFIX_WILDCARD)) {
+                    typePrefixes.add(type.substring(0, type.length() - PREFIX_WILDCARD.length()));
+                } else {
+                    exactTypes.add(type);
+                }
+            }
+        }
+    }
+
+    private static List<String> split(String list) throws BackplaneServerException {
+        if (StringUtils.isBlank(list)) return null;
+        List<String> result = new ArrayList<String>();
+        for (String item : list.split(",")) {
+            if (! StringUtils.isBlank(item)) result.add(item.trim());
+        }
+        if (result.isEmpty()) {
+            throw new BackplaneServerException("Invalid list: " + list);
+        }
+        return result;
+    }
+
+    private boolean matches(HashMap<String,Object> frame) {
+        if (types == null) return true;
+        Object type = message(frame).get(BackplaneMessage.Field.TYPE.getFieldName());
+        if (type == null) return false;
+        if (exactTypes.contains(type.toString())) return true;
+        for (String prefix : typePrefixes) {
+            if (type.toString().startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private HashMap<String,Object> project(HashMap<String,Object> frame) {
+        HashMap<String,Object> projected = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String,Object> entry : frame.entrySet()) {
+            if (MESSAGE.equals(entry.getKey())) {
+                Map<String,Object> message = new LinkedHashMap<String, Object>();
+                for (Map.Entry<String,Object> field : message(frame).entrySet()) {
+                    if (fields.contains(field.getKey())) message.put(field.getKey(), field.getValue());
+                }
+                projected.put(MESSAGE, message);
+            } else if (fields.contains(entry.getKey()) || BackplaneMessage.Field.ID.getFieldName().equals(entry.getKey())) {
+                projected.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return projected;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String,Object> message(HashMap<String,Object> frame) {
+        Object message = frame.get(MESSAGE);
+        return message instanceof Map ? (Map<String,Object>) message : Collections.<String,Object>emptyMap();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.janrain.util.Iso8601;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates message IDs and random (e.g. channel) names.
+ *
+ * Message IDs are the ISO8601 time of the message, a dash and 10 lowercase hex digits, e.g.
+ * 2012-05-01T10:00:00.000Z-0123456789, and sort in the order they were generated on this server instance:
+ * the first ID of each millisecond gets a random suffix, the following ones the previous suffix plus a random increment.
+ * If the clock goes back, IDs continue in the last millisecond; if a millisecond runs out of suffixes, in the next one.
+ *
+ * Random values come from per-thread SecureRandom instances, read in batches.
+ */
+public final class MessageIds {
+
+    // - PUBLIC
+
+    public static String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * @return length random lowercase hex digits
+     */
+    public static String randomHex(int length) {
+        EntropyPool pool = entropy.get();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i += 2) {
+            int b = pool.nextByte();
+            chars[i] = HEX[(b >>> 4) & 0xf];
+            if (i + 1 < length) chars[i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    // - PACKAGE
+
+    static final int SUFFIX_LENGTH = 10;
+
+    static String next(long now) {
+        EntropyPool pool = entropy.get();
+        // at most half the suffix range, leaving the rest for the increments
+        long start = pool.nextBits(SUFFIX_BITS - 1);
+        long increment = 1 + pool.nextBits(INCREMENT_BITS);
+        while (true) {
+            State last = state.get();
+            State next;
+            if (now > last.millis) {
+                next = new State(now, start);
+            } else if (last.suffix + increment <= MAX_SUFFIX) {
+                next = new State(last, last.suffix + increment);
+            } else {
+                next = new State(last.millis + 1, start);
+            }
+            if (state.compareAndSet(last, next)) {
+                return next.prefix + hex(next.suffix);
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int SUFFIX_BITS = 4 * SUFFIX_LENGTH;
+    private static final long MAX_SUFFIX = (1L << SUFFIX_BITS) - 1;
+    private static final int INCREMENT_BITS = 16;
+    private static final int POOL_BYTES = 256;
+
+    private static final ThreadLocal<EntropyPool> entropy = new ThreadLocal<EntropyPool>() {
+        @Override
+        protected EntropyPool initialValue() {
+            return new EntropyPool();
+        }
+    };
+
+    private static final AtomicReference<State> state = new AtomicReference<State>(new State(0, 0));
+
+    private MessageIds() { }
+
+    /**
+     * The last generated ID: its millisecond, the formatted millisecond and the suffix.
+     */
+    private static final class State {
+
+        private State(long millis, long suffix) {
+            this.millis = millis;
+            this.prefix = Iso8601.format(millis, new StringBuilder(Iso8601.LENGTH + 1)).append('-').toString();
+            this.suffix = suffix;
+        }
+
+        private State(State sameMillis, long suffix) {
+            this.millis = sameMillis.millis;
+            this.prefix = sameMillis.prefix;
+            this.suffix = suffix;
+        }
+
+        private final long millis;
+        private final String prefix;
+        private final long suffix;
+    }
+
+    private static final class EntropyPool {
+
+        private int nextByte() {
+            if (next == bytes.length) {
+                random.nextBytes(bytes);
+                next = 0;
+            }
+            return bytes[next++] & 0xff;
+        }
+
+        private long nextBits(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i += 8) {
+                value = (value << 8) | nextByte();
+            }
+            return value & ((1L << bits) - 1);
+        }
+
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] bytes = new byte[POOL_BYTES];
+        private int next = POOL_BYTES;
+    }
+
+    private static String hex(long value) {
+        char[] chars = new char[SUFFIX_LENGTH];
+        for (int i = SUFFIX_LENGTH - 1; i >= 0; i--) {
+            chars[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server;
+
+import com.yammer.metrics.core.MeterMetric;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical loads: callers asking for a key whose load is in flight wait for it
+ * and share its result, instead of running their own.
+ *
+ * Completed results can also be kept for a short time (the micro-cache), for as long as the version
+ * they were loaded at is current, e.g. the latest message ID of the bus they were read from.
+ * Failed loads are never kept.
+ */
+class SingleFlight<K,V> {
+
+    // - PACKAGE
+
+    /**
+     * @param coalesced marked for each call answered by another call's load
+     */
+    SingleFlight(MeterMetric coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * @param key identifies the load; calls with equal keys and versions share one load
+     * @param ttlMillis how long a completed result is reused, 0 to share only loads in flight
+     * @param version the current version of the loaded data, or null if not known (the result is then not reused once completed)
+     * @return the result of the load, shared with the other callers of the same key
+     */
+    V load(K key, long ttlMillis, Object version, Callable<V> loader) throws Exception {
+        Flight<V> flight = new Flight<V>(loader, version);
+        while (true) {
+            Flight<V> current = flights.get(key);
+            if (current != null && current.isShared(ttlMillis, version)) {
+                coalesced.mark();
+                return current.result();
+            }
+            // a load started at an older version may miss data, and is replaced
+            if (current == null ? flights.putIfAbsent(key, flight) == null : flights.replace(key, current, flight)) break;
+        }
+        try {
+            flight.run();
+        } finally {
+            if (ttlMillis <= 0 || version == null || flight.failed()) {
+                flights.remove(key, flight);
+            } else {
+                sweep(ttlMillis);
+            }
+        }
+        return flight.result();
+    }
+
+    /**
+     * @return the number of loads in flight and kept results
+     */
+    int size() {
+        return flights.size();
+    }
+
+    // - PRIVATE
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+    private final MeterMetric coalesced;
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    private static final class Flight<V> extends FutureTask<V> {
+
+        private Flight(Callable<V> loader, Object version) {
+            super(loader);
+            this.version = version;
+        }
+
+        @Override
+        protected void done() {
+            completed = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if the load is in flight, or its result is still valid, at the current version
+         */
+        private boolean isShared(long ttlMillis, Object currentVersion) {
+            boolean sameVersion = version == null ? currentVersion == null : version.equals(currentVersion);
+            return sameVersion && (! isDone() || (version != null && ! isExpired(ttlMillis)));
+        }
+
+        private boolean isExpired(long ttlMillis) {
+            return isDone() && System.currentTimeMillis() - completed >= ttlMillis;
+        }
+
+        private boolean failed() {
+            try {
+                get();
+                return false;
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        private V result() throws Exception {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            }
+        }
+
+        private final Object version;
+        private volatile long completed;
+    }
+
+    /**
+     * Discards the expired results, at most once per ttlMillis; results whose key is not asked for again
+     * would otherwise be kept forever.
+     */
+    private void sweep(long ttlMillis) {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < ttlMillis || ! lastSweep.compareAndSet(last, now)) return;
+        for (Map.Entry<K, Flight<V>> entry : flights.entrySet()) {
+            if (entry.getValue().isExpired(ttlMillis)) {
+                flights.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
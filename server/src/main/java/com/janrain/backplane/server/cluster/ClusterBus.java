@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.cluster;
+
+/**
+ * Messaging between the server instances of a deployment, keeping their in-memory state
+ * (message cache, parked requests and streams, cached configuration) current with the changes made on the others.
+ *
+ * Delivery is best effort: events may be lost, e.g. while a peer is unreachable,
+ * so the state kept in sync through it must also be refreshed from SimpleDB.
+ */
+public interface ClusterBus {
+
+    /**
+     * Receives the events published by the other server instances.
+     */
+    public static interface Listener {
+
+        void onEvent(ClusterEvent event);
+    }
+
+    /**
+     * @return false if no other instances are configured, in which case events need not be published
+     */
+    boolean isEnabled();
+
+    /**
+     * Sends the event to the other server instances; must not block.
+     */
+    void publish(ClusterEvent event);
+
+    void setListener(Listener listener);
+}
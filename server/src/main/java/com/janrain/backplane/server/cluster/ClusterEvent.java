@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.cluster;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An event sent between server instances, as JSON.
+ */
+public class ClusterEvent {
+
+    // - PUBLIC
+
+    public static enum Type {
+        /** messages were posted to a channel */
+        MESSAGES_POSTED,
+        /** configuration entities were updated or deleted */
+        CONFIG_CHANGED
+    }
+
+    /**
+     * A posted message, as a backplane frame.
+     */
+    public static class PostedMessage {
+
+        @SuppressWarnings({"UnusedDeclaration"}) // JSON deserialization
+        public PostedMessage() { }
+
+        public PostedMessage(HashMap<String, Object> frame, long retentionSeconds) {
+            this.frame = frame;
+            this.retentionSeconds = retentionSeconds;
+        }
+
+        public HashMap<String, Object> getFrame() {
+            return frame;
+        }
+
+        public void setFrame(HashMap<String, Object> frame) {
+            this.frame = frame;
+        }
+
+        public long getRetentionSeconds() {
+            return retentionSeconds;
+        }
+
+        public void setRetentionSeconds(long retentionSeconds) {
+            this.retentionSeconds = retentionSeconds;
+        }
+
+        private HashMap<String, Object> frame;
+        private long retentionSeconds;
+    }
+
+    public static ClusterEvent messagesPosted(String bus, String channel, List<PostedMessage> messages) {
+        ClusterEvent event = new ClusterEvent();
+        event.type = Type.MESSAGES_POSTED;
+        event.bus = bus;
+        event.channel = channel;
+        event.messages = messages;
+        return event;
+    }
+
+    /**
+     * @param entityType the configuration entity type's simple class name, e.g. BusConfig
+     */
+    public static ClusterEvent configChanged(String entityType, List<String> entityNames) {
+        ClusterEvent event = new ClusterEvent();
+        event.type = Type.CONFIG_CHANGED;
+        event.entityType = entityType;
+        event.entityNames = entityNames;
+        return event;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getBus() {
+        return bus;
+    }
+
+    public void setBus(String bus) {
+        this.bus = bus;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public void setChannel(String channel) {
+        this.channel = channel;
+    }
+
+    public List<PostedMessage> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<PostedMessage> messages) {
+        this.messages = messages;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    public List<String> getEntityNames() {
+        return entityNames;
+    }
+
+    public void setEntityNames(List<String> entityNames) {
+        this.entityNames = entityNames;
+    }
+
+    // - PRIVATE
+
+    private Type type;
+    private String bus;
+    private String channel;
+    private List<PostedMessage> messages;
+    private String entityType;
+    private List<String> entityNames;
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.cluster;
+
+import com.janrain.message.AbstractNamedMap;
+
+/**
+ * A server instance registered for cluster peer discovery, named by the address its peers connect to.
+ */
+public class ClusterNode extends AbstractNamedMap {
+
+    // - PUBLIC
+
+    public static final String HEARTBEAT = "heartbeat";
+
+    @SuppressWarnings({"UnusedDeclaration"}) // instantiation through reflection
+    public ClusterNode() { }
+
+    public ClusterNode(String address, long heartbeatMillis) {
+        this.address = address;
+        put(HEARTBEAT, Long.toString(heartbeatMillis));
+    }
+
+    @Override
+    public void setName(String name) {
+        this.address = name;
+    }
+
+    @Override
+    public String getName() {
+        return address;
+    }
+
+    public long getHeartbeat() {
+        try {
+            return Long.parseLong(get(HEARTBEAT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // - PRIVATE
+
+    private String address;
+}
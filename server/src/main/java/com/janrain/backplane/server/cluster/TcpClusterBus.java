@@ -0,0 +1,537 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.cluster;
+
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.crypto.HmacVerifier;
+import com.janrain.message.Json;
+import com.janrain.simpledb.SuperSimpleDB;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import java.io.*;
+import java.net.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ClusterBus over direct TCP connections between all server instances.
+ *
+ * Each instance listens on the BP_CLUSTER_PORT system property's port, and sends to each of its peers
+ * over one outbound connection, fed by a bounded queue: publishing never blocks, and events for a peer that
+ * can't keep up or is unreachable are dropped once its queue is full. Queued events are sent in batches,
+ * one line per batch: the batch's HMAC signature with the BP_CLUSTER_SECRET shared by all instances, a space,
+ * and the batch's JSON. Connections sending a batch with an invalid signature are closed, and batches older than
+ * MAX_BATCH_AGE_MILLIS are discarded, so that only peers knowing the secret can publish events, and only recently.
+ * The port is not otherwise protected, and must be firewalled from everything but the other instances;
+ * still, at most MAX_INBOUND_CONNECTIONS connections are served at a time, lines are read up to MAX_LINE_CHARS
+ * characters, and connections that don't send a valid batch within AUTH_TIMEOUT_MILLIS are closed, so that
+ * whatever can reach the port cannot exhaust threads or memory before being authenticated.
+ *
+ * Sends that don't complete within SEND_TIMEOUT_MILLIS, e.g. to a peer that stopped reading, have their connection
+ * closed by a watchdog, and the peer is reconnected to.
+ *
+ * The port is bound to the BP_CLUSTER_BIND_ADDRESS host if set, otherwise to BP_CLUSTER_ADDRESS' host if set,
+ * otherwise to the local host's address; never to all interfaces.
+ *
+ * Peers are the BP_CLUSTER_PEERS system property's comma separated host:port list if set, otherwise the instances
+ * registered in SimpleDB: each instance registers the address set by BP_CLUSTER_ADDRESS (default: the local host's
+ * address and the cluster port) and refreshes its heartbeat periodically.
+ *
+ * The bus is disabled if BP_CLUSTER_PORT or BP_CLUSTER_SECRET is not set.
+ */
+public class TcpClusterBus implements ClusterBus {
+
+    // - PUBLIC
+
+    public static final String PORT_PROPERTY = "BP_CLUSTER_PORT";
+    public static final String PEERS_PROPERTY = "BP_CLUSTER_PEERS";
+    public static final String ADDRESS_PROPERTY = "BP_CLUSTER_ADDRESS";
+    public static final String BIND_ADDRESS_PROPERTY = "BP_CLUSTER_BIND_ADDRESS";
+    public static final String SECRET_PROPERTY = "BP_CLUSTER_SECRET";
+
+    @Override
+    public boolean isEnabled() {
+        return serverSocket != null;
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (! isEnabled()) return;
+        for (Peer peer : peers.values()) {
+            if (! peer.queue.offer(event)) {
+                dropped.mark();
+            }
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void shutdown() {
+        if (! isEnabled()) return;
+        discovery.shutdownNow();
+        watchdog.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing cluster server socket: " + e.getMessage());
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        if (StringUtils.isBlank(System.getProperty(PEERS_PROPERTY))) {
+            try {
+                superSimpleDb.delete(bpConfig.getTableNameForType(ClusterNode.class), address);
+            } catch (Exception e) {
+                logger.warn("Error unregistering cluster node " + address + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public Set<String> getPeers() {
+        return new TreeSet<String>(peers.keySet());
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(TcpClusterBus.class);
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int MAX_BATCH = 500;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long SEND_TIMEOUT_MILLIS = 5000L;
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1000L;
+    private static final int MAX_INBOUND_CONNECTIONS = 16;
+    // a full batch of posts with large frames, with room to spare; larger batches are split by the sender
+    private static final int MAX_LINE_CHARS = 4 * 1024 * 1024;
+    private static final int AUTH_TIMEOUT_MILLIS = 10000;
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+    private static final long DISCOVERY_INTERVAL_SECONDS = 30;
+    private static final long HEARTBEAT_EXPIRY_MILLIS = 3 * DISCOVERY_INTERVAL_SECONDS * 1000L;
+    // bounds the replay of captured batches; instance clocks are expected to be synchronized well within it
+    private static final long MAX_BATCH_AGE_MILLIS = 60000L;
+
+    @Inject
+    private SuperSimpleDB superSimpleDb;
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private volatile Listener listener;
+    private volatile ServerSocket serverSocket;
+    private SecretKey clusterKey;
+    private String address;
+    private ScheduledExecutorService discovery;
+    private ScheduledExecutorService watchdog;
+    private final Semaphore inboundConnections = new Semaphore(MAX_INBOUND_CONNECTIONS);
+    private long sendTimeoutMillis = SEND_TIMEOUT_MILLIS;
+
+    private final MeterMetric sent =
+            Metrics.newMeter(TcpClusterBus.class, "cluster_events_sent", "events", TimeUnit.MINUTES);
+    private final MeterMetric received =
+            Metrics.newMeter(TcpClusterBus.class, "cluster_events_received", "events", TimeUnit.MINUTES);
+    private final MeterMetric dropped =
+            Metrics.newMeter(TcpClusterBus.class, "cluster_events_dropped", "events", TimeUnit.MINUTES);
+    private final MeterMetric rejected =
+            Metrics.newMeter(TcpClusterBus.class, "cluster_batches_rejected", "batches", TimeUnit.MINUTES);
+
+    /**
+     * The events sent in one line.
+     */
+    public static class Batch {
+
+        public String getNode() {
+            return node;
+        }
+
+        public void setNode(String node) {
+            this.node = node;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public void setSent(long sent) {
+            this.sent = sent;
+        }
+
+        public List<ClusterEvent> getEvents() {
+            return events;
+        }
+
+        public void setEvents(List<ClusterEvent> events) {
+            this.events = events;
+        }
+
+        private String node;
+        private long sent;
+        private List<ClusterEvent> events;
+    }
+
+    /**
+     * Outbound connection to a peer, with its own queue and sender thread.
+     */
+    private class Peer implements Runnable {
+
+        private Peer(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            long backoff = 0;
+            long retryAt = 0;
+            List<ClusterEvent> batch = new ArrayList<ClusterEvent>();
+            while (! closed) {
+                try {
+                    ClusterEvent first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    if (System.currentTimeMillis() < retryAt) {
+                        // peer unreachable: drop events meanwhile rather than deliver them late
+                        dropped.mark(batch.size());
+                        continue;
+                    }
+                    sent.mark(send(batch));
+                    backoff = 0;
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    logger.warn("Error sending " + batch.size() + " cluster events to " + address + ": " + e.getMessage());
+                    dropped.mark(batch.size());
+                    disconnect();
+                    backoff = Math.min(Math.max(backoff * 2, 1000L), MAX_BACKOFF_MILLIS);
+                    retryAt = System.currentTimeMillis() + backoff;
+                } finally {
+                    batch.clear();
+                }
+            }
+            disconnect();
+        }
+
+        /**
+         * Sends the events in one line, or split in several if too long.
+         *
+         * @return the number of events sent, without those dropped for being too large on their own
+         */
+        private int send(List<ClusterEvent> events) throws IOException {
+            Batch batch = new Batch();
+            batch.setNode(nodeId);
+            batch.setSent(System.currentTimeMillis());
+            batch.setEvents(events);
+            String json = Json.writeString(batch);
+            String signature;
+            try {
+                signature = HmacVerifier.HMAC_SHA256.signData(clusterKey, json);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error signing cluster events: " + e.getMessage(), e);
+            }
+            if (signature.length() + 1 + json.length() > MAX_LINE_CHARS) {
+                if (events.size() == 1) {
+                    logger.warn("Dropped cluster event " + events.get(0).getType() + " for " + address + ", larger than " + MAX_LINE_CHARS + " characters");
+                    dropped.mark();
+                    return 0;
+                }
+                int half = events.size() / 2;
+                return send(events.subList(0, half)) + send(events.subList(half, events.size()));
+            }
+
+            if (socket == null) {
+                String[] hostPort = address.split(":");
+                Socket connecting = new Socket();
+                connecting.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), CONNECT_TIMEOUT_MILLIS);
+                connecting.setTcpNoDelay(true);
+                socket = connecting;
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            }
+            // socket timeouts only bound reads: the watchdog closes the socket if the writes block for too long
+            sendStarted = System.currentTimeMillis();
+            try {
+                out.write(signature);
+                out.write(' ');
+                out.write(json);
+                out.write('\n');
+                out.flush();
+            } finally {
+                sendStarted = 0;
+            }
+            return events.size();
+        }
+
+        /**
+         * Closes the connection if the current send has been blocked for longer than the timeout;
+         * the sender thread then fails, and reconnects.
+         */
+        private void checkSendTimeout(long now) {
+            long started = sendStarted;
+            Socket current = socket;
+            if (started == 0 || current == null || now - started < sendTimeoutMillis) return;
+            logger.warn("Sending cluster events to " + address + " timed out after " + (now - started) + " ms, closing connection");
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.debug("Error closing connection to " + address + ": " + e.getMessage());
+            }
+        }
+
+        private void disconnect() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Error closing connection to " + address + ": " + e.getMessage());
+            }
+            socket = null;
+            out = null;
+        }
+
+        private void close() {
+            closed = true;
+            thread.interrupt();
+        }
+
+        private final String address;
+        private final BlockingQueue<ClusterEvent> queue = new ArrayBlockingQueue<ClusterEvent>(QUEUE_CAPACITY);
+        private Thread thread;
+        private volatile boolean closed = false;
+        // read by the watchdog
+        private volatile Socket socket;
+        private volatile long sendStarted;
+        private Writer out;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        String port = System.getProperty(PORT_PROPERTY);
+        if (StringUtils.isBlank(port)) {
+            logger.info("Cluster bus disabled, " + PORT_PROPERTY + " not set");
+            return;
+        }
+        String secret = System.getProperty(SECRET_PROPERTY);
+        if (StringUtils.isBlank(secret)) {
+            logger.error("Cluster bus disabled, " + SECRET_PROPERTY + " not set");
+            return;
+        }
+        clusterKey = new SecretKeySpec(secret.getBytes("UTF-8"), HmacVerifier.HMAC_SHA256.getAlgorithm());
+        address = System.getProperty(ADDRESS_PROPERTY);
+        serverSocket = new ServerSocket(Integer.parseInt(port.trim()), 0, bindAddress(address));
+        if (StringUtils.isBlank(address)) {
+            address = serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+        }
+        daemon("cluster-accept", new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }).start();
+
+        discovery = Executors.newSingleThreadScheduledExecutor();
+        discovery.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updatePeers(discoverPeers());
+                } catch (Exception e) {
+                    logger.error("Error discovering cluster peers: " + e.getMessage(), e);
+                }
+            }
+        }, 0, DISCOVERY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Peer peer : peers.values()) {
+                    peer.checkSendTimeout(now);
+                }
+            }
+        }, WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Cluster bus listening on " + address);
+    }
+
+    /**
+     * @param address the configured cluster address (host:port), or null
+     * @return the address to listen on
+     */
+    private static InetAddress bindAddress(String address) throws UnknownHostException {
+        String bind = System.getProperty(BIND_ADDRESS_PROPERTY);
+        if (StringUtils.isBlank(bind) && StringUtils.isNotBlank(address)) {
+            bind = address.substring(0, address.lastIndexOf(':'));
+        }
+        return StringUtils.isBlank(bind) ? InetAddress.getLocalHost() : InetAddress.getByName(bind.trim());
+    }
+
+    private Set<String> discoverPeers() throws Exception {
+        Set<String> discovered = new HashSet<String>();
+        String staticPeers = System.getProperty(PEERS_PROPERTY);
+        if (StringUtils.isNotBlank(staticPeers)) {
+            for (String peer : staticPeers.split(",")) {
+                if (StringUtils.isNotBlank(peer)) discovered.add(peer.trim());
+            }
+        } else {
+            String table = bpConfig.getTableNameForType(ClusterNode.class);
+            superSimpleDb.checkDomain(table);
+            long now = System.currentTimeMillis();
+            superSimpleDb.store(table, ClusterNode.class, new ClusterNode(address, now));
+            for (ClusterNode node : superSimpleDb.retrieve(table, ClusterNode.class)) {
+                if (now - node.getHeartbeat() < HEARTBEAT_EXPIRY_MILLIS) {
+                    discovered.add(node.getName());
+                }
+            }
+        }
+        discovered.remove(address);
+        return discovered;
+    }
+
+    private void updatePeers(Set<String> addresses) {
+        for (String peerAddress : addresses) {
+            if (! peers.containsKey(peerAddress)) {
+                Peer peer = new Peer(peerAddress);
+                peer.thread = daemon("cluster-peer-" + peerAddress, peer);
+                peers.put(peerAddress, peer);
+                peer.thread.start();
+                logger.info("Cluster peer added: " + peerAddress);
+            }
+        }
+        for (Iterator<Map.Entry<String, Peer>> it = peers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Peer> peer = it.next();
+            if (! addresses.contains(peer.getKey())) {
+                it.remove();
+                peer.getValue().close();
+                logger.info("Cluster peer removed: " + peer.getKey());
+            }
+        }
+    }
+
+    private void accept() {
+        while (! serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (! inboundConnections.tryAcquire()) {
+                    rejected.mark();
+                    logger.error("Too many cluster connections, closing connection from " + socket.getRemoteSocketAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                daemon("cluster-receive-" + socket.getRemoteSocketAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        receive(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                if (! serverSocket.isClosed()) {
+                    logger.error("Error accepting cluster connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        try {
+            // until the first valid batch, which authenticates the connection
+            socket.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+            Reader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = readLine(in)) != null) {
+                int space = line.indexOf(' ');
+                String json = space > 0 ? line.substring(space + 1) : null;
+                if (json == null || ! HmacVerifier.HMAC_SHA256.verifySignature(clusterKey, json, line.substring(0, space))) {
+                    rejected.mark();
+                    logger.error("Invalid cluster batch signature from " + socket.getRemoteSocketAddress() + ", closing connection");
+                    return;
+                }
+                socket.setSoTimeout(0);
+                Batch batch = Json.read(json, Batch.class);
+                if (System.currentTimeMillis() - batch.getSent() > MAX_BATCH_AGE_MILLIS) {
+                    rejected.mark();
+                    logger.warn("Discarded cluster batch sent at " + batch.getSent() + " from " + socket.getRemoteSocketAddress());
+                    continue;
+                }
+                if (nodeId.equals(batch.getNode()) || batch.getEvents() == null) continue;
+                received.mark(batch.getEvents().size());
+                Listener current = listener;
+                if (current == null) continue;
+                for (ClusterEvent event : batch.getEvents()) {
+                    try {
+                        current.onEvent(event);
+                    } catch (Exception e) {
+                        logger.error("Error handling cluster event " + event.getType() + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        } catch (LineTooLongException e) {
+            rejected.mark();
+            logger.error("Cluster batch longer than " + MAX_LINE_CHARS + " characters from " + socket.getRemoteSocketAddress() + ", closing connection");
+        } catch (IOException e) {
+            logger.warn("Cluster connection from " + socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            logger.error("Error verifying cluster batch from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+            inboundConnections.release();
+        }
+    }
+
+    private static class LineTooLongException extends IOException { }
+
+    /**
+     * @return the next line, without its terminator, or null at the end of the stream
+     * @throws LineTooLongException if the line is longer than MAX_LINE_CHARS, before reading more of it
+     */
+    private static String readLine(Reader in) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (buffer.length() >= MAX_LINE_CHARS) throw new LineTooLongException();
+            buffer.append((char) c);
+        }
+        if (c == -1 && buffer.length() == 0) return null;
+        int length = buffer.length();
+        return length > 0 && buffer.charAt(length - 1) == '\r' ? buffer.substring(0, length - 1) : buffer.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing cluster connection: " + e.getMessage());
+        }
+    }
+
+    private static Thread daemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
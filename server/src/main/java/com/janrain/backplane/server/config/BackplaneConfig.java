@@ -17,8 +17,11 @@
 package com.janrain.backplane.server.config;
 
 import com.janrain.backplane.server.ApplicationException;
+import com.janrain.backplane.server.BackplaneMessage;
+import com.janrain.backplane.server.ChannelHead;
 import com.janrain.backplane.server.metrics.MetricMessage;
 import com.janrain.backplane.server.metrics.MetricsAccumulator;
+import com.janrain.blob.BlobStore;
 import com.janrain.crypto.HmacHashUtils;
 import com.janrain.message.AbstractMessage;
 import com.janrain.message.AbstractNamedMap;
@@ -26,6 +29,7 @@ import com.janrain.message.NamedMap;
 import com.janrain.simpledb.SimpleDBException;
 import com.janrain.simpledb.SuperSimpleDB;
 import com.janrain.util.AwsUtility;
+import com.janrain.util.Iso8601;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.TimerMetric;
 import org.apache.commons.lang.StringUtils;
@@ -38,7 +42,6 @@ import javax.inject.Inject;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -61,10 +64,6 @@ public class BackplaneConfig {
 
     public enum BUS_PERMISSION { GETALL, POST, GETPAYLOAD, IDENTITY }
 
-    public static final SimpleDateFormat ISO8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'") {{
-        setTimeZone(TimeZone.getTimeZone("GMT"));
-    }};
-
     public void checkAdminAuth(String user, String password) throws AuthException {
         checkAuth(getAdminAuthTableName(), user, password);
     }
@@ -105,6 +104,13 @@ public class BackplaneConfig {
         return config;
     }
 
+    /**
+     * Discards the cached server configuration, so that the next read gets the current one.
+     */
+    public synchronized void invalidateCachedConfig() {
+        bpServerConfigCache = null;
+    }
+
 
     /**
 	 * @return the debugMode
@@ -123,13 +129,171 @@ public class BackplaneConfig {
         return max == null ? BackplaneConfig.BP_MAX_MESSAGES_DEFAULT : max;
     }
 
+    /**
+     * @return the format in which new messages are stored, V1 unless configured otherwise
+     * @throws SimpleDBException
+     */
+    public BackplaneMessage.StorageFormat getMessageStorageFormat() throws SimpleDBException {
+        String format = cachedGet(BpServerProperty.MESSAGE_STORAGE_FORMAT);
+        return StringUtils.isBlank(format) ? BackplaneMessage.StorageFormat.V1 : BackplaneMessage.StorageFormat.valueOf("V" + format.trim());
+    }
+
+    /**
+     * @return the payload size above which payloads are offloaded to the blob store, 0 (disabled) unless configured
+     * @throws SimpleDBException
+     */
+    public int getPayloadOffloadThresholdBytes() throws SimpleDBException {
+        String threshold = cachedGet(BpServerProperty.PAYLOAD_OFFLOAD_THRESHOLD_BYTES);
+        return StringUtils.isBlank(threshold) ? 0 : Integer.valueOf(threshold.trim());
+    }
+
+    /**
+     * @return the maximum time a poll request may be parked waiting for new messages
+     * @throws SimpleDBException
+     */
+    public int getLongPollMaxSeconds() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.LONG_POLL_MAX_SECONDS);
+        return StringUtils.isBlank(max) ? BP_LONG_POLL_MAX_SECONDS_DEFAULT : Integer.valueOf(max.trim());
+    }
+
+    /**
+     * @return the time after which event streams are closed, for clients to reconnect
+     * @throws SimpleDBException
+     */
+    public int getStreamMaxSeconds() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.STREAM_MAX_SECONDS);
+        return StringUtils.isBlank(max) ? BP_STREAM_MAX_SECONDS_DEFAULT : Integer.valueOf(max.trim());
+    }
+
+    /**
+     * @return the maximum number of event streams open at once on a server instance
+     * @throws SimpleDBException
+     */
+    public int getStreamMaxConnections() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.STREAM_MAX_CONNECTIONS);
+        return StringUtils.isBlank(max) ? BP_STREAM_MAX_CONNECTIONS_DEFAULT : Integer.valueOf(max.trim());
+    }
+
+    /**
+     * @return the size limit of the in-memory message cache, 0 (disabled) unless configured
+     * @throws SimpleDBException
+     */
+    public long getMessageCacheMaxBytes() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.MESSAGE_CACHE_MAX_BYTES);
+        return StringUtils.isBlank(max) ? 0 : Long.valueOf(max.trim());
+    }
+
+    /**
+     * @return the time after which cached channel and bus messages are read again from SimpleDB
+     * @throws SimpleDBException
+     */
+    public int getMessageCacheRefillSeconds() throws SimpleDBException {
+        String refill = cachedGet(BpServerProperty.MESSAGE_CACHE_REFILL_SECONDS);
+        return StringUtils.isBlank(refill) ? BP_MESSAGE_CACHE_REFILL_SECONDS_DEFAULT : Integer.valueOf(refill.trim());
+    }
+
+    /**
+     * @return the time for which channel and bus heads are cached, before they are read again from SimpleDB
+     * @throws SimpleDBException
+     */
+    public int getChannelHeadCacheSeconds() throws SimpleDBException {
+        String age = cachedGet(BpServerProperty.CHANNEL_HEAD_CACHE_SECONDS);
+        return StringUtils.isBlank(age) ? BP_CHANNEL_HEAD_CACHE_SECONDS_DEFAULT : Integer.valueOf(age.trim());
+    }
+
+    /**
+     * @return the maximum number of messages returned by one bus GET, at most BUS_GET_MAX_MESSAGES_LIMIT
+     * @throws SimpleDBException
+     */
+    public int getBusGetMaxMessages() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.BUS_GET_MAX_MESSAGES);
+        int value = StringUtils.isBlank(max) ? BP_BUS_GET_MAX_MESSAGES_DEFAULT : Integer.valueOf(max.trim());
+        return Math.max(1, Math.min(value, BUS_GET_MAX_MESSAGES_LIMIT));
+    }
+
+    /**
+     * @return the time for which bus GET results are reused by identical bus GETs, 0 if they are not,
+     * at most BUS_GET_MICRO_CACHE_MILLIS_LIMIT
+     * @throws SimpleDBException
+     */
+    public long getBusGetMicroCacheMillis() throws SimpleDBException {
+        String millis = cachedGet(BpServerProperty.BUS_GET_MICRO_CACHE_MILLIS);
+        long value = StringUtils.isBlank(millis) ? BP_BUS_GET_MICRO_CACHE_MILLIS_DEFAULT : Long.valueOf(millis.trim());
+        return Math.max(0, Math.min(value, BUS_GET_MICRO_CACHE_MILLIS_LIMIT));
+    }
+
+    /**
+     * @return the time after which the snapshot of users and bus configurations used for authorization is reloaded
+     * @throws SimpleDBException
+     */
+    public int getAuthSnapshotSeconds() throws SimpleDBException {
+        String age = cachedGet(BpServerProperty.AUTH_SNAPSHOT_SECONDS);
+        return StringUtils.isBlank(age) ? BP_AUTH_SNAPSHOT_SECONDS_DEFAULT : Integer.valueOf(age.trim());
+    }
+
+    /**
+     * @return the time for which verified bus user credentials are not verified again, 0 to verify them on every request
+     * @throws SimpleDBException
+     */
+    public int getAuthCacheSeconds() throws SimpleDBException {
+        String age = cachedGet(BpServerProperty.AUTH_CACHE_SECONDS);
+        return StringUtils.isBlank(age) ? BP_AUTH_CACHE_SECONDS_DEFAULT : Integer.valueOf(age.trim());
+    }
+
+    /**
+     * @return the secret that bus access tokens are signed with, or null if access tokens are disabled
+     * @throws SimpleDBException
+     */
+    public String getTokenSigningKey() throws SimpleDBException {
+        String key = cachedGet(BpServerProperty.TOKEN_SIGNING_KEY);
+        return StringUtils.isBlank(key) ? null : key.trim();
+    }
+
+    /**
+     * @return the time for which bus access tokens are valid
+     * @throws SimpleDBException
+     */
+    public int getTokenTtlSeconds() throws SimpleDBException {
+        String ttl = cachedGet(BpServerProperty.TOKEN_TTL_SECONDS);
+        return StringUtils.isBlank(ttl) ? BP_TOKEN_TTL_SECONDS_DEFAULT : Integer.valueOf(ttl.trim());
+    }
+
+    /**
+     * @return the max number of failed requests from one client within a minute, before the client is blocked; 0 to never block
+     * @throws SimpleDBException
+     */
+    public int getClientFailuresMax() throws SimpleDBException {
+        String max = cachedGet(BpServerProperty.CLIENT_FAILURES_MAX);
+        return StringUtils.isBlank(max) ? BP_CLIENT_FAILURES_MAX_DEFAULT : Integer.valueOf(max.trim());
+    }
+
+    /**
+     * @return the time for which requests from a blocked client are rejected
+     * @throws SimpleDBException
+     */
+    public int getClientBlockSeconds() throws SimpleDBException {
+        String block = cachedGet(BpServerProperty.CLIENT_BLOCK_SECONDS);
+        return StringUtils.isBlank(block) ? BP_CLIENT_BLOCK_SECONDS_DEFAULT : Integer.valueOf(block.trim());
+    }
+
+    /**
+     * @return the request header whose last entry identifies the client, as set by the load balancer
+     * @throws SimpleDBException
+     */
+    public String getClientAddressHeader() throws SimpleDBException {
+        String header = cachedGet(BpServerProperty.CLIENT_ADDRESS_HEADER);
+        return StringUtils.isBlank(header) ? BP_CLIENT_ADDRESS_HEADER_DEFAULT : header.trim();
+    }
+
+    /**
+     * @return the debug mode of the last read server configuration, without reading it again; false until it is first read
+     */
+    public boolean isCachedDebugMode() {
+        return debugMode;
+    }
+
     public Exception getDebugException(Exception e) {
-        try {
-            return isDebugMode() ? e : null;
-        } catch (SimpleDBException sdbe) {
-            logger.error("Error getting debug mode", sdbe); // shouldn't happen
-            return e;
-        }
+        return isCachedDebugMode() ? e : null;
     }
 
     public String getInstanceId() {
@@ -185,6 +349,25 @@ public class BackplaneConfig {
     private static final String BP_METRICS_TABLE_SUFFIX = "_metrics";
     private static final String BP_METRIC_AUTH_TABLE_SUFFIX = "_bpMetricAuth";
     private static final long BP_MAX_MESSAGES_DEFAULT = 100;
+    private static final int BP_LONG_POLL_MAX_SECONDS_DEFAULT = 25;
+    private static final int BP_STREAM_MAX_SECONDS_DEFAULT = 300;
+    private static final int BP_STREAM_MAX_CONNECTIONS_DEFAULT = 5000;
+    private static final int BP_MESSAGE_CACHE_REFILL_SECONDS_DEFAULT = 5;
+    private static final int BP_CHANNEL_HEAD_CACHE_SECONDS_DEFAULT = 2;
+    private static final int BP_BUS_GET_MAX_MESSAGES_DEFAULT = 1000;
+    // one more is selected to tell if there are more, and SimpleDB selects return at most 2500 items
+    private static final int BUS_GET_MAX_MESSAGES_LIMIT = 2499;
+    private static final long BP_BUS_GET_MICRO_CACHE_MILLIS_DEFAULT = 0;
+    private static final int BP_AUTH_SNAPSHOT_SECONDS_DEFAULT = 60;
+    private static final int BP_AUTH_CACHE_SECONDS_DEFAULT = 30;
+    private static final int BP_TOKEN_TTL_SECONDS_DEFAULT = 300;
+    private static final int BP_CLIENT_FAILURES_MAX_DEFAULT = 100;
+    private static final int BP_CLIENT_BLOCK_SECONDS_DEFAULT = 60;
+    private static final String BP_CLIENT_ADDRESS_HEADER_DEFAULT = "X-Forwarded-For";
+    // results are not checked against messages posted through other server instances
+    private static final long BUS_GET_MICRO_CACHE_MILLIS_LIMIT = 1000;
+    // blobs older than the longest retention time by this much are not referenced by any message
+    private static final long UNREFERENCED_BLOB_GRACE_MILLIS = TimeUnit.DAYS.toMillis(1);
 
     private final String bpInstanceId;
     private ScheduledExecutorService cleanup;
@@ -199,7 +382,24 @@ public class BackplaneConfig {
         DEBUG_MODE,
         CONFIG_CACHE_AGE_SECONDS,
         CLEANUP_INTERVAL_MINUTES,
-        DEFAULT_MESSAGES_MAX
+        DEFAULT_MESSAGES_MAX,
+        MESSAGE_STORAGE_FORMAT,
+        PAYLOAD_OFFLOAD_THRESHOLD_BYTES,
+        LONG_POLL_MAX_SECONDS,
+        STREAM_MAX_SECONDS,
+        STREAM_MAX_CONNECTIONS,
+        MESSAGE_CACHE_MAX_BYTES,
+        MESSAGE_CACHE_REFILL_SECONDS,
+        CHANNEL_HEAD_CACHE_SECONDS,
+        BUS_GET_MAX_MESSAGES,
+        BUS_GET_MICRO_CACHE_MILLIS,
+        AUTH_SNAPSHOT_SECONDS,
+        AUTH_CACHE_SECONDS,
+        TOKEN_SIGNING_KEY,
+        TOKEN_TTL_SECONDS,
+        CLIENT_FAILURES_MAX,
+        CLIENT_BLOCK_SECONDS,
+        CLIENT_ADDRESS_HEADER
     }
 
     @SuppressWarnings({"UnusedDeclaration"})
@@ -302,18 +502,34 @@ public class BackplaneConfig {
         try {
             logger.info("Backplane message cleanup task started.");
             String messagesTable = getMessagesTableName();
+            String headsTable = getTableNameForType(ChannelHead.class);
+            superSimpleDb.checkDomain(headsTable);
+            long maxRetentionSeconds = 0;
             for(BusConfig busConfig : superSimpleDb.retrieve(getTableNameForType(BusConfig.class), BusConfig.class)) {
+                long busRetentionSeconds = Math.max(busConfig.getRetentionTimeSeconds(false), busConfig.getRetentionTimeSeconds(true));
+                maxRetentionSeconds = Math.max(maxRetentionSeconds, busRetentionSeconds);
                 try {
                     // non-sticky
-                    superSimpleDb.deleteWhere(messagesTable, getExpiredMessagesClause(busConfig.get(BUS_NAME), false, busConfig.get(RETENTION_TIME_SECONDS)));
+                    deleteMessagesWhere(messagesTable, getExpiredMessagesClause(busConfig.get(BUS_NAME), false, busConfig.get(RETENTION_TIME_SECONDS)));
                     // sticky
-                    superSimpleDb.deleteWhere(messagesTable, getExpiredMessagesClause(busConfig.get(BUS_NAME), true, busConfig.get(RETENTION_STICKY_TIME_SECONDS)));
+                    deleteMessagesWhere(messagesTable, getExpiredMessagesClause(busConfig.get(BUS_NAME), true, busConfig.get(RETENTION_STICKY_TIME_SECONDS)));
+                    // packed (v2) format
+                    deleteMessagesWhere(messagesTable, getExpiredBucketsClause(busConfig.get(BUS_NAME)));
+                    // heads of channels where all messages expired
+                    superSimpleDb.deleteWhere(headsTable, getIdleHeadsClause(busConfig.get(BUS_NAME), busRetentionSeconds));
 
                 } catch (SimpleDBException sdbe) {
                     logger.error("Error cleaning up expired messages on bus "  + busConfig.get(BUS_NAME) + ", " + sdbe.getMessage(), sdbe);
                 }
             }
 
+            try {
+                // blobs whose messages failed to store, or that failed to be deleted with their messages
+                blobStore.deleteStoredBefore(System.currentTimeMillis() - maxRetentionSeconds * 1000 - UNREFERENCED_BLOB_GRACE_MILLIS);
+            } catch (IOException e) {
+                logger.error("Error while removing unreferenced blobs, " + e.getMessage(), e);
+            }
+
             try {
                 // remove old metrics
                 superSimpleDb.deleteWhere(getMetricsTableName(), getExpiredMetricClause());
@@ -329,6 +545,22 @@ public class BackplaneConfig {
         }
     }
 
+    /**
+     * Deletes the messages matching the where clause, and then their offloaded payloads.
+     */
+    private void deleteMessagesWhere(String messagesTable, String whereClause) throws SimpleDBException {
+        List<BackplaneMessage> offloaded = superSimpleDb.retrieveWhere(messagesTable, BackplaneMessage.class,
+            whereClause + " AND " + BackplaneMessage.PAYLOAD_REF_ATTR + " > ''", true);
+        superSimpleDb.deleteWhere(messagesTable, whereClause);
+        for (BackplaneMessage message : offloaded) {
+            try {
+                blobStore.delete(message.getPayloadReference());
+            } catch (Exception e) {
+                logger.warn("Error deleting payload of message " + message.getIdValue() + ", " + e.getMessage());
+            }
+        }
+    }
+
     private String getExpiredMetricClause() {
         int interval = 0;
         try {
@@ -336,10 +568,8 @@ public class BackplaneConfig {
         } catch (SimpleDBException e) {
             throw new RuntimeException("Error getting server property " + BpServerProperty.CLEANUP_INTERVAL_MINUTES, e);
         }
-        Calendar now = Calendar.getInstance();
         // Cleanup metrics that may be lingering due to a shutdown server instance
-        now.roll(Calendar.MINUTE, -(interval+2));
-        return "time < '" + ISO8601.format(now.getTime()) + "'";
+        return "time < '" + Iso8601.format(System.currentTimeMillis() - (interval + 2) * 60000L) + "'";
     }
 
 
@@ -349,10 +579,20 @@ public class BackplaneConfig {
             // http://practicalcloudcomputing.com/post/722621724/simpledb-essentials-for-high-performance-users-part-2
             STICKY.getFieldName() + " = '" + Boolean.toString(sticky) + "' AND " +
             ID.getFieldName() + " < '" +
-            ISO8601.format(new Date(System.currentTimeMillis() - Long.valueOf(retentionTimeSeconds) * 1000))
+            Iso8601.format(System.currentTimeMillis() - Long.valueOf(retentionTimeSeconds) * 1000)
             + "'";
     }
 
+    private String getIdleHeadsClause(String busId, long retentionSeconds) {
+        return ChannelHead.BUS + " = '" + busId + "' AND " +
+            ChannelHead.UPDATED + " < '" + Iso8601.format(System.currentTimeMillis() - retentionSeconds * 1000) + "'";
+    }
+
+    private String getExpiredBucketsClause(String busId) {
+        return BUS.getFieldName() + " = '" + busId + "' AND " +
+            BackplaneMessage.EXPIRES_ATTR + " < '" + BackplaneMessage.expiryBucket(System.currentTimeMillis()) + "'";
+    }
+
     @Inject
     @SuppressWarnings({"UnusedDeclaration"})
     private SuperSimpleDB superSimpleDb;
@@ -360,8 +600,16 @@ public class BackplaneConfig {
     @Inject
     private MetricsAccumulator metricAccumulator;
 
+    @Inject
+    private BlobStore blobStore;
+
     private Pair<BpServerConfigMap,Long> bpServerConfigCache;
 
+    /**
+     * DEBUG_MODE of the cached server configuration, for error paths that should not read the configuration.
+     */
+    private volatile boolean debugMode;
+
     private String cachedGet(BpServerProperty property) throws SimpleDBException {
         Pair<BpServerConfigMap,Long> result = bpServerConfigCache;
         Long maxCacheAge = getMaxCacheAge();
@@ -373,6 +621,7 @@ public class BackplaneConfig {
                     result.right + maxCacheAge < System.currentTimeMillis() ) {
                     result = new Pair<BpServerConfigMap, Long>(superSimpleDb.retrieve(getBpServerConfigTableName(), BpServerConfigMap.class, BP_CONFIG_ENTRY_NAME), System.currentTimeMillis());
                     bpServerConfigCache = result;
+                    debugMode = result.left != null && Boolean.valueOf(result.left.get(BpServerProperty.DEBUG_MODE.name()));
                 }
             }
         }
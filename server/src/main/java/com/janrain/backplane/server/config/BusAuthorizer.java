@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.config;
+
+import com.janrain.crypto.HmacHashUtils;
+import com.janrain.simpledb.SimpleDBException;
+import com.janrain.simpledb.SuperSimpleDB;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import javax.inject.Inject;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authenticates bus users and checks their bus permissions against an in-memory snapshot of all users
+ * and bus configurations, with each bus' permissions compiled into EnumSets.
+ *
+ * The snapshot is read from SimpleDB when first needed, reloaded by one request once it is
+ * older than AUTH_SNAPSHOT_SECONDS (the others keep using it meanwhile), and discarded when the configuration is changed through this
+ * or (with the cluster bus) another server instance. Users and buses missing from the snapshot make it
+ * reload, at most once per MIN_MISS_RELOAD_MILLIS, so that ones just created elsewhere are found.
+ *
+ * Verified credentials are remembered for AUTH_CACHE_SECONDS, by a digest of the Authorization header,
+ * as long as the user's password hash is unchanged.
+ */
+public class BusAuthorizer {
+
+    // - PUBLIC
+
+    /**
+     * @return the bus configuration, if the Basic auth credentials are granted the permission on the bus
+     * @throws AuthException with the reason the request is not authorized
+     */
+    public BusConfig authorize(String basicAuth, String bus, BackplaneConfig.BUS_PERMISSION permission) throws AuthException {
+        Grant grant = grant(basicAuth, bus);
+        if (! grant.permissions.contains(permission)) {
+            throw new AuthException("User " + grant.user + " denied " + permission + " to " + bus);
+        }
+        return grant.busConfig;
+    }
+
+    /**
+     * @return the user of the credentials and its permissions on the bus, possibly none
+     * @throws AuthException if the credentials are not valid or the bus is not found
+     */
+    public Grant grant(String basicAuth, String bus) throws AuthException {
+        if (basicAuth == null || ! basicAuth.startsWith("Basic ") || basicAuth.length() < 7) {
+            throw new AuthException("Invalid Authorization header: " + basicAuth);
+        }
+
+        Snapshot current = snapshot();
+        String digest = digest(basicAuth);
+        VerifiedCredentials verified = credentials.get(digest);
+        String user;
+        if (verified != null && verified.isValid(current, authCacheMillis())) {
+            cachedCredentials.mark();
+            user = verified.user;
+        } else {
+            user = verify(basicAuth, current, digest);
+            current = snapshot();
+        }
+
+        BusConfig busConfig = current.busConfigs.get(bus);
+        if (busConfig == null) {
+            current = reloadOnMiss(current);
+            busConfig = current.busConfigs.get(bus);
+        }
+        if (busConfig == null) {
+            throw new AuthException("Bus configuration not found for " + bus);
+        }
+        EnumSet<BackplaneConfig.BUS_PERMISSION> granted = current.permissions.get(bus).get(user);
+        return new Grant(user, busConfig, granted != null ? granted : NO_PERMISSIONS);
+    }
+
+    /**
+     * @return the bus configuration from the snapshot, loading the snapshot if needed; null if not found
+     * @throws AuthException if the snapshot cannot be loaded
+     */
+    public BusConfig getBusConfig(String bus) throws AuthException {
+        Snapshot current = snapshot();
+        BusConfig busConfig = current.busConfigs.get(bus);
+        return busConfig != null ? busConfig : reloadOnMiss(current).busConfigs.get(bus);
+    }
+
+    /**
+     * Discards the snapshot and the verified credentials, so that the next request reads the current configuration.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot = null;
+        credentials.clear();
+    }
+
+    /**
+     * A user's permissions on a bus.
+     */
+    public static final class Grant {
+
+        public String getUser() {
+            return user;
+        }
+
+        public BusConfig getBusConfig() {
+            return busConfig;
+        }
+
+        public EnumSet<BackplaneConfig.BUS_PERMISSION> getPermissions() {
+            return EnumSet.copyOf(permissions);
+        }
+
+        private Grant(String user, BusConfig busConfig, EnumSet<BackplaneConfig.BUS_PERMISSION> permissions) {
+            this.user = user;
+            this.busConfig = busConfig;
+            this.permissions = permissions;
+        }
+
+        private final String user;
+        private final BusConfig busConfig;
+        private final EnumSet<BackplaneConfig.BUS_PERMISSION> permissions;
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(BusAuthorizer.class);
+
+    private static final long MIN_MISS_RELOAD_MILLIS = 5000L;
+    private static final int MAX_CACHED_CREDENTIALS = 10000;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final EnumSet<BackplaneConfig.BUS_PERMISSION> NO_PERMISSIONS = EnumSet.noneOf(BackplaneConfig.BUS_PERMISSION.class);
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    @Inject
+    private SuperSimpleDB superSimpleDb;
+
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    // changed by invalidate(), so that snapshots read before are not kept
+    private final AtomicLong generation = new AtomicLong();
+    private final Map<String, VerifiedCredentials> credentials = new ConcurrentHashMap<String, VerifiedCredentials>();
+
+    private final MeterMetric snapshotLoads =
+            Metrics.newMeter(BusAuthorizer.class, "auth_snapshot_loads", "loads", TimeUnit.MINUTES);
+    private final MeterMetric cachedCredentials =
+            Metrics.newMeter(BusAuthorizer.class, "auth_cached_credentials", "requests", TimeUnit.MINUTES);
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(DIGEST_ALGORITHM + " not available", e);
+            }
+        }
+    };
+
+    /**
+     * Users' password hashes and the buses' configurations and compiled permissions, as read at one time.
+     */
+    private static final class Snapshot {
+
+        private Snapshot(List<User> users, List<BusConfig> buses) {
+            Map<String, String> pwdHashes = new HashMap<String, String>();
+            for (User user : users) {
+                pwdHashes.put(user.getIdValue(), user.get(User.Field.PWDHASH));
+            }
+            Map<String, BusConfig> busConfigs = new HashMap<String, BusConfig>();
+            Map<String, Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>>> permissions = new HashMap<String, Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>>>();
+            for (BusConfig bus : buses) {
+                busConfigs.put(bus.getIdValue(), bus);
+                Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>> busPermissions;
+                try {
+                    busPermissions = bus.getUserPermissions();
+                } catch (IllegalArgumentException e) {
+                    logger.error("Invalid permissions in bus configuration " + bus.getIdValue() + ": " + e.getMessage());
+                    busPermissions = Collections.emptyMap();
+                }
+                permissions.put(bus.getIdValue(), busPermissions);
+            }
+            this.pwdHashes = pwdHashes;
+            this.busConfigs = busConfigs;
+            this.permissions = permissions;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        private final Map<String, String> pwdHashes;
+        private final Map<String, BusConfig> busConfigs;
+        private final Map<String, Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>>> permissions;
+        private final long loadedAt;
+    }
+
+    private static final class VerifiedCredentials {
+
+        private VerifiedCredentials(String user, String pwdHash) {
+            this.user = user;
+            this.pwdHash = pwdHash;
+            this.verifiedAt = System.currentTimeMillis();
+        }
+
+        private boolean isValid(Snapshot snapshot, long ttlMillis) {
+            return System.currentTimeMillis() - verifiedAt < ttlMillis && pwdHash.equals(snapshot.pwdHashes.get(user));
+        }
+
+        private final String user;
+        private final String pwdHash;
+        private final long verifiedAt;
+    }
+
+    /**
+     * @return the user name, if the password matches the user's password hash
+     */
+    private String verify(String basicAuth, Snapshot current, String digest) throws AuthException {
+        String userPass;
+        try {
+            userPass = new String(Base64.decodeBase64(basicAuth.substring(6).getBytes("utf-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new AuthException("Cannot check authentication, unsupported encoding: utf-8"); // shouldn't happen
+        }
+        int delim = userPass.indexOf(":");
+        if (delim == -1) {
+            throw new AuthException("Invalid Basic auth token: " + userPass);
+        }
+        String user = userPass.substring(0, delim);
+        String pass = userPass.substring(delim + 1);
+
+        String pwdHash = current.pwdHashes.get(user);
+        if (pwdHash == null) {
+            pwdHash = reloadOnMiss(current).pwdHashes.get(user);
+        }
+        if (pwdHash == null) {
+            throw new AuthException("User not found: " + user);
+        }
+        if (! HmacHashUtils.checkHmacHash(pass, pwdHash)) {
+            throw new AuthException("Incorrect password for user " + user);
+        }
+        if (credentials.size() >= MAX_CACHED_CREDENTIALS) {
+            credentials.clear();
+        }
+        credentials.put(digest, new VerifiedCredentials(user, pwdHash));
+        return user;
+    }
+
+    /**
+     * @return the current snapshot, loading it if there is none, and reloading it if it is too old
+     */
+    private Snapshot snapshot() throws AuthException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return load();
+        }
+        return System.currentTimeMillis() - current.loadedAt >= snapshotMillis() ? reload(current) : current;
+    }
+
+    private Snapshot reloadOnMiss(Snapshot current) {
+        return System.currentTimeMillis() - current.loadedAt >= MIN_MISS_RELOAD_MILLIS ? reload(current) : current;
+    }
+
+    /**
+     * Reloads the snapshot, unless another request is already reloading it; the other requests
+     * keep using the current snapshot meanwhile.
+     */
+    private Snapshot reload(Snapshot current) {
+        Snapshot latest = snapshot;
+        if (latest != null && latest != current) return latest;
+        if (! reloading.compareAndSet(false, true)) return current;
+        try {
+            return load();
+        } catch (AuthException e) {
+            logger.warn("Keeping the previous authorization snapshot: " + e.getMessage());
+            return current;
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    private Snapshot load() throws AuthException {
+        long loadGeneration = generation.get();
+        try {
+            Snapshot loaded = new Snapshot(
+                superSimpleDb.retrieve(bpConfig.getTableNameForType(User.class), User.class),
+                superSimpleDb.retrieve(bpConfig.getTableNameForType(BusConfig.class), BusConfig.class));
+            snapshotLoads.mark();
+            if (generation.get() == loadGeneration) {
+                snapshot = loaded;
+            }
+            return loaded;
+        } catch (SimpleDBException e) {
+            throw new AuthException("Error loading users and bus configurations: " + e.getMessage(), e);
+        }
+    }
+
+    private String digest(String basicAuth) throws AuthException {
+        try {
+            MessageDigest digest = digests.get();
+            digest.reset();
+            return new String(Hex.encodeHex(digest.digest(basicAuth.getBytes("utf-8"))));
+        } catch (UnsupportedEncodingException e) {
+            throw new AuthException("Cannot check authentication, unsupported encoding: utf-8"); // shouldn't happen
+        }
+    }
+
+    private long snapshotMillis() {
+        try {
+            return bpConfig.getAuthSnapshotSeconds() * 1000L;
+        } catch (SimpleDBException e) {
+            return 0;
+        }
+    }
+
+    private long authCacheMillis() {
+        try {
+            return bpConfig.getAuthCacheSeconds() * 1000L;
+        } catch (SimpleDBException e) {
+            return 0;
+        }
+    }
+}
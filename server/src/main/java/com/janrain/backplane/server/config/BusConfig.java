@@ -22,6 +22,8 @@ import org.apache.commons.lang.StringUtils;
 
 import javax.validation.constraints.Max;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -56,6 +58,24 @@ public class BusConfig extends AbstractMessage {
         return result;
     }
 
+    /**
+     * @return the permissions of each user listed in the bus configuration
+     * @throws IllegalArgumentException if a permission is invalid
+     */
+    public Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>> getUserPermissions() {
+        Map<String, EnumSet<BackplaneConfig.BUS_PERMISSION>> result = new HashMap<String, EnumSet<BackplaneConfig.BUS_PERMISSION>>();
+        for (String name : keySet()) {
+            if (! isBusConfigField(name)) {
+                result.put(name, getPermissions(name));
+            }
+        }
+        return result;
+    }
+
+    public long getRetentionTimeSeconds(boolean sticky) {
+        return Long.valueOf(get(sticky ? Field.RETENTION_STICKY_TIME_SECONDS : Field.RETENTION_TIME_SECONDS));
+    }
+
     public static enum Field implements MessageField {
 
         BUS_NAME,
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.config;
+
+import com.janrain.crypto.HmacVerifier;
+import com.janrain.message.Json;
+import com.janrain.simpledb.SimpleDBException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Issues and checks signed, stateless bus access tokens.
+ *
+ * A token is base64(payload) + "." + base64(hmac_sha256(payload)), where the payload is a JSON object with the user,
+ * the bus, the user's permissions on the bus and the expiration time. Tokens are signed with the TOKEN_SIGNING_KEY
+ * shared by all server instances, and are checked without reading users or bus configurations; they are therefore
+ * not revoked by user or bus configuration changes before they expire.
+ */
+public class BusTokens {
+
+    // - PUBLIC
+
+    public static final String BEARER_PREFIX = "Bearer ";
+
+    /**
+     * @return a token granting the permissions on the bus to the user, for TOKEN_TTL_SECONDS
+     * @throws AuthException if access tokens are disabled or cannot be issued
+     */
+    public String issue(String user, String bus, EnumSet<BackplaneConfig.BUS_PERMISSION> permissions) throws AuthException {
+        Map<String, String> claims = new LinkedHashMap<String, String>();
+        claims.put(USER, user);
+        claims.put(BUS, bus);
+        claims.put(PERMISSIONS, StringUtils.join(permissions, ","));
+        claims.put(EXPIRES, Long.toString(System.currentTimeMillis() + getTtlSeconds() * 1000L));
+        try {
+            String payload = new String(Base64.encodeBase64(Json.writeBytes(claims)), UTF8_STRING_ENCODING);
+            return payload + "." + HmacVerifier.HMAC_SHA256.signData(key(), payload);
+        } catch (Exception e) {
+            throw new AuthException("Error issuing access token: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the token's user, if the token in the Bearer Authorization header grants the permission on the bus
+     * @throws AuthException if the token is invalid, expired, or does not grant the permission on the bus
+     */
+    public String authorize(String bearerAuth, String bus, BackplaneConfig.BUS_PERMISSION permission) throws AuthException {
+        if (bearerAuth == null || ! bearerAuth.startsWith(BEARER_PREFIX)) {
+            throw new AuthException("Invalid Authorization header: " + bearerAuth);
+        }
+        String token = bearerAuth.substring(BEARER_PREFIX.length()).trim();
+        int dot = token.indexOf('.');
+        boolean signed;
+        try {
+            signed = dot > 0 && HmacVerifier.HMAC_SHA256.verifySignature(key(), token.substring(0, dot), token.substring(dot + 1));
+        } catch (AuthException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AuthException("Error checking access token: " + e.getMessage(), e);
+        }
+        if (! signed) {
+            throw new AuthException("Invalid access token");
+        }
+
+        Map<String, String> claims;
+        try {
+            byte[] payload = Base64.decodeBase64(token.substring(0, dot).getBytes(UTF8_STRING_ENCODING));
+            claims = Json.readStringMap(payload, 0, payload.length);
+        } catch (IOException e) {
+            throw new AuthException("Invalid access token payload: " + e.getMessage(), e);
+        }
+        String user = claims.get(USER);
+        if (user == null || claims.get(PERMISSIONS) == null || ! StringUtils.isNumeric(claims.get(EXPIRES))) {
+            throw new AuthException("Invalid access token payload");
+        }
+        if (! bus.equals(claims.get(BUS))) {
+            throw new AuthException("Access token of user " + user + " not valid for " + bus);
+        }
+        if (Long.valueOf(claims.get(EXPIRES)) <= System.currentTimeMillis()) {
+            throw new AuthException("Access token of user " + user + " expired");
+        }
+        for (String granted : claims.get(PERMISSIONS).split(",")) {
+            if (permission.name().equals(granted)) return user;
+        }
+        throw new AuthException("User " + user + " denied " + permission + " to " + bus);
+    }
+
+    /**
+     * @return the time for which issued tokens are valid
+     */
+    public int getTtlSeconds() throws AuthException {
+        try {
+            return bpConfig.getTokenTtlSeconds();
+        } catch (SimpleDBException e) {
+            throw new AuthException("Error reading access token configuration: " + e.getMessage(), e);
+        }
+    }
+
+    // - PRIVATE
+
+    private static final String UTF8_STRING_ENCODING = "utf-8";
+    private static final String USER = "user";
+    private static final String BUS = "bus";
+    private static final String PERMISSIONS = "permissions";
+    private static final String EXPIRES = "expires";
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    /**
+     * The signing key, and the configured secret it was made from.
+     */
+    private volatile Map.Entry<String, SecretKey> signingKey;
+
+    private SecretKey key() throws AuthException {
+        String secret;
+        try {
+            secret = bpConfig.getTokenSigningKey();
+        } catch (SimpleDBException e) {
+            throw new AuthException("Error reading access token configuration: " + e.getMessage(), e);
+        }
+        if (secret == null) {
+            throw new AuthException("Access tokens are not enabled");
+        }
+        Map.Entry<String, SecretKey> current = signingKey;
+        if (current == null || ! current.getKey().equals(secret)) {
+            try {
+                current = new AbstractMap.SimpleImmutableEntry<String, SecretKey>(
+                    secret, new SecretKeySpec(secret.getBytes(UTF8_STRING_ENCODING), HmacVerifier.HMAC_SHA256.getAlgorithm()));
+            } catch (UnsupportedEncodingException e) {
+                throw new AuthException("Cannot read access token configuration, unsupported encoding: utf-8"); // shouldn't happen
+            }
+            signingKey = current;
+        }
+        return current.getValue();
+    }
+}
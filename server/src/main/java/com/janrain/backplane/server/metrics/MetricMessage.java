@@ -18,8 +18,8 @@ package com.janrain.backplane.server.metrics;
 
 import com.janrain.backplane.server.BackplaneServerException;
 import com.janrain.message.AbstractMessage;
+import com.janrain.message.Json;
 import com.janrain.message.MessageField;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import javax.ws.rs.GET;
 import java.io.IOException;
@@ -92,7 +92,7 @@ public class MetricMessage extends AbstractMessage {
     private String extractFieldValueAsJsonString(Field field, Map<String,Object> data) throws BackplaneServerException {
         try {
             Object value = data.get(field.getFieldName());
-            return value == null ? null : (new ObjectMapper()).writeValueAsString(value);
+            return value == null ? null : Json.writeString(value);
         } catch (IOException e) {
             String errMsg = "Error serializing message payload: " + e.getMessage();
             throw new BackplaneServerException(errMsg, e);
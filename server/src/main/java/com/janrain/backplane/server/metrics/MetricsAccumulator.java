@@ -19,10 +19,11 @@ package com.janrain.backplane.server.metrics;
 import com.janrain.backplane.server.BackplaneController;
 import com.janrain.backplane.server.BackplaneServerException;
 import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.message.Json;
+import com.janrain.util.Iso8601;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.*;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
@@ -58,7 +59,7 @@ public class MetricsAccumulator {
      */
     public MetricMessage prepareSummary() throws BackplaneServerException {
         try {
-            return new MetricMessage(instanceUuid, BackplaneConfig.ISO8601.format(new Date()), toJson(true));
+            return new MetricMessage(instanceUuid, Iso8601.format(System.currentTimeMillis()), toJson(true));
         } catch (Exception e) {
             throw new BackplaneServerException(e.getMessage());
         }
@@ -86,9 +87,8 @@ public class MetricsAccumulator {
             }
         }
 
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.writeValueAsString(parent);
+            return Json.writeString(parent);
         } catch (IOException e) {
             String errMsg = "Error converting frames to JSON: " + e.getMessage();
             throw new Exception(errMsg, e);
@@ -161,7 +161,7 @@ public class MetricsAccumulator {
         double loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
         MemoryUsage mu = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
 
-        String startTimeString = BackplaneConfig.ISO8601.format(new Date(startTime));
+        String startTimeString = Iso8601.format(startTime);
 
         out.put("type", "jvm");
         out.put("unit", "mb");
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server.provision;
+
+import java.util.Map;
+
+/**
+ * Storage fault injection settings update; null entries leave the current settings unchanged.
+ *
+ * @see com.janrain.simpledb.FaultInjectingSuperSimpleDB#setProfiles(java.util.Map)
+ */
+public class FaultInjectionRequest extends AdminRequest {
+
+    // - PUBLIC
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Map<String, String> getProfiles() {
+        return profiles;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setProfiles(Map<String, String> profiles) {
+        this.profiles = profiles;
+    }
+
+    // - PRIVATE
+
+    private Boolean enabled;
+    private Map<String, String> profiles;
+}
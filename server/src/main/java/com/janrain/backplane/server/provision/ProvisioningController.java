@@ -16,12 +16,17 @@
 
 package com.janrain.backplane.server.provision;
 
+import com.janrain.backplane.server.cluster.ClusterBus;
+import com.janrain.backplane.server.cluster.ClusterEvent;
 import com.janrain.backplane.server.config.AuthException;
 import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusAuthorizer;
 import com.janrain.backplane.server.config.BusConfig;
 import com.janrain.backplane.server.config.User;
 import com.janrain.crypto.HmacHashUtils;
 import com.janrain.message.AbstractMessage;
+import com.janrain.simpledb.FaultInjectingSuperSimpleDB;
+import com.janrain.simpledb.RecordingSuperSimpleDB;
 import com.janrain.simpledb.SuperSimpleDB;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Controller;
@@ -29,6 +34,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -86,6 +93,31 @@ public class ProvisioningController {
         return doUpdate(User.class, updateRequest);
     }
 
+    @RequestMapping(value = "/storage/faults", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> storageFaults(@RequestBody FaultInjectionRequest faultRequest) throws AuthException {
+        bpConfig.checkAdminAuth(faultRequest.getAdmin(), faultRequest.getSecret());
+        if (faultRequest.getProfiles() != null) {
+            faultInjector.setProfiles(faultRequest.getProfiles());
+        }
+        if (faultRequest.getEnabled() != null) {
+            faultInjector.setEnabled(faultRequest.getEnabled());
+        }
+        return faultInjector.getStatus();
+    }
+
+    @RequestMapping(value = "/storage/journal", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> storageJournal(@RequestBody StorageJournalRequest journalRequest) throws AuthException, IOException {
+        bpConfig.checkAdminAuth(journalRequest.getAdmin(), journalRequest.getSecret());
+        if (Boolean.TRUE.equals(journalRequest.getRecording())) {
+            storageRecorder.startRecording();
+        } else if (Boolean.FALSE.equals(journalRequest.getRecording())) {
+            storageRecorder.stopRecording();
+        }
+        return storageRecorder.getStatus();
+    }
+
     /**
      * Handle auth errors
      */
@@ -127,6 +159,18 @@ public class ProvisioningController {
     @Inject
     private SuperSimpleDB superSimpleDb;
 
+    @Inject
+    private FaultInjectingSuperSimpleDB faultInjector;
+
+    @Inject
+    private RecordingSuperSimpleDB storageRecorder;
+
+    @Inject
+    private ClusterBus clusterBus;
+
+    @Inject
+    private BusAuthorizer busAuthorizer;
+
     private <T extends AbstractMessage> Map<String, Map<String, String>> doList(Class<T> entityType, List<String> entityNames) {
 
         if (entityNames.size() == 0) return doListAll(entityType);
@@ -172,6 +216,7 @@ public class ProvisioningController {
             }
             result.put(entityName, deleteStatus);
         }
+        configChanged(entityType, entityNames);
         return result;
     }
 
@@ -189,6 +234,7 @@ public class ProvisioningController {
 
     private <T extends AbstractMessage> Map<String, String> updateConfigs(Class<T> customerConfigType, List<T> bpConfigs) {
         Map<String,String> result = new LinkedHashMap<String, String>();
+        List<String> entityNames = new ArrayList<String>();
         for(T config : bpConfigs) {
             if (config instanceof User) {
                 // hash the new user password
@@ -202,10 +248,21 @@ public class ProvisioningController {
                 updateStatus = e.getMessage();
             }
             result.put(config.getIdValue(), updateStatus);
+            entityNames.add(config.getIdValue());
         }
+        configChanged(customerConfigType, entityNames);
         return result;
     }
 
+    /**
+     * Drops configuration cached by this and the other server instances.
+     */
+    private <T extends AbstractMessage> void configChanged(Class<T> entityType, List<String> entityNames) {
+        bpConfig.invalidateCachedConfig();
+        busAuthorizer.invalidate();
+        clusterBus.publish(ClusterEvent.configChanged(entityType.getSimpleName(), entityNames));
+    }
+
     // type helper classes for JSON mapper
     private static class BusUpdateRequest extends UpdateRequest<BusConfig> {}
     private static class UserUpdateRequest extends UpdateRequest<User> {}
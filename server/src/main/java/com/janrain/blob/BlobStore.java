@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage for content too large to keep in SimpleDB items, referenced from the items instead.
+ *
+ * Blobs are deleted together with the items referencing them; blobs left unreferenced, e.g. by a failed write
+ * of their item, are garbage collected once older than any item can be.
+ */
+public interface BlobStore {
+
+    /**
+     * @return the reference under which the content is stored
+     */
+    String store(byte[] content) throws IOException;
+
+    /**
+     * @return a stream with the referenced blob's content, to be closed by the caller
+     * @throws java.io.FileNotFoundException if the blob does not exist, e.g. after it expired
+     */
+    InputStream open(String reference) throws IOException;
+
+    /**
+     * Deletes the referenced blob, if it exists.
+     */
+    void delete(String reference) throws IOException;
+
+    /**
+     * Deletes the blobs stored before the given time.
+     *
+     * @return the number of blobs deleted
+     */
+    int deleteStoredBefore(long timeMillis) throws IOException;
+}
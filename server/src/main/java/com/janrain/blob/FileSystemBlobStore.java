@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.blob;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * BlobStore keeping each blob in a file on the local filesystem.
+ *
+ * Blob files are grouped in one directory per hour they were stored in, so garbage collection only lists
+ * and deletes whole directories.
+ *
+ * The root directory is given by the BP_BLOB_STORE_DIR system property,
+ * or a backplane-blobs directory in the JVM's temporary directory.
+ */
+public class FileSystemBlobStore implements BlobStore {
+
+    // - PUBLIC
+
+    public static final String BLOB_STORE_DIR_PROPERTY = "BP_BLOB_STORE_DIR";
+
+    public FileSystemBlobStore() {
+        this(new File(System.getProperty(BLOB_STORE_DIR_PROPERTY, System.getProperty("java.io.tmpdir") + File.separator + "backplane-blobs")));
+    }
+
+    public FileSystemBlobStore(File root) {
+        this.root = root;
+        logger.info("Blob store directory: " + root.getAbsolutePath());
+    }
+
+    @Override
+    public String store(byte[] content) throws IOException {
+        String bucket = bucket(System.currentTimeMillis());
+        File dir = new File(root, bucket);
+        if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+            throw new IOException("Cannot create blob directory " + dir);
+        }
+
+        String name = UUID.randomUUID().toString();
+        File tmp = new File(dir, name + TMP_SUFFIX);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+                out.write(content, offset, Math.min(CHUNK_SIZE, content.length - offset));
+            }
+        } finally {
+            out.close();
+        }
+        if (! tmp.renameTo(new File(dir, name))) {
+            tmp.delete();
+            throw new IOException("Cannot move blob in place: " + tmp);
+        }
+        return bucket + "/" + name;
+    }
+
+    @Override
+    public InputStream open(String reference) throws IOException {
+        return new BufferedInputStream(new FileInputStream(file(reference)), CHUNK_SIZE);
+    }
+
+    @Override
+    public void delete(String reference) throws IOException {
+        File blob = file(reference);
+        if (! blob.delete() && blob.exists()) {
+            throw new IOException("Cannot delete blob " + reference);
+        }
+    }
+
+    @Override
+    public int deleteStoredBefore(long timeMillis) throws IOException {
+        // buckets are named after their first hour, and all blobs in the bucket before this one were stored earlier
+        String stored = bucket(timeMillis - BUCKET_MILLIS);
+        File[] buckets = root.listFiles();
+        int deleted = 0;
+        if (buckets == null) return deleted;
+
+        for (File dir : buckets) {
+            if (! dir.isDirectory() || ! BUCKET.matcher(dir.getName()).matches() || dir.getName().compareTo(stored) > 0) continue;
+            File[] blobs = dir.listFiles();
+            for (File blob : blobs == null ? new File[0] : blobs) {
+                if (blob.delete()) deleted++;
+            }
+            if (! dir.delete()) {
+                logger.warn("Cannot delete blob directory " + dir);
+            }
+        }
+        if (deleted > 0) {
+            logger.info("Deleted " + deleted + " unreferenced blobs from " + root);
+        }
+        return deleted;
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(FileSystemBlobStore.class);
+
+    private static final String BUCKET_FORMAT = "yyyyMMddHH";
+    private static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final Pattern BUCKET = Pattern.compile("\\d{10}");
+    private static final Pattern REFERENCE = Pattern.compile("\\d{10}/[0-9a-f\\-]{36}");
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final File root;
+
+    private File file(String reference) {
+        if (reference == null || ! REFERENCE.matcher(reference).matches()) {
+            throw new IllegalArgumentException("Invalid blob reference: " + reference);
+        }
+        return new File(root, reference);
+    }
+
+    private static String bucket(long timeMillis) {
+        SimpleDateFormat format = new SimpleDateFormat(BUCKET_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(timeMillis));
+    }
+}
@@ -20,14 +20,11 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
 import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 
 /**
@@ -62,23 +59,8 @@ public class HmacHashUtils {
      * @return true if the provided hmacHash matches the password, false otherwise
      */
     public static boolean checkHmacHash(String password, String hmacHash) {
-        if (password == null || hmacHash == null) return false;
-
-        String[] keyAndSigned = hmacHash.split("\\.");
-        if (keyAndSigned.length != 2) return false;
-
         try {
-            byte[] encodedKey = Base64.decodeBase64(keyAndSigned[0].getBytes(UTF8_STRING_ENCODING));
-            String newSigned = hmacSign(new SecretKeySpec(encodedKey, HMAC_SHA256_ALGORITHM), password);
-            String pwdHash = keyAndSigned[1];
-
-            // equal-time compare
-            if (newSigned.length() == 0 || newSigned.length() != pwdHash.length()) return false;
-            int result = 0;
-            for (int i = 0; i < newSigned.length(); i++) {
-                result |= newSigned.charAt(i) ^ pwdHash.charAt(i);
-            }
-            return result == 0;
+            return HmacVerifier.HMAC_SHA256.verify(password, hmacHash);
         } catch (Exception e) {
             logger.error("Error checking HMAC hash: " + e.getMessage());
             return false;
@@ -101,7 +83,7 @@ public class HmacHashUtils {
     private static final Logger logger = Logger.getLogger(HmacHashUtils.class);
 
     private static final String UTF8_STRING_ENCODING = "utf-8";
-    private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+    private static final String HMAC_SHA256_ALGORITHM = HmacVerifier.HMAC_SHA256.getAlgorithm();
     private static final int HMAC_SHA256_LENGTH = 256;
 
     private static SecretKey generateMacKey(String algorithm, int keySize) throws NoSuchAlgorithmException {
@@ -110,9 +92,7 @@ public class HmacHashUtils {
         return keyGen.generateKey();
     }
 
-    private static String hmacSign(SecretKey key, String password) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
-        Mac mac = Mac.getInstance(key.getAlgorithm());
-        mac.init(key);
-        return new String(Base64.encodeBase64(mac.doFinal(password.getBytes())), UTF8_STRING_ENCODING);
+    private static String hmacSign(SecretKey key, String password) throws GeneralSecurityException {
+        return HmacVerifier.HMAC_SHA256.sign(key, password);
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.crypto;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signs and verifies passwords against HMAC hashes, in the base64(mac_key) + "." + base64(hmac_signed(password))
+ * format of HmacHashUtils.
+ *
+ * Each thread reuses its own Mac instance, and the decoded key and signature of recently verified hashes
+ * are kept, so that a verification only initializes the Mac with the key and signs the password.
+ * Signatures are compared in constant time, on their bytes.
+ */
+public final class HmacVerifier {
+
+    // - PUBLIC
+
+    public static final HmacVerifier HMAC_SHA256 = new HmacVerifier("HmacSHA256", 1000);
+
+    /**
+     * @param maxCachedHashes the number of decoded hashes kept; all are dropped when it is reached
+     */
+    public HmacVerifier(final String algorithm, int maxCachedHashes) {
+        this.algorithm = algorithm;
+        this.maxCachedHashes = maxCachedHashes;
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    return Mac.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(algorithm + " not available", e);
+                }
+            }
+        };
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the base64 encoded signature of the password
+     */
+    public String sign(SecretKey key, String password) throws GeneralSecurityException {
+        try {
+            return new String(Base64.encodeBase64(mac(key, password)), UTF8_STRING_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+    }
+
+    /**
+     * @return the base64 encoded signature of the data's UTF-8 bytes
+     */
+    public String signData(SecretKey key, String data) throws GeneralSecurityException {
+        try {
+            return new String(Base64.encodeBase64(mac(key, data.getBytes(UTF8_STRING_ENCODING))), UTF8_STRING_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+    }
+
+    /**
+     * @return true if the HMAC hash matches the password, false otherwise (including for malformed hashes)
+     */
+    public boolean verify(String password, String hmacHash) throws GeneralSecurityException {
+        if (password == null || hmacHash == null) return false;
+        DecodedHash decoded = decode(hmacHash);
+        if (decoded == null) return false;
+        return constantTimeEquals(mac(decoded.key, password), decoded.signed);
+    }
+
+    /**
+     * @return true if the base64 encoded signature is the signature of the data's UTF-8 bytes with the key
+     * @see #signData(SecretKey, String)
+     */
+    public boolean verifySignature(SecretKey key, String data, String signature) throws GeneralSecurityException {
+        if (data == null || signature == null) return false;
+        try {
+            return constantTimeEquals(mac(key, data.getBytes(UTF8_STRING_ENCODING)), Base64.decodeBase64(signature.getBytes(UTF8_STRING_ENCODING)));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+    }
+
+    // - PRIVATE
+
+    private static final String UTF8_STRING_ENCODING = "utf-8";
+
+    private final String algorithm;
+    private final int maxCachedHashes;
+    private final ThreadLocal<Mac> macs;
+    private final Map<String, DecodedHash> decodedHashes = new ConcurrentHashMap<String, DecodedHash>();
+
+    private static final class DecodedHash {
+
+        private DecodedHash(SecretKeySpec key, byte[] signed) {
+            this.key = key;
+            this.signed = signed;
+        }
+
+        private final SecretKeySpec key;
+        private final byte[] signed;
+    }
+
+    private byte[] mac(SecretKey key, String password) throws GeneralSecurityException {
+        // the platform encoding, as for the existing hashes
+        return mac(key, password.getBytes());
+    }
+
+    private byte[] mac(SecretKey key, byte[] data) throws GeneralSecurityException {
+        Mac mac = macs.get();
+        mac.init(key);
+        return mac.doFinal(data);
+    }
+
+    /**
+     * @return the hash's key and signature, or null if the hash is malformed
+     */
+    private DecodedHash decode(String hmacHash) {
+        DecodedHash decoded = decodedHashes.get(hmacHash);
+        if (decoded != null) return decoded;
+
+        int dot = hmacHash.indexOf('.');
+        if (dot <= 0 || dot == hmacHash.length() - 1 || hmacHash.indexOf('.', dot + 1) != -1) return null;
+        try {
+            byte[] key = Base64.decodeBase64(hmacHash.substring(0, dot).getBytes(UTF8_STRING_ENCODING));
+            byte[] signed = Base64.decodeBase64(hmacHash.substring(dot + 1).getBytes(UTF8_STRING_ENCODING));
+            if (key.length == 0 || signed.length == 0) return null;
+            decoded = new DecodedHash(new SecretKeySpec(key, algorithm), signed);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+        if (decodedHashes.size() >= maxCachedHashes) {
+            decodedHashes.clear();
+        }
+        decodedHashes.put(hmacHash, decoded);
+        return decoded;
+    }
+
+    /**
+     * @return true if the arrays are equal, in a time that depends only on their lengths
+     */
+    private static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a.length != b.length) return false;
+        int result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result |= a[i] ^ b[i];
+        }
+        return result == 0;
+    }
+}
@@ -16,8 +16,6 @@
 
 package com.janrain.message;
 
-import org.codehaus.jackson.map.ObjectMapper;
-
 import java.util.*;
 
 /**
@@ -64,11 +62,10 @@ public abstract class AbstractMessage extends AbstractNamedMap implements Messag
     // todo: rename toJsonString?
     public String toString() {
 
-        ObjectMapper mapper = new ObjectMapper();
         String messageName = getClass().getSimpleName();
         String value;
         try {
-            value = messageName + ": " + mapper.writeValueAsString(entrySet());
+            value = messageName + ": " + Json.writeString(entrySet());
         }
         catch (Exception e) {
             value = messageName + ": (Unable to convert object to JSON -- " + e.getMessage() + ")";
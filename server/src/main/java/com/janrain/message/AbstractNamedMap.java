@@ -41,62 +41,62 @@ public abstract class AbstractNamedMap implements NamedMap {
 
     @Override
     public int size() {
-        return map.size();
+        return map().size();
     }
 
     @Override
     public boolean isEmpty() {
-        return map.isEmpty();
+        return map().isEmpty();
     }
 
     @Override
     public boolean containsKey(Object key) {
-        return map.containsKey(key);
+        return map().containsKey(key);
     }
 
     @Override
     public boolean containsValue(Object value) {
-        return map.containsValue(value);
+        return map().containsValue(value);
     }
 
     @Override
     public String get(Object key) {
-        return map.get(key);
+        return map().get(key);
     }
 
     @Override
     public String put(String key, String value) {
-        return map.put(key, value);
+        return map().put(key, value);
     }
 
     @Override
     public String remove(Object key) {
-        return map.remove(key);
+        return map().remove(key);
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends String> m) {
-        map.putAll(m);
+        map().putAll(m);
     }
 
     @Override
     public void clear() {
-        map.clear();
+        map().clear();
     }
 
     @Override
     public Set<String> keySet() {
-        return map.keySet();
+        return map().keySet();
     }
 
     @Override
     public Collection<String> values() {
-        return map.values();
+        return map().values();
     }
 
     @Override
     public Set<Entry<String, String>> entrySet() {
-        return map.entrySet();
+        return map().entrySet();
     }
 
     @Override
@@ -106,20 +106,27 @@ public abstract class AbstractNamedMap implements NamedMap {
 
         AbstractNamedMap that = (AbstractNamedMap) o;
 
-        if (map != null ? !map.equals(that.map) : that.map != null) return false;
+        if (!map().equals(that.map())) return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return map != null ? map.hashCode() : 0;
+        return map().hashCode();
     }
 
     // - PROTECTED
 
     protected AbstractNamedMap() { }
 
+    /**
+     * @return the map backing this NamedMap; subclasses may override it to populate the map lazily
+     */
+    protected Map<String,String> map() {
+        return map;
+    }
+
 
     // - PRIVATE
 
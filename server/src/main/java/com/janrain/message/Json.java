@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.message;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The JSON reader and writer shared by the server.
+ *
+ * Jackson mappers are thread-safe once configured, and cache the (de)serializers they build for each type,
+ * so a single instance is used instead of a new one per conversion.
+ * Message frames have their own writer, which writes the known frame value types directly
+ * and only hands other values to the mapper.
+ */
+public final class Json {
+
+    // - PUBLIC
+
+    public static JsonFactory factory() {
+        return mapper.getJsonFactory();
+    }
+
+    public static String writeString(Object value) throws IOException {
+        return mapper.writeValueAsString(value);
+    }
+
+    public static byte[] writeBytes(Object value) throws IOException {
+        return mapper.writeValueAsBytes(value);
+    }
+
+    public static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        mapper.writeValue(generator, value);
+    }
+
+    public static <T> T read(String json, Class<T> type) throws IOException {
+        return mapper.readValue(json, type);
+    }
+
+    public static Map<String, String> readStringMap(String json) throws IOException {
+        return stringMapReader.readValue(json);
+    }
+
+    public static Map<String, String> readStringMap(byte[] json, int offset, int length) throws IOException {
+        return stringMapReader.readValue(json, offset, length);
+    }
+
+    /**
+     * Reads only the given fields of a JSON object of strings; the values of the other fields are skipped, not decoded.
+     */
+    public static Map<String, String> readStringMap(String json, Set<String> fields) throws IOException {
+        return readFields(factory().createJsonParser(json), fields);
+    }
+
+    public static Map<String, String> readStringMap(byte[] json, int offset, int length, Set<String> fields) throws IOException {
+        return readFields(factory().createJsonParser(json, offset, length), fields);
+    }
+
+    /**
+     * Writes a message frame: strings, booleans, raw JSON, nulls, and maps and lists of them
+     * are written directly, anything else through the mapper.
+     */
+    public static void writeFrame(Map<String, ?> frame, JsonGenerator generator) throws IOException {
+        writeObject(frame, generator);
+    }
+
+    public static byte[] writeFrameBytes(Map<String, ?> frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        JsonGenerator generator = factory().createJsonGenerator(out, JsonEncoding.UTF8);
+        writeFrame(frame, generator);
+        generator.close();
+        return out.toByteArray();
+    }
+
+    public static String writeFrameString(Map<String, ?> frame) throws IOException {
+        return new String(writeFrameBytes(frame), "UTF-8");
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(Json.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final ObjectReader stringMapReader = mapper.reader(new TypeReference<LinkedHashMap<String, String>>() {});
+
+    static {
+        // build the serializers and deserializers of the common types up front, instead of on the first requests
+        try {
+            Map<String, Object> message = new LinkedHashMap<String, Object>();
+            message.put("type", "type");
+            message.put("sticky", Boolean.FALSE);
+            message.put("payload", new RawJson("{}"));
+            Map<String, Object> frame = new LinkedHashMap<String, Object>();
+            frame.put("id", "id");
+            frame.put("message", message);
+            mapper.writeValueAsBytes(frame);
+            mapper.writeValueAsBytes(Collections.singletonList(frame));
+            readStringMap(mapper.writeValueAsString(Collections.singletonMap("key", "value")));
+        } catch (IOException e) {
+            logger.warn("Error initializing JSON serializers: " + e.getMessage());
+        }
+    }
+
+    private Json() { }
+
+    private static Map<String, String> readFields(JsonParser parser, Set<String> fields) throws IOException {
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+            }
+            Map<String, String> result = new LinkedHashMap<String, String>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (fields.contains(name)) {
+                    result.put(name, value == JsonToken.VALUE_NULL ? null : parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return result;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void writeObject(Map<?, ?> map, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            generator.writeFieldName(String.valueOf(entry.getKey()));
+            writeFrameValue(entry.getValue(), generator);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeFrameValue(Object value, JsonGenerator generator) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof RawJson) {
+            generator.writeRawValue(((RawJson) value).getJson());
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            writeObject((Map<?, ?>) value, generator);
+        } else if (value instanceof List) {
+            generator.writeStartArray();
+            for (Object item : (List<?>) value) {
+                writeFrameValue(item, generator);
+            }
+            generator.writeEndArray();
+        } else {
+            mapper.writeValue(generator, value);
+        }
+    }
+}
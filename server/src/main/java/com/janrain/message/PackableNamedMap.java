@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.message;
+
+import java.util.Map;
+
+/**
+ * A NamedMap that controls the attributes it is stored as, e.g. to pack most of its entries into one attribute.
+ *
+ * Implementations must accept their storage attributes back through NamedMap#init(String, java.util.Map).
+ */
+public interface PackableNamedMap extends NamedMap {
+
+    /**
+     * @return the attributes to store for this named map
+     */
+    Map<String,String> getStorageAttributes();
+}
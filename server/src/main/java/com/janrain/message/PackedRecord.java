@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.message;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs a string map into a single string value, and back.
+ *
+ * The packed form is the map's JSON object, prefixed with 'j', or, for larger records that compress well,
+ * the deflated JSON, base64-encoded and prefixed with 'z'.
+ */
+public final class PackedRecord {
+
+    // - PUBLIC
+
+    public static String pack(Map<String, String> data) {
+        byte[] json;
+        try {
+            json = Json.writeBytes(data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error packing record: " + e.getMessage(), e);
+        }
+        if (json.length > COMPRESSION_THRESHOLD_BYTES) {
+            byte[] deflated = deflate(json);
+            // base64 adds a third
+            if (deflated.length * 4 / 3 < json.length) {
+                return COMPRESSED + new String(Base64.encodeBase64(deflated), UTF8);
+            }
+        }
+        return JSON + new String(json, UTF8);
+    }
+
+    public static Map<String, String> unpack(String packed) {
+        return unpack(packed, null);
+    }
+
+    /**
+     * @param fields the fields to read, or null for all; the others are skipped without being decoded
+     */
+    public static Map<String, String> unpack(String packed, Set<String> fields) {
+        if (packed == null || packed.length() == 0) {
+            throw new IllegalArgumentException("Empty packed record");
+        }
+        try {
+            if (packed.startsWith(JSON)) {
+                String json = packed.substring(JSON.length());
+                return fields == null ? Json.readStringMap(json) : Json.readStringMap(json, fields);
+            } else if (packed.startsWith(COMPRESSED)) {
+                byte[] json = inflate(Base64.decodeBase64(packed.substring(COMPRESSED.length()).getBytes(UTF8)));
+                return fields == null ? Json.readStringMap(json, 0, json.length) : Json.readStringMap(json, 0, json.length, fields);
+            } else {
+                throw new IllegalArgumentException("Unknown packed record encoding: " + packed.charAt(0));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error unpacking record: " + e.getMessage(), e);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Error unpacking record: " + e.getMessage(), e);
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String JSON = "j";
+    private static final String COMPRESSED = "z";
+    private static final int COMPRESSION_THRESHOLD_BYTES = 256;
+
+    private PackedRecord() { }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[1024];
+            while (! deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[1024];
+            while (! inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed record");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
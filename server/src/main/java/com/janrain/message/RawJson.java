@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.message;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * A JSON value kept as text, and written verbatim when serialized by Jackson
+ * instead of being parsed into an object tree and serialized again.
+ *
+ * The text must be one well-formed JSON value: use validated() for text that wasn't checked before.
+ */
+public final class RawJson implements JsonSerializable {
+
+    // - PUBLIC
+
+    /**
+     * @param json well-formed JSON text, e.g. validated when it was stored
+     */
+    public RawJson(String json) {
+        if (json == null) throw new IllegalArgumentException("Raw JSON text cannot be null");
+        this.json = json;
+    }
+
+    /**
+     * @throws JsonParseException if the text is not exactly one well-formed JSON value
+     */
+    public static RawJson validated(String json) throws IOException {
+        JsonParser parser = Json.factory().createJsonParser(json);
+        try {
+            if (parser.nextToken() == null) {
+                throw new JsonParseException("No JSON value", parser.getCurrentLocation());
+            }
+            parser.skipChildren();
+            if (parser.nextToken() != null) {
+                throw new JsonParseException("Unexpected content after JSON value", parser.getCurrentLocation());
+            }
+        } finally {
+            parser.close();
+        }
+        return new RawJson(json);
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    @Override
+    public void serialize(JsonGenerator jgen, SerializerProvider provider) throws IOException {
+        jgen.writeRawValue(json);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof RawJson && json.equals(((RawJson) o).json);
+    }
+
+    @Override
+    public int hashCode() {
+        return json.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    // - PRIVATE
+
+    private final String json;
+}
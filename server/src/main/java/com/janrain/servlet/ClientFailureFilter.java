@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.servlet;
+
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.simpledb.SimpleDBException;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.inject.Inject;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts requests failed because of the client (authentication failures and invalid requests) per client,
+ * and rejects all requests from clients that failed more than CLIENT_FAILURES_MAX times within a minute,
+ * for CLIENT_BLOCK_SECONDS, with a fixed response and before they are dispatched.
+ *
+ * Clients are identified by the last entry of the CLIENT_ADDRESS_HEADER request header (X-Forwarded-For by default),
+ * the address that the load balancer received the request from, or by the remote address if the header is not set.
+ * Server errors are not counted: they would block clients for the server's failures.
+ *
+ * Also samples the logging of failed requests, to at most LOG_MAX_PER_SECOND entries per second.
+ */
+public class ClientFailureFilter implements Filter {
+
+    // - PUBLIC
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        logger.info("ClientFailureFilter initialized.");
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        if (isBlocked((HttpServletRequest) req)) {
+            rejected.mark();
+            HttpServletResponse response = (HttpServletResponse) res;
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            response.setContentType("application/json");
+            response.setContentLength(BLOCKED_BODY.length);
+            response.getOutputStream().write(BLOCKED_BODY);
+            return;
+        }
+        chain.doFilter(req, res);
+    }
+
+    /**
+     * Counts a request failed because of the client, and blocks the client if it failed too many times.
+     *
+     * @return true if the failure should be logged, false if its log entry is dropped by the sampling
+     */
+    public boolean clientFailed(HttpServletRequest request) {
+        long now = System.currentTimeMillis();
+        String client = client(request);
+        if (client != null) {
+            count(client, now);
+        }
+        return sampleLog(now);
+    }
+
+    /**
+     * Samples a request failed because of the server, without counting it against the client.
+     *
+     * @return true if the failure should be logged, false if its log entry is dropped by the sampling
+     */
+    public boolean serverFailed() {
+        return sampleLog(System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if requests from the request's client are currently rejected
+     */
+    public boolean isBlocked(HttpServletRequest request) {
+        String client = client(request);
+        Client entry = client == null ? null : clients.get(client);
+        return entry != null && entry.blockedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * @return the last entry of the client address header, or the remote address if the header is not set
+     */
+    public String client(HttpServletRequest request) {
+        String forwarded;
+        try {
+            forwarded = request.getHeader(bpConfig.getClientAddressHeader());
+        } catch (SimpleDBException e) {
+            forwarded = null;
+        }
+        if (StringUtils.isNotBlank(forwarded)) {
+            // earlier entries are set by the client, and can't be trusted
+            String client = forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+            if (client.length() > 0) return client;
+        }
+        return request.getRemoteAddr();
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(ClientFailureFilter.class);
+
+    // not defined by HttpServletResponse
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final byte[] BLOCKED_BODY;
+    static {
+        try {
+            BLOCKED_BODY = "{\"ERR_MSG\":\"Too many failed requests.\"}".getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // shouldn't happen
+        }
+    }
+
+    private static final long WINDOW_MILLIS = 60000L;
+    private static final int MAX_CLIENTS = 10000;
+    private static final int LOG_MAX_PER_SECOND = 10;
+
+    @Inject
+    private BackplaneConfig bpConfig;
+
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+
+    private final AtomicLong logSecond = new AtomicLong();
+    private final AtomicInteger logged = new AtomicInteger();
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    private final MeterMetric blocked = Metrics.newMeter(ClientFailureFilter.class, "clients_blocked", "clients", TimeUnit.MINUTES);
+    private final MeterMetric rejected = Metrics.newMeter(ClientFailureFilter.class, "blocked_requests", "requests", TimeUnit.MINUTES);
+
+    private static final class Client {
+        private volatile long windowStart;
+        private int failures;
+        private volatile long blockedUntil;
+    }
+
+    private void count(String client, long now) {
+        int max;
+        long blockMillis;
+        try {
+            max = bpConfig.getClientFailuresMax();
+            blockMillis = bpConfig.getClientBlockSeconds() * 1000L;
+        } catch (SimpleDBException e) {
+            return; // not counted while the configuration cannot be read
+        }
+        if (max <= 0) return;
+
+        Client entry = clients.get(client);
+        if (entry == null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                sweep(now);
+            }
+            entry = new Client();
+            Client existing = clients.putIfAbsent(client, entry);
+            if (existing != null) entry = existing;
+        }
+        synchronized (entry) {
+            if (now - entry.windowStart >= WINDOW_MILLIS) {
+                entry.windowStart = now;
+                entry.failures = 0;
+            }
+            if (++entry.failures > max && entry.blockedUntil <= now) {
+                entry.blockedUntil = now + blockMillis;
+                entry.failures = 0;
+                blocked.mark();
+                logger.warn("Blocking client " + client + " for " + blockMillis / 1000 + " seconds after " + max + " failed requests");
+            }
+        }
+    }
+
+    /**
+     * Discards the clients that are neither blocked nor failed within the last minute, or all of them if they all did.
+     */
+    private void sweep(long now) {
+        Iterator<Client> entries = clients.values().iterator();
+        while (entries.hasNext()) {
+            Client entry = entries.next();
+            if (entry.blockedUntil <= now && now - entry.windowStart >= WINDOW_MILLIS) {
+                entries.remove();
+            }
+        }
+        if (clients.size() >= MAX_CLIENTS) {
+            clients.clear();
+        }
+    }
+
+    private boolean sampleLog(long now) {
+        long second = now / 1000;
+        long current = logSecond.get();
+        if (second != current && logSecond.compareAndSet(current, second)) {
+            logged.set(0);
+            int dropped = suppressed.getAndSet(0);
+            if (dropped > 0) {
+                logger.warn("Suppressed " + dropped + " failed request log entries");
+            }
+        }
+        if (logged.incrementAndGet() <= LOG_MAX_PER_SECOND) return true;
+        suppressed.incrementAndGet();
+        return false;
+    }
+}
@@ -0,0 +1,223 @@
+package com.janrain.simpledb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.janrain.message.NamedMap;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import org.apache.log4j.Logger;
+
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SuperSimpleDB decorator that injects latency, errors and throttling, per operation, in front of the real store.
+ *
+ * Disabled by default, in which case calls go straight to the delegate. Profiles and the enabled flag
+ * can be changed at runtime (e.g. through the provisioning API) to observe the server's behavior
+ * when SimpleDB's latency or error rates degrade.
+ *
+ * Injected errors are the ones the AWS client would throw, wrapped the same way SuperSimpleDBImpl wraps them.
+ *
+ * @see FaultProfile
+ */
+public class FaultInjectingSuperSimpleDB implements SuperSimpleDB {
+
+    // - PUBLIC
+
+    public FaultInjectingSuperSimpleDB(SuperSimpleDB delegate) {
+        this.delegate = delegate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        logger.info("SimpleDB fault injection " + (enabled ? "enabled: " + profiles : "disabled"));
+    }
+
+    /**
+     * Replaces all fault profiles.
+     *
+     * @param profileSpecs operation name to profile specification; the "*" key applies to all operations
+     * not explicitly listed
+     */
+    public void setProfiles(Map<String, String> profileSpecs) {
+        Map<Operation, FaultProfile> updated = new EnumMap<Operation, FaultProfile>(Operation.class);
+        String defaultSpec = profileSpecs.get(ALL_OPERATIONS);
+        if (defaultSpec != null) {
+            for (Operation op : Operation.values()) {
+                updated.put(op, FaultProfile.parse(defaultSpec));
+            }
+        }
+        for (Map.Entry<String, String> entry : profileSpecs.entrySet()) {
+            if (ALL_OPERATIONS.equals(entry.getKey())) continue;
+            updated.put(Operation.valueOf(entry.getKey()), FaultProfile.parse(entry.getValue()));
+        }
+        profiles = updated;
+        logger.info("SimpleDB fault injection profiles updated: " + updated);
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("enabled", enabled);
+        Map<String, Object> profileStatus = new LinkedHashMap<String, Object>();
+        for (Map.Entry<Operation, FaultProfile> entry : profiles.entrySet()) {
+            profileStatus.put(entry.getKey().name(), entry.getValue().asMap());
+        }
+        status.put("profiles", profileStatus);
+        status.put("injected_faults", injectedFaults.count());
+        return status;
+    }
+
+    @Override
+    public void create(String table) throws SimpleDBException {
+        inject(Operation.CREATE, table);
+        delegate.create(table);
+    }
+
+    @Override
+    public void checkDomain(String table) {
+        try {
+            inject(Operation.CHECK_DOMAIN, table);
+        } catch (SimpleDBException e) {
+            throw (AmazonClientException) e.getCause(); // as thrown by the real store
+        }
+        delegate.checkDomain(table);
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data) throws SimpleDBException {
+        inject(Operation.STORE, table);
+        delegate.store(table, type, data);
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data, boolean longFields) throws SimpleDBException {
+        inject(Operation.STORE, table);
+        delegate.store(table, type, data, longFields);
+    }
+
+    @Override
+    public <T extends NamedMap> boolean storeIf(String table, Class<T> type, T data, String field, String expectedValue) throws SimpleDBException {
+        inject(Operation.STORE_IF, table);
+        return delegate.storeIf(table, type, data, field, expectedValue);
+    }
+
+    @Override
+    public <T extends NamedMap> void update(String table, Class<T> type, T expected, T updated) throws SimpleDBException {
+        inject(Operation.UPDATE, table);
+        delegate.update(table, type, expected, updated);
+    }
+
+    @Override
+    public void delete(String table, String key) throws SimpleDBException {
+        inject(Operation.DELETE, table);
+        delegate.delete(table, key);
+    }
+
+    @Override
+    public void deleteWhere(String table, String whereClause) throws SimpleDBException {
+        inject(Operation.DELETE_WHERE, table);
+        delegate.deleteWhere(table, whereClause);
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieve(String table, Class<T> type, String key) throws SimpleDBException {
+        inject(Operation.RETRIEVE, table);
+        return delegate.retrieve(table, type, key);
+    }
+
+    @Override
+    public Long retrieveCount(String table, String query) throws SimpleDBException {
+        inject(Operation.RETRIEVE_COUNT, table);
+        return delegate.retrieveCount(table, query);
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieve(String table, Class<T> type) throws SimpleDBException {
+        inject(Operation.RETRIEVE_WHERE, table);
+        return delegate.retrieve(table, type);
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieveWhere(String table, Class<T> type, String whereClause, boolean fetchAllTokens) throws SimpleDBException {
+        inject(Operation.RETRIEVE_WHERE, table);
+        return delegate.retrieveWhere(table, type, whereClause, fetchAllTokens);
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieveAndDelete(String table, Class<T> type, String key) throws SimpleDBException {
+        inject(Operation.RETRIEVE_AND_DELETE, table);
+        return delegate.retrieveAndDelete(table, type, key);
+    }
+
+    @Override
+    public void drop(String table) throws SimpleDBException {
+        inject(Operation.DROP, table);
+        delegate.drop(table);
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(FaultInjectingSuperSimpleDB.class);
+
+    private static final String ALL_OPERATIONS = "*";
+    private static final String SERVICE_NAME = "AmazonSimpleDB";
+
+    private final SuperSimpleDB delegate;
+    private final Random random = new Random();
+
+    private volatile boolean enabled = false;
+    private volatile Map<Operation, FaultProfile> profiles = new EnumMap<Operation, FaultProfile>(Operation.class);
+
+    private final MeterMetric injectedFaults =
+            Metrics.newMeter(FaultInjectingSuperSimpleDB.class, "injected_faults", "faults", TimeUnit.MINUTES);
+
+    private void inject(Operation op, String table) throws SimpleDBException {
+        if (! enabled) return;
+        FaultProfile profile = profiles.get(op);
+        if (profile == null) return;
+
+        long latency = profile.sampleLatencyMillis(random);
+        FaultProfile.Fault fault = profile.sampleFault(random);
+        try {
+            if (fault == FaultProfile.Fault.TIMEOUT) {
+                latency += profile.getTimeoutMillis();
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fault == null) return;
+
+        injectedFaults.mark();
+        logger.debug("Injecting " + fault + " for " + op + " on " + table);
+        AmazonClientException e;
+        switch (fault) {
+            case TIMEOUT:
+                e = new AmazonClientException("Unable to execute HTTP request: Read timed out", new SocketTimeoutException("Read timed out"));
+                break;
+            case CONDITIONAL_CHECK_FAILED:
+                e = serviceException(409, "ConditionalCheckFailed", "Conditional check failed. Attribute value does not match the expected value");
+                break;
+            default: // SERVICE_UNAVAILABLE, THROTTLED
+                e = serviceException(503, "ServiceUnavailable", "Service " + SERVICE_NAME + " is currently unavailable. Please try again later");
+        }
+        throw new SimpleDBException(e.getMessage(), e);
+    }
+
+    private static AmazonServiceException serviceException(int status, String code, String message) {
+        AmazonServiceException e = new AmazonServiceException(message);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        e.setServiceName(SERVICE_NAME);
+        e.setErrorType(status >= 500 ? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+        return e;
+    }
+}
@@ -0,0 +1,173 @@
+package com.janrain.simpledb;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Latency, error and throttling settings injected for a SuperSimpleDB operation.
+ *
+ * Profiles are parsed from comma-separated key=value specifications, e.g.
+ * <code>latency=lognormal:20:1.5:5000,unavailable=0.01,timeout=0.001,timeoutMillis=10000,throttle=50</code>
+ *
+ * <ul>
+ *   <li>latency: fixed:&lt;millis&gt; or lognormal:&lt;medianMillis&gt;:&lt;sigma&gt;[:&lt;maxMillis&gt;]</li>
+ *   <li>timeout, unavailable, conditional: probability (0..1) of a client timeout, a ServiceUnavailable (503)
+ *       or a ConditionalCheckFailed (409) error</li>
+ *   <li>timeoutMillis: how long a simulated timeout blocks before failing</li>
+ *   <li>throttle: maximum operations per second; calls exceeding the rate fail with ServiceUnavailable</li>
+ * </ul>
+ *
+ * @see FaultInjectingSuperSimpleDB
+ */
+public class FaultProfile {
+
+    // - PUBLIC
+
+    public static enum Fault { TIMEOUT, SERVICE_UNAVAILABLE, CONDITIONAL_CHECK_FAILED, THROTTLED }
+
+    public static FaultProfile parse(String spec) {
+        FaultProfile profile = new FaultProfile(spec);
+        if (StringUtils.isBlank(spec)) return profile;
+
+        for (String setting : spec.split(",")) {
+            String[] keyValue = setting.trim().split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Invalid fault profile setting: " + setting);
+            }
+            String key = keyValue[0].trim();
+            String value = keyValue[1].trim();
+            try {
+                if ("latency".equals(key)) {
+                    profile.parseLatency(value);
+                } else if ("timeout".equals(key)) {
+                    profile.timeoutRate = parseRate(value);
+                } else if ("timeoutMillis".equals(key)) {
+                    profile.timeoutMillis = Long.parseLong(value);
+                } else if ("unavailable".equals(key)) {
+                    profile.unavailableRate = parseRate(value);
+                } else if ("conditional".equals(key)) {
+                    profile.conditionalRate = parseRate(value);
+                } else if ("throttle".equals(key)) {
+                    profile.throttle = new Throttle(Double.parseDouble(value));
+                } else {
+                    throw new IllegalArgumentException("Unknown fault profile setting: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in fault profile setting: " + setting, e);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @return the latency to inject for a call, in milliseconds
+     */
+    public long sampleLatencyMillis(Random random) {
+        if (latencySigma <= 0) return latencyMedianMillis;
+        double sample = latencyMedianMillis * Math.exp(latencySigma * random.nextGaussian());
+        return Math.min((long) sample, latencyMaxMillis);
+    }
+
+    /**
+     * @return the fault to inject for a call, or null if the call should proceed
+     */
+    public Fault sampleFault(Random random) {
+        if (throttle != null && ! throttle.tryAcquire()) return Fault.THROTTLED;
+        double p = random.nextDouble();
+        if ((p -= timeoutRate) < 0) return Fault.TIMEOUT;
+        if ((p -= unavailableRate) < 0) return Fault.SERVICE_UNAVAILABLE;
+        if ((p - conditionalRate) < 0) return Fault.CONDITIONAL_CHECK_FAILED;
+        return null;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public Map<String, Object> asMap() {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("spec", spec);
+        result.put("latencyMedianMillis", latencyMedianMillis);
+        result.put("latencySigma", latencySigma);
+        result.put("timeout", timeoutRate);
+        result.put("unavailable", unavailableRate);
+        result.put("conditional", conditionalRate);
+        result.put("throttle", throttle == null ? null : throttle.permitsPerSecond);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    // - PRIVATE
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10000L;
+
+    private final String spec;
+    private long latencyMedianMillis = 0;
+    private double latencySigma = 0;
+    private long latencyMaxMillis = Long.MAX_VALUE;
+    private double timeoutRate = 0;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private double unavailableRate = 0;
+    private double conditionalRate = 0;
+    private Throttle throttle;
+
+    private FaultProfile(String spec) {
+        this.spec = spec;
+    }
+
+    private void parseLatency(String value) {
+        String[] parts = value.split(":");
+        if ("fixed".equals(parts[0]) && parts.length == 2) {
+            latencyMedianMillis = Long.parseLong(parts[1]);
+        } else if ("lognormal".equals(parts[0]) && (parts.length == 3 || parts.length == 4)) {
+            latencyMedianMillis = Long.parseLong(parts[1]);
+            latencySigma = Double.parseDouble(parts[2]);
+            if (parts.length == 4) latencyMaxMillis = Long.parseLong(parts[3]);
+        } else {
+            throw new IllegalArgumentException("Invalid latency specification: " + value);
+        }
+    }
+
+    private static double parseRate(String value) {
+        double rate = Double.parseDouble(value);
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Fault rate must be between 0 and 1: " + value);
+        }
+        return rate;
+    }
+
+    /**
+     * Token bucket allowing permitsPerSecond sustained calls, with bursts of up to one second's worth.
+     */
+    private static class Throttle {
+
+        private Throttle(double permitsPerSecond) {
+            if (permitsPerSecond <= 0) {
+                throw new IllegalArgumentException("Throttle rate must be positive: " + permitsPerSecond);
+            }
+            this.permitsPerSecond = permitsPerSecond;
+            this.tokens = permitsPerSecond;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(permitsPerSecond, tokens + (now - lastRefillNanos) * permitsPerSecond / 1e9);
+            lastRefillNanos = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        private final double permitsPerSecond;
+        private double tokens;
+        private long lastRefillNanos;
+    }
+}
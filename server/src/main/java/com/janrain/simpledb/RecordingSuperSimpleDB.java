@@ -0,0 +1,330 @@
+package com.janrain.simpledb;
+
+import com.janrain.message.NamedMap;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SuperSimpleDB decorator that records every call, with its arguments, results and timing, to a StorageJournal.
+ *
+ * Not recording by default, in which case calls go straight to the delegate.
+ * Recording is started and stopped at runtime (e.g. through the provisioning API), and only once
+ * the BP_STORAGE_JOURNAL_DIR system property names the directory to write journals to; journal files
+ * are readable by their owner only.
+ *
+ * Items are journaled only for the tables named with one of the configured suffixes, e.g. messages;
+ * calls on other tables, e.g. holding credentials or configuration, are journaled without their items.
+ *
+ * @see ReplaySuperSimpleDB
+ */
+public class RecordingSuperSimpleDB implements SuperSimpleDB {
+
+    // - PUBLIC
+
+    public static final String JOURNAL_DIR_PROPERTY = "BP_STORAGE_JOURNAL_DIR";
+
+    /**
+     * @param journaledTableSuffixes suffixes of the names of the tables whose items are journaled
+     */
+    public RecordingSuperSimpleDB(SuperSimpleDB delegate, Set<String> journaledTableSuffixes) {
+        this.delegate = delegate;
+        this.journaledTableSuffixes = new HashSet<String>(journaledTableSuffixes);
+    }
+
+    /**
+     * @return true if the table's items are journaled
+     */
+    public static boolean isJournaled(String table, Set<String> journaledTableSuffixes) {
+        for (String suffix : journaledTableSuffixes) {
+            if (table != null && table.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts recording to a new journal file, stopping the current recording first, if any.
+     *
+     * @throws IOException if no journal directory is configured, or the journal file cannot be created
+     */
+    public synchronized void startRecording() throws IOException {
+        String dir = System.getProperty(JOURNAL_DIR_PROPERTY);
+        if (dir == null || dir.trim().length() == 0 || ! new File(dir).isDirectory()) {
+            throw new IOException("No storage journal directory, set the " + JOURNAL_DIR_PROPERTY + " system property to an existing directory");
+        }
+        stopRecording();
+        File file = new File(dir, "simpledb-" + System.currentTimeMillis() + ".journal.gz");
+        if (! file.createNewFile()) {
+            throw new IOException("Storage journal already exists: " + file);
+        }
+        // owner only
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        if (! file.setReadable(true, true) || ! file.setWritable(true, true)) {
+            file.delete();
+            throw new IOException("Cannot restrict access to storage journal " + file);
+        }
+        journal = StorageJournal.open(file);
+    }
+
+    public synchronized void stopRecording() {
+        StorageJournal current = journal;
+        journal = null;
+        if (current != null) {
+            current.close();
+            last = current;
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        StorageJournal current = journal;
+        StorageJournal shown = current != null ? current : last;
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("recording", current != null);
+        if (shown != null) {
+            status.put("journal", shown.getFile().getAbsolutePath());
+            status.put("written", shown.getWritten());
+            status.put("dropped", shown.getDropped());
+        }
+        return status;
+    }
+
+    @Override
+    public void create(String table) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.CREATE, table);
+        try {
+            delegate.create(table);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public void checkDomain(String table) {
+        StorageJournal.Entry entry = begin(Operation.CHECK_DOMAIN, table);
+        try {
+            delegate.checkDomain(table);
+        } catch (RuntimeException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data) throws SimpleDBException {
+        store(table, type, data, false);
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data, boolean longFields) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.STORE, table);
+        if (entry != null) {
+            entry.key = data.getName();
+            entry.items = items(table, data);
+        }
+        try {
+            delegate.store(table, type, data, longFields);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public <T extends NamedMap> boolean storeIf(String table, Class<T> type, T data, String field, String expectedValue) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.STORE_IF, table);
+        if (entry != null) {
+            entry.key = data.getName();
+            entry.items = items(table, data);
+        }
+        boolean stored;
+        try {
+            stored = delegate.storeIf(table, type, data, field, expectedValue);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        if (entry != null) entry.count = stored ? 1L : 0L;
+        end(entry);
+        return stored;
+    }
+
+    @Override
+    public <T extends NamedMap> void update(String table, Class<T> type, T expected, T updated) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.UPDATE, table);
+        if (entry != null) {
+            entry.key = expected.getName();
+            entry.items = items(table, updated);
+        }
+        try {
+            delegate.update(table, type, expected, updated);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public void delete(String table, String key) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.DELETE, table);
+        if (entry != null) entry.key = key;
+        try {
+            delegate.delete(table, key);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public void deleteWhere(String table, String whereClause) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.DELETE_WHERE, table);
+        if (entry != null) entry.where = whereClause;
+        try {
+            delegate.deleteWhere(table, whereClause);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieve(String table, Class<T> type, String key) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.RETRIEVE, table);
+        if (entry != null) entry.key = key;
+        T result;
+        try {
+            result = delegate.retrieve(table, type, key);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        if (entry != null) entry.items = items(table, result);
+        end(entry);
+        return result;
+    }
+
+    @Override
+    public Long retrieveCount(String table, String query) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.RETRIEVE_COUNT, table);
+        if (entry != null) entry.where = query;
+        Long result;
+        try {
+            result = delegate.retrieveCount(table, query);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        if (entry != null) entry.count = result;
+        end(entry);
+        return result;
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieve(String table, Class<T> type) throws SimpleDBException {
+        return retrieveWhere(table, type, null, true);
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieveWhere(String table, Class<T> type, String whereClause, boolean fetchAllTokens) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.RETRIEVE_WHERE, table);
+        if (entry != null) {
+            entry.where = whereClause;
+            entry.fetchAll = fetchAllTokens;
+        }
+        List<T> result;
+        try {
+            result = delegate.retrieveWhere(table, type, whereClause, fetchAllTokens);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        if (entry != null && isJournaled(table, journaledTableSuffixes)) {
+            entry.items = new ArrayList<StorageJournal.Entry.Item>();
+            for (T item : result) {
+                entry.items.add(new StorageJournal.Entry.Item(item));
+            }
+        }
+        end(entry);
+        return result;
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieveAndDelete(String table, Class<T> type, String key) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.RETRIEVE_AND_DELETE, table);
+        if (entry != null) entry.key = key;
+        T result;
+        try {
+            result = delegate.retrieveAndDelete(table, type, key);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        if (entry != null) entry.items = items(table, result);
+        end(entry);
+        return result;
+    }
+
+    @Override
+    public void drop(String table) throws SimpleDBException {
+        StorageJournal.Entry entry = begin(Operation.DROP, table);
+        try {
+            delegate.drop(table);
+        } catch (SimpleDBException e) {
+            throw failed(entry, e);
+        }
+        end(entry);
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(RecordingSuperSimpleDB.class);
+
+    private final SuperSimpleDB delegate;
+    private final Set<String> journaledTableSuffixes;
+
+    private volatile StorageJournal journal;
+    private volatile StorageJournal last;
+
+    /**
+     * @return a new journal entry for the call, or null if not recording
+     */
+    private StorageJournal.Entry begin(Operation op, String table) {
+        if (journal == null) return null;
+        StorageJournal.Entry entry = new StorageJournal.Entry();
+        entry.time = System.currentTimeMillis();
+        entry.micros = System.nanoTime(); // start, replaced with the duration in end()
+        entry.op = op;
+        entry.table = table;
+        return entry;
+    }
+
+    private void end(StorageJournal.Entry entry) {
+        if (entry == null) return;
+        entry.micros = (System.nanoTime() - entry.micros) / 1000;
+        StorageJournal current = journal;
+        if (current != null) {
+            current.append(entry);
+        } else {
+            logger.debug("Recording stopped, discarding journal entry for " + entry.op + " on " + entry.table);
+        }
+    }
+
+    private <E extends Exception> E failed(StorageJournal.Entry entry, E e) {
+        if (entry != null) {
+            entry.error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+            end(entry);
+        }
+        return e;
+    }
+
+    /**
+     * @return the item to journal, or null if the table's items are not journaled
+     */
+    private List<StorageJournal.Entry.Item> items(String table, NamedMap namedMap) {
+        if (! isJournaled(table, journaledTableSuffixes)) return null;
+        List<StorageJournal.Entry.Item> items = new ArrayList<StorageJournal.Entry.Item>();
+        if (namedMap != null) {
+            items.add(new StorageJournal.Entry.Item(namedMap));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,290 @@
+package com.janrain.simpledb;
+
+import com.janrain.message.NamedMap;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SuperSimpleDB implementation serving the responses recorded in a StorageJournal, without any calls to SimpleDB
+ * for the tables whose items were journaled; calls on other tables (e.g. users and bus configurations, which are
+ * not journaled) go to the delegate, if any.
+ *
+ * Used instead of SimpleDB by the server when the BP_STORAGE_REPLAY_JOURNAL system property names a journal file,
+ * with latencies scaled by BP_STORAGE_REPLAY_LATENCY_SCALE (default 1).
+ *
+ * Calls are matched to recorded ones by operation, table, key / where clause and paging mode;
+ * calls that don't match exactly are matched with the quoted literals in their where clauses ignored
+ * (they typically contain timestamps or message IDs that differ between runs).
+ * Repeated calls are served the recorded responses in order, the last one repeating once they run out.
+ *
+ * Recorded latencies are reproduced, multiplied by the configured scale (0 for none).
+ * Write operations only reproduce the recorded latency and errors; the journal's state is not modified.
+ * Unmatched calls return empty results and are counted as misses.
+ *
+ * @see RecordingSuperSimpleDB
+ */
+public class ReplaySuperSimpleDB implements SuperSimpleDB {
+
+    // - PUBLIC
+
+    public static final String JOURNAL_PROPERTY = "BP_STORAGE_REPLAY_JOURNAL";
+    public static final String LATENCY_SCALE_PROPERTY = "BP_STORAGE_REPLAY_LATENCY_SCALE";
+
+    /**
+     * @return a ReplaySuperSimpleDB for the journal named by the BP_STORAGE_REPLAY_JOURNAL system property,
+     * delegating calls on the tables that weren't journaled, or the delegate itself if the property is not set
+     */
+    public static SuperSimpleDB fromSystemProperties(SuperSimpleDB delegate, Set<String> journaledTableSuffixes) throws IOException {
+        String journal = System.getProperty(JOURNAL_PROPERTY);
+        if (journal == null || journal.trim().length() == 0) return delegate;
+        double latencyScale = Double.parseDouble(System.getProperty(LATENCY_SCALE_PROPERTY, "1"));
+        return new ReplaySuperSimpleDB(new File(journal.trim()), latencyScale, delegate, journaledTableSuffixes);
+    }
+
+    /**
+     * Serves all calls from the journal.
+     */
+    public ReplaySuperSimpleDB(File journal, double latencyScale) throws IOException {
+        this(journal, latencyScale, null, null);
+    }
+
+    /**
+     * @param delegate the storage for the tables whose items were not journaled
+     * @param journaledTableSuffixes suffixes of the names of the tables whose items were journaled
+     */
+    public ReplaySuperSimpleDB(File journal, double latencyScale, SuperSimpleDB delegate, Set<String> journaledTableSuffixes) throws IOException {
+        this.latencyScale = latencyScale;
+        this.delegate = delegate;
+        this.journaledTableSuffixes = journaledTableSuffixes == null ? null : new HashSet<String>(journaledTableSuffixes);
+        List<StorageJournal.Entry> entries = StorageJournal.read(journal);
+        for (StorageJournal.Entry entry : entries) {
+            index(exact, exactKey(entry.op, entry.table, entry.key, entry.where, entry.fetchAll), entry);
+            index(normalized, exactKey(entry.op, entry.table, entry.key, normalize(entry.where), entry.fetchAll), entry);
+        }
+        logger.info("Replaying " + entries.size() + " storage calls from " + journal + ", latency scale: " + latencyScale);
+    }
+
+    public long getServed() {
+        return served.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void create(String table) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.create(table);
+            return;
+        }
+        replay(Operation.CREATE, table, null, null, null);
+    }
+
+    @Override
+    public void checkDomain(String table) {
+        if (delegated(table)) {
+            delegate.checkDomain(table);
+            return;
+        }
+        try {
+            replay(Operation.CHECK_DOMAIN, table, null, null, null);
+        } catch (SimpleDBException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data) throws SimpleDBException {
+        store(table, type, data, false);
+    }
+
+    @Override
+    public <T extends NamedMap> void store(String table, Class<T> type, T data, boolean longFields) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.store(table, type, data, longFields);
+            return;
+        }
+        replay(Operation.STORE, table, data.getName(), null, null);
+    }
+
+    @Override
+    public <T extends NamedMap> boolean storeIf(String table, Class<T> type, T data, String field, String expectedValue) throws SimpleDBException {
+        if (delegated(table)) return delegate.storeIf(table, type, data, field, expectedValue);
+        StorageJournal.Entry entry = replay(Operation.STORE_IF, table, data.getName(), null, null);
+        return entry == null || entry.count == null || entry.count > 0;
+    }
+
+    @Override
+    public <T extends NamedMap> void update(String table, Class<T> type, T expected, T updated) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.update(table, type, expected, updated);
+            return;
+        }
+        replay(Operation.UPDATE, table, expected.getName(), null, null);
+    }
+
+    @Override
+    public void delete(String table, String key) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.delete(table, key);
+            return;
+        }
+        replay(Operation.DELETE, table, key, null, null);
+    }
+
+    @Override
+    public void deleteWhere(String table, String whereClause) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.deleteWhere(table, whereClause);
+            return;
+        }
+        replay(Operation.DELETE_WHERE, table, null, whereClause, null);
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieve(String table, Class<T> type, String key) throws SimpleDBException {
+        if (delegated(table)) return delegate.retrieve(table, type, key);
+        return single(type, replay(Operation.RETRIEVE, table, key, null, null));
+    }
+
+    @Override
+    public Long retrieveCount(String table, String query) throws SimpleDBException {
+        if (delegated(table)) return delegate.retrieveCount(table, query);
+        StorageJournal.Entry entry = replay(Operation.RETRIEVE_COUNT, table, null, query, null);
+        return entry == null || entry.count == null ? 0L : entry.count;
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieve(String table, Class<T> type) throws SimpleDBException {
+        return retrieveWhere(table, type, null, true);
+    }
+
+    @Override
+    public <T extends NamedMap> List<T> retrieveWhere(String table, Class<T> type, String whereClause, boolean fetchAllTokens) throws SimpleDBException {
+        if (delegated(table)) return delegate.retrieveWhere(table, type, whereClause, fetchAllTokens);
+        StorageJournal.Entry entry = replay(Operation.RETRIEVE_WHERE, table, null, whereClause, fetchAllTokens);
+        List<T> result = new ArrayList<T>();
+        if (entry != null && entry.items != null) {
+            for (StorageJournal.Entry.Item item : entry.items) {
+                result.add(instance(type, item));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public <T extends NamedMap> T retrieveAndDelete(String table, Class<T> type, String key) throws SimpleDBException {
+        if (delegated(table)) return delegate.retrieveAndDelete(table, type, key);
+        return single(type, replay(Operation.RETRIEVE_AND_DELETE, table, key, null, null));
+    }
+
+    @Override
+    public void drop(String table) throws SimpleDBException {
+        if (delegated(table)) {
+            delegate.drop(table);
+            return;
+        }
+        replay(Operation.DROP, table, null, null, null);
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(ReplaySuperSimpleDB.class);
+
+    private final double latencyScale;
+    private final SuperSimpleDB delegate;
+    private final Set<String> journaledTableSuffixes;
+    private final Map<String, Responses> exact = new HashMap<String, Responses>();
+    private final Map<String, Responses> normalized = new HashMap<String, Responses>();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Recorded responses for a call, served in order; the last one is repeated.
+     */
+    private static class Responses {
+
+        private synchronized StorageJournal.Entry next() {
+            return entries.size() > 1 ? entries.removeFirst() : entries.getFirst();
+        }
+
+        private final LinkedList<StorageJournal.Entry> entries = new LinkedList<StorageJournal.Entry>();
+    }
+
+    /**
+     * @return true if calls on the table go to the delegate
+     */
+    private boolean delegated(String table) {
+        return delegate != null && ! RecordingSuperSimpleDB.isJournaled(table, journaledTableSuffixes);
+    }
+
+    private static void index(Map<String, Responses> index, String key, StorageJournal.Entry entry) {
+        Responses responses = index.get(key);
+        if (responses == null) {
+            responses = new Responses();
+            index.put(key, responses);
+        }
+        responses.entries.add(entry);
+    }
+
+    private static String exactKey(Operation op, String table, String key, String where, Boolean fetchAll) {
+        return op + "|" + table + "|" + key + "|" + where + "|" + fetchAll;
+    }
+
+    private static String normalize(String where) {
+        return where == null ? null : where.replaceAll("'(?:[^']|'')*'", "?").replaceAll("\"(?:[^\"]|\"\")*\"", "?");
+    }
+
+    /**
+     * @return the recorded entry matching the call, or null if none matched
+     * @throws SimpleDBException if the recorded call failed
+     */
+    private StorageJournal.Entry replay(Operation op, String table, String key, String where, Boolean fetchAll) throws SimpleDBException {
+        Responses responses = exact.get(exactKey(op, table, key, where, fetchAll));
+        if (responses == null) {
+            responses = normalized.get(exactKey(op, table, key, normalize(where), fetchAll));
+        }
+        if (responses == null) {
+            misses.incrementAndGet();
+            logger.debug("No recorded response for " + op + " on " + table + ": " + (key != null ? key : where));
+            return null;
+        }
+
+        StorageJournal.Entry entry = responses.next();
+        served.incrementAndGet();
+        long delayMicros = (long) (entry.micros * latencyScale);
+        if (delayMicros > 0) {
+            try {
+                Thread.sleep(delayMicros / 1000, (int) (delayMicros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (entry.error != null) {
+            throw new SimpleDBException(entry.error);
+        }
+        return entry;
+    }
+
+    private static <T extends NamedMap> T single(Class<T> type, StorageJournal.Entry entry) throws SimpleDBException {
+        if (entry == null || entry.items == null || entry.items.isEmpty()) return null;
+        return instance(type, entry.items.get(0));
+    }
+
+    private static <T extends NamedMap> T instance(Class<T> type, StorageJournal.Entry.Item item) throws SimpleDBException {
+        try {
+            T result = type.newInstance();
+            result.init(item.name, item.attributes);
+            return result;
+        } catch (InstantiationException e) {
+            throw new SimpleDBException(e.getMessage(), e);
+        } catch (IllegalAccessException e) {
+            throw new SimpleDBException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.janrain.simpledb;
+
+import com.janrain.message.Json;
+import com.janrain.message.NamedMap;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Journal of SuperSimpleDB calls and their results: a gzipped file with one JSON entry per line.
+ *
+ * Entries are appended by a background thread, so recording never blocks the calling thread on I/O;
+ * entries are dropped (and counted) if the writer falls behind by more than the queue capacity.
+ *
+ * @see RecordingSuperSimpleDB
+ * @see ReplaySuperSimpleDB
+ */
+public class StorageJournal {
+
+    // - PUBLIC
+
+    /**
+     * A recorded storage call.
+     */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    public static class Entry {
+
+        /** start time, milliseconds since the epoch */
+        public long time;
+        /** call duration, microseconds */
+        public long micros;
+        public SuperSimpleDB.Operation op;
+        public String table;
+        /** item name, for single-item operations */
+        public String key;
+        /** where clause, or the full query for count queries */
+        public String where;
+        public Boolean fetchAll;
+        /** returned items, for retrieve operations: name and attributes */
+        public List<Item> items;
+        public Long count;
+        /** error message, if the call failed */
+        public String error;
+
+        public static class Item {
+            public String name;
+            public Map<String, String> attributes;
+
+            public Item() { }
+
+            public Item(NamedMap namedMap) {
+                this.name = namedMap.getName();
+                this.attributes = new LinkedHashMap<String, String>(namedMap);
+            }
+        }
+    }
+
+    /**
+     * Starts a journal writer thread appending to the provided file.
+     */
+    public static StorageJournal open(File file) throws IOException {
+        return new StorageJournal(file);
+    }
+
+    /**
+     * Reads all entries from a journal file.
+     */
+    public static List<Entry> read(File file) throws IOException {
+        List<Entry> result = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    result.add(Json.read(line, Entry.class));
+                }
+            }
+        } catch (EOFException e) {
+            // journal not closed properly, keep what was read
+            logger.warn("Truncated storage journal: " + file + ", read " + result.size() + " entries");
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Queues an entry for writing.
+     */
+    public void append(Entry entry) {
+        if (closed || ! queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes all queued entries and closes the journal file.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(StorageJournal.class);
+
+    private static final int QUEUE_CAPACITY = 100000;
+
+    private final File file;
+    private final Writer out;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+
+    private StorageJournal(File file) throws IOException {
+        this.file = file;
+        this.out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8"));
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, "storage-journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("Storage journal started: " + file);
+    }
+
+    private void writeEntries() {
+        try {
+            while (! closed || ! queue.isEmpty()) {
+                Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (entry == null) continue;
+                out.write(Json.writeString(entry));
+                out.write('\n');
+                written.incrementAndGet();
+            }
+        } catch (Exception e) {
+            logger.error("Storage journal write error, recording stopped: " + e.getMessage(), e);
+            closed = true;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.error("Error closing storage journal " + file, e);
+            }
+            logger.info("Storage journal closed: " + file + ", " + written.get() + " entries written, " + dropped.get() + " dropped");
+        }
+    }
+}
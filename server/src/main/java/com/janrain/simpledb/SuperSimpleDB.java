@@ -18,6 +18,13 @@ import java.util.List;
  */
 public interface SuperSimpleDB {
 
+    /**
+     * Storage operations, as seen by decorators that instrument or alter them.
+     */
+    public static enum Operation {
+        CREATE, CHECK_DOMAIN, STORE, STORE_IF, UPDATE, DELETE, DELETE_WHERE, RETRIEVE, RETRIEVE_COUNT, RETRIEVE_WHERE, RETRIEVE_AND_DELETE, DROP
+    }
+
     /**
      * Creates a new table/domain with the provided name.
      */
@@ -45,6 +52,14 @@ public interface SuperSimpleDB {
      */
     public <T extends NamedMap> void store(String table, Class<T> type, T data, boolean longFields) throws SimpleDBException;
 
+    /**
+     * Stores the provided entry if the existing one's field has the expected value,
+     * or if the field (or the entry) doesn't exist when the expected value is null.
+     *
+     * @return false if the condition was not met, in which case nothing was stored
+     */
+    public <T extends NamedMap> boolean storeIf(String table, Class<T> type, T data, String field, String expectedValue) throws SimpleDBException;
+
     /**
      * Updates an expected, existing entry with a new one.
      * Throws if the provided expected entry is not equal to the one in the database.
@@ -80,7 +95,8 @@ public interface SuperSimpleDB {
     /**
      * Retrieves all entries from the specified table/domain matching the provided where clause.
      * @param whereClause can be null or empty, in which case all entries are returned
-     * @param fetchAllTokens is set to true if all results are desired or false if "limit x" is being used
+     * @param fetchAllTokens is set to true if all results are desired or false if "limit x" is being used,
+     * in which case the first x results are returned, or all if there are fewer
      */
     public <T extends NamedMap> List<T> retrieveWhere(String table, Class<T> type, String whereClause, boolean fetchAllTokens) throws SimpleDBException;
 
@@ -1,9 +1,11 @@
 package com.janrain.simpledb;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.*;
 import com.janrain.message.NamedMap;
+import com.janrain.message.PackableNamedMap;
 import com.janrain.util.Pair;
 import com.janrain.util.Utf8StringUtils;
 import org.apache.commons.codec.binary.Base64;
@@ -14,6 +16,8 @@ import org.springframework.context.annotation.Scope;
 import javax.inject.Inject;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A class that provides easier access to Amazon SimpleDB data store.
@@ -57,6 +61,28 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
         }
     }
 
+    @Override
+    public <T extends NamedMap> boolean storeIf(String table, Class<T> type, T data, String field, String expectedValue) throws SimpleDBException {
+        try {
+            checkDomain(table);
+            type.cast(data); // enforce runtime type-safety
+            UpdateCondition condition = expectedValue == null ?
+                new UpdateCondition().withName(field).withExists(false) :
+                new UpdateCondition().withName(field).withValue(expectedValue).withExists(true);
+            simpleDB.putAttributes(new PutAttributesRequest(table, data.getName(), asReplacebleAttributes(data, false), condition));
+            logger.info("SimpleDB stored " + table + "/" + data.getName() + " if " + field + "=" + expectedValue);
+            return true;
+        } catch (AmazonServiceException e) {
+            if (CONDITIONAL_CHECK_FAILED.equals(e.getErrorCode()) || ATTRIBUTE_DOES_NOT_EXIST.equals(e.getErrorCode())) {
+                logger.info("SimpleDB did not store " + table + "/" + data.getName() + ", " + field + " is not " + expectedValue);
+                return false;
+            }
+            throw new SimpleDBException("storeIf() threw an exception for domain " + table + ", " + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new SimpleDBException("storeIf() threw an exception for domain " + table + ", " + e.getMessage(), e);
+        }
+    }
+
     @Override
     public <T extends NamedMap> void update(String table, Class<T> type, T expected, T updated) throws SimpleDBException {
         String accessLockToken = null;
@@ -236,6 +262,9 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
 
     private static final String UNIQUE_LOCK_ATTR = "ssdb_unique_retrieve" ;
 
+    private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+    private static final String ATTRIBUTE_DOES_NOT_EXIST = "AttributeDoesNotExist";
+
     private static final String LONG_FIELDS_ATTR = "ssdb_has_long_fields" ;
     private static final String LONG_FIELDS_DELIM = "." ;
 
@@ -244,6 +273,8 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
 
     private static final int BATCH_DELETE_LIMIT = 25;
 
+    private static final Pattern SELECT_LIMIT = Pattern.compile("\\blimit\\s+(\\d+)\\s*$", Pattern.CASE_INSENSITIVE);
+
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
     @Inject
@@ -261,7 +292,8 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
     private <T extends NamedMap> List<ReplaceableAttribute> asReplacebleAttributes(T data, boolean longFields) {
         List<ReplaceableAttribute> attrs = new ArrayList<ReplaceableAttribute>();
         StringBuilder encodedLongEntries = new StringBuilder();
-        for (Map.Entry<String, String> entry : data.entrySet()) {
+        Map<String, String> storageAttributes = data instanceof PackableNamedMap ? ((PackableNamedMap) data).getStorageAttributes() : data;
+        for (Map.Entry<String, String> entry : storageAttributes.entrySet()) {
             if (longFields && isLongEntry(entry)) {
                 addLongEntry(encodedLongEntries, entry);
             } else {
@@ -436,6 +468,8 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
         try {
             List<Item> result = new ArrayList<Item>();
             String query = "select * from `" + table + "`" + (StringUtils.isBlank(whereClause) ? "" : " where " + whereClause);
+            // pages may hold fewer than limit items, if they reach SimpleDB's response size limit
+            int limit = fetchAllTokens ? 0 : selectLimit(whereClause);
             SelectRequest selectRequest = new SelectRequest(query, true);
             SelectResult selectResult;
             String nextToken;
@@ -444,8 +478,8 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
                 nextToken = selectResult.getNextToken();
                 result.addAll(selectResult.getItems());
                 selectRequest.setNextToken(nextToken);
-            } while (nextToken != null && fetchAllTokens);
-            return result;
+            } while (nextToken != null && (fetchAllTokens || result.size() < limit));
+            return limit > 0 && result.size() > limit ? new ArrayList<Item>(result.subList(0, limit)) : result;
         } catch (AmazonClientException e) {
             throw new SimpleDBException(e.getMessage(), e);
         }
@@ -453,6 +487,14 @@ public class SuperSimpleDBImpl implements SuperSimpleDB {
 
 
 
+    /**
+     * @return the where clause's "limit x" value, or 0 if it has none
+     */
+    private static int selectLimit(String whereClause) {
+        Matcher limit = whereClause == null ? null : SELECT_LIMIT.matcher(whereClause);
+        return limit != null && limit.find() ? Integer.parseInt(limit.group(1)) : 0;
+    }
+
     private void doDelete(String table, String key, String accessLockToken) throws SimpleDBException {
         try {
             DeleteAttributesRequest deleteRequest = accessLockToken != null ?
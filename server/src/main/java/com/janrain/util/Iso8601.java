@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.util;
+
+import java.text.ParseException;
+
+/**
+ * Thread-safe formatter and parser for UTC timestamps with millisecond precision, in the
+ * yyyy-MM-dd'T'HH:mm:ss.SSS'Z' format used for message IDs, expiration times and metrics, e.g. 2012-05-01T10:00:00.000Z.
+ *
+ * Formatting writes into caller-supplied buffers, and reuses the last formatted second
+ * so that only the milliseconds are written for timestamps within the same second.
+ */
+public final class Iso8601 {
+
+    // - PUBLIC
+
+    /**
+     * Length of a formatted timestamp.
+     */
+    public static final int LENGTH = 24;
+
+    /**
+     * Writes the timestamp's LENGTH characters into the buffer, at the offset.
+     *
+     * @return the offset after the timestamp
+     */
+    public static int format(long millis, char[] buffer, int offset) {
+        Second cached = second(millis);
+        System.arraycopy(cached.prefix, 0, buffer, offset, SECOND_LENGTH);
+        int ms = (int) (millis - cached.second * 1000);
+        buffer[offset + SECOND_LENGTH] = (char) ('0' + ms / 100);
+        buffer[offset + SECOND_LENGTH + 1] = (char) ('0' + ms / 10 % 10);
+        buffer[offset + SECOND_LENGTH + 2] = (char) ('0' + ms % 10);
+        buffer[offset + SECOND_LENGTH + 3] = 'Z';
+        return offset + LENGTH;
+    }
+
+    /**
+     * Appends the timestamp to the builder.
+     */
+    public static StringBuilder format(long millis, StringBuilder out) {
+        Second cached = second(millis);
+        int ms = (int) (millis - cached.second * 1000);
+        return out.append(cached.prefix)
+            .append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10)).append((char) ('0' + ms % 10))
+            .append('Z');
+    }
+
+    public static String format(long millis) {
+        char[] buffer = new char[LENGTH];
+        format(millis, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * Parses the timestamp at the start of the text; anything after it, e.g. a message ID's suffix, is ignored.
+     *
+     * @return the timestamp's milliseconds since the epoch
+     */
+    public static long parse(CharSequence text) throws ParseException {
+        if (text.length() < LENGTH) {
+            throw new ParseException("Timestamp too short: " + text, text.length());
+        }
+        int year = digits(text, 0, 4);
+        expect(text, 4, '-');
+        int month = digits(text, 5, 2);
+        expect(text, 7, '-');
+        int day = digits(text, 8, 2);
+        expect(text, 10, 'T');
+        int hour = digits(text, 11, 2);
+        expect(text, 13, ':');
+        int minute = digits(text, 14, 2);
+        expect(text, 16, ':');
+        int second = digits(text, 17, 2);
+        expect(text, 19, '.');
+        int ms = digits(text, 20, 3);
+        expect(text, 23, 'Z');
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            throw new ParseException("Invalid timestamp: " + text, 0);
+        }
+        return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L + ms;
+    }
+
+    // - PRIVATE
+
+    private static final int SECOND_LENGTH = 20;
+
+    /**
+     * The last formatted second, shared by all threads: each instance is immutable, and a stale or
+     * concurrently replaced one only costs formatting the second again.
+     */
+    private static volatile Second lastSecond;
+
+    private Iso8601() { }
+
+    private static final class Second {
+
+        private Second(long second) {
+            this.second = second;
+            long days = floorDiv(second, 86400);
+            int secondOfDay = (int) (second - days * 86400);
+            // civil date from days since the epoch, in the proleptic Gregorian calendar
+            long z = days + 719468;
+            long era = floorDiv(z, 146097);
+            int dayOfEra = (int) (z - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int mp = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+            int month = mp < 10 ? mp + 3 : mp - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+            char[] chars = new char[SECOND_LENGTH];
+            write(chars, 0, (int) year, 4);
+            chars[4] = '-';
+            write(chars, 5, month, 2);
+            chars[7] = '-';
+            write(chars, 8, day, 2);
+            chars[10] = 'T';
+            write(chars, 11, secondOfDay / 3600, 2);
+            chars[13] = ':';
+            write(chars, 14, secondOfDay / 60 % 60, 2);
+            chars[16] = ':';
+            write(chars, 17, secondOfDay % 60, 2);
+            chars[19] = '.';
+            this.prefix = chars;
+        }
+
+        private final long second;
+        private final char[] prefix;
+    }
+
+    private static Second second(long millis) {
+        long second = floorDiv(millis, 1000);
+        Second cached = lastSecond;
+        if (cached == null || cached.second != second) {
+            cached = new Second(second);
+            lastSecond = cached;
+        }
+        return cached;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static void write(char[] chars, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int digits(CharSequence text, int offset, int count) throws ParseException {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Invalid timestamp: " + text, i);
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    private static void expect(CharSequence text, int offset, char c) throws ParseException {
+        if (text.charAt(offset) != c) {
+            throw new ParseException("Invalid timestamp: " + text, offset);
+        }
+    }
+}
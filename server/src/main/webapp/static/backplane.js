@@ -57,6 +57,8 @@ window.Backplane = window.Backplane || (function() {
  *     channelExpires (optional) - set backplane-channel cookie life span
  *     initFrameFilter (optional) - function to filter the first message frame
  *     cacheMax (optional) - how many messages to cache for late arriving widgets
+ *     block (optional) - seconds the server may hold a poll open waiting for new messages (long-polling)
+ *     stream (optional) - set to false to poll even if the browser supports EventSource
  */
 Backplane.init = function(config) {
     config = config || {};
@@ -243,6 +245,8 @@ Backplane.normalizeURL = function(rawURL) {
 
 Backplane.calcTimeout = function() {
     var timeout, ts = this.getTS();
+    // long-polls wait on the server, re-poll right away
+    if (this.blockSeconds()) return this.intervals.min * 1000;
     if (ts < this.awaiting.until) {
         // stop frequent polling as soon as all the necessary messages received
         if (!this.awaiting.nonstop && !this.awaiting.queue.length) {
@@ -272,16 +276,23 @@ Backplane.request = function() {
     if (!this.initialized) return false;
     this.stopTimer("regular");
     this.stopTimer("watchdog");
+    // messages are pushed once the stream is open
+    if (this.eventSource) return true;
+    if (this.canStream()) {
+        this.openStream();
+        return true;
+    }
     this.timers.regular = setTimeout(function() {
         // if no response in the reasonable time just restart request
         self.timers.watchdog = setTimeout(function() {
             self.request();
-        }, 5000);
+        }, 5000 + self.blockSeconds() * 1000);
         var script = document.createElement("script");
         script.type = "text/javascript";
         script.charset = "utf-8";
         script.src = self.config.channelID + "?callback=Backplane.response" +
             (self.since ? "&since=" + encodeURIComponent(self.since) : "") +
+            (self.blockSeconds() ? "&block=" + self.blockSeconds() : "") +
             "&rnd=" + Math.random();
         var container = document.getElementsByTagName("head")[0] || document.documentElement;
         container.insertBefore(script, container.firstChild);
@@ -347,6 +358,35 @@ Backplane.response = function(messages) {
     this.request();
 };
 
+Backplane.canStream = function() {
+    // the first frame is still fetched by polling, to go through initFrameFilter
+    return typeof this.since != "undefined" && !!window.EventSource &&
+        this.config.stream !== false && !this.streamFailed;
+};
+
+Backplane.openStream = function() {
+    var self = this;
+    // reconnects resume from the last received message through the Last-Event-ID header
+    this.eventSource = new EventSource(this.config.channelID + "/stream" +
+        (this.since ? "?since=" + encodeURIComponent(this.since) : ""));
+    this.eventSource.onmessage = function(event) {
+        self.response([JSON.parse(event.data)]);
+    };
+    this.eventSource.onerror = function() {
+        // the browser gave up reconnecting, e.g. the server refused the stream: go back to polling
+        if (self.eventSource.readyState == 2) {
+            self.eventSource = null;
+            self.streamFailed = true;
+            self.request();
+        }
+    };
+};
+
+Backplane.blockSeconds = function() {
+    // only polls for new messages (with since) are held open by the server
+    return this.since && this.config.block > 0 ? this.config.block : 0;
+};
+
 Backplane.stopTimer = function(name) {
     var timer = this.timers[name];
     if (timer) clearTimeout(timer);
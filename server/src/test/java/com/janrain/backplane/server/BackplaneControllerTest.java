@@ -0,0 +1,205 @@
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.AuthException;
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusConfig;
+import com.janrain.backplane.server.config.MockBackplaneConfig;
+import com.janrain.servlet.ClientFailureFilter;
+import com.janrain.simpledb.SimpleDBException;
+import com.janrain.simpledb.SuperSimpleDB;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class BackplaneControllerTest {
+
+    @Before
+    public void setUp() {
+        bpConfig = new MockBackplaneConfig("test") {
+            @Override
+            public int getClientFailuresMax() {
+                return 2;
+            }
+
+            @Override
+            public int getClientBlockSeconds() {
+                return 60;
+            }
+
+            @Override
+            public String getClientAddressHeader() {
+                return "X-Forwarded-For";
+            }
+
+            @Override
+            public int getBusGetMaxMessages() {
+                return 2;
+            }
+        };
+        clientFailures = new ClientFailureFilter();
+        ReflectionTestUtils.setField(clientFailures, "bpConfig", bpConfig);
+        controller = new BackplaneController();
+        ReflectionTestUtils.setField(controller, "bpConfig", bpConfig);
+        ReflectionTestUtils.setField(controller, "clientFailures", clientFailures);
+    }
+
+    @Test
+    public void testServerErrorsDoNotBlock() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            assertEquals("Error processing request.", controller.handle(new SimpleDBException("unavailable"), request(), response).get("ERR_MSG"));
+            assertEquals(400, response.getStatus());
+            controller.handle(new BackplaneServerException("Message limit exceeded for this channel"), request(), new MockHttpServletResponse());
+        }
+        assertFalse(clientFailures.isBlocked(request()));
+    }
+
+    @Test
+    public void testClientErrorsBlock() throws Exception {
+        controller.handle(new InvalidRequestException("invalid"), request(), new MockHttpServletResponse());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertEquals("Access denied.", controller.handle(new AuthException("User user1 denied GETALL to bus1"), request(), response).get("ERR_MSG"));
+        assertEquals(401, response.getStatus());
+        assertFalse(clientFailures.isBlocked(request()));
+        controller.handle(new AuthException("User user1 denied GETALL to bus1"), request(), new MockHttpServletResponse());
+        assertTrue(clientFailures.isBlocked(request()));
+    }
+
+    @Test
+    public void testETagOnlyOnLastPage() throws Exception {
+        final List<String> posted = Arrays.asList("id1", "id2", "id3");
+        controller = new BackplaneController() {
+            @Override
+            BusConfig checkAuth(String authorization, String bus, BackplaneConfig.BUS_PERMISSION permission) {
+                return null;
+            }
+
+            @Override
+            List<HashMap<String, Object>> getFrames(String bus, String channel, String since, String sticky, int limit, Set<String> fields) {
+                List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
+                for (String id : posted) {
+                    if (id.compareTo(since) > 0 && frames.size() < limit) {
+                        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+                        frame.put("id", id);
+                        frames.add(frame);
+                    }
+                }
+                return frames;
+            }
+        };
+        ChannelHeads channelHeads = createMock(ChannelHeads.class);
+        expect(channelHeads.getHead("bus1", null)).andReturn("id3").anyTimes();
+        replay(channelHeads);
+        ReflectionTestUtils.setField(controller, "bpConfig", bpConfig);
+        ReflectionTestUtils.setField(controller, "channelHeads", channelHeads);
+
+        // not on pages with more messages after them, which a client would otherwise send back with the next cursor
+        MockHttpServletResponse response = getBusMessages(null, null);
+        assertEquals("true", response.getHeader("X-Backplane-More"));
+        assertNull(response.getHeader("ETag"));
+
+        response = getBusMessages("id2", null);
+        assertEquals("false", response.getHeader("X-Backplane-More"));
+        assertEquals("\"id3\"", response.getHeader("ETag"));
+
+        response = getBusMessages("id2", "\"id3\"");
+        assertEquals(304, response.getStatus());
+    }
+
+    @Test
+    public void testIdenticalBatchPollsShareQuery() throws Exception {
+        final CountDownLatch queried = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SuperSimpleDB superSimpleDb = createMock(SuperSimpleDB.class);
+        expect(superSimpleDb.retrieveWhere(eq(bpConfig.getMessagesTableName()), eq(BackplaneMessage.class), isA(String.class), eq(true)))
+            .andAnswer(new IAnswer<List<BackplaneMessage>>() {
+                @Override
+                public List<BackplaneMessage> answer() throws Throwable {
+                    queried.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return Arrays.asList(message("id1", "ch1"), message("id2", "ch2"));
+                }
+            }).once();
+        replay(superSimpleDb);
+        ChannelHeads channelHeads = createNiceMock(ChannelHeads.class);
+        replay(channelHeads);
+        ReflectionTestUtils.setField(controller, "superSimpleDb", superSimpleDb);
+        ReflectionTestUtils.setField(controller, "channelHeads", channelHeads);
+        ReflectionTestUtils.setField(controller, "messageCache", new MessageCache());
+
+        Map<String,String> first = new LinkedHashMap<String, String>();
+        first.put("ch2", "");
+        first.put("ch1", "");
+        Map<String,String> second = new LinkedHashMap<String, String>();
+        second.put("ch1", "");
+        second.put("ch2", "");
+        FutureTask<Map<String, List<HashMap<String,Object>>>> firstPoll = batchPoll(first);
+        Thread firstThread = new Thread(firstPoll);
+        firstThread.start();
+        assertTrue(queried.await(5, TimeUnit.SECONDS));
+
+        // the same channels in another order, while the first poll's query is in flight
+        FutureTask<Map<String, List<HashMap<String,Object>>>> secondPoll = batchPoll(second);
+        Thread secondThread = new Thread(secondPoll);
+        secondThread.start();
+        for (int i = 0; i < 50 && secondThread.getState() == Thread.State.RUNNABLE; i++) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (FutureTask<Map<String, List<HashMap<String,Object>>>> poll : Arrays.asList(firstPoll, secondPoll)) {
+            Map<String, List<HashMap<String,Object>>> frames = poll.get(5, TimeUnit.SECONDS);
+            assertEquals("id1", frames.get("ch1").get(0).get("id"));
+            assertEquals("id2", frames.get("ch2").get(0).get("id"));
+        }
+        verify(superSimpleDb);
+    }
+
+    // - PRIVATE
+
+    private BackplaneConfig bpConfig;
+    private BackplaneController controller;
+    private ClientFailureFilter clientFailures;
+
+    private MockHttpServletResponse getBusMessages(String cursor, String ifNoneMatch) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.getBusMessages(null, "bus1", "", null, null, null, cursor, null, null, ifNoneMatch, request(), response);
+        return response;
+    }
+
+    private FutureTask<Map<String, List<HashMap<String,Object>>>> batchPoll(final Map<String,String> sinceByChannel) {
+        return new FutureTask<Map<String, List<HashMap<String, Object>>>>(new Callable<Map<String, List<HashMap<String, Object>>>>() {
+            @Override
+            public Map<String, List<HashMap<String, Object>>> call() throws Exception {
+                return controller.getFrames("bus1", sinceByChannel);
+            }
+        });
+    }
+
+    private static BackplaneMessage message(String id, String channel) throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put("source", "http://example.com/source");
+        data.put("type", "identity/login");
+        data.put("payload", "{}");
+        return new BackplaneMessage(id, "bus1", channel, data);
+    }
+
+    private static MockHttpServletRequest request() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1.1/bus/bus1");
+        request.setRemoteAddr("10.0.0.100");
+        request.addHeader("X-Forwarded-For", "10.0.0.1");
+        return request;
+    }
+}
@@ -0,0 +1,225 @@
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.AuthException;
+import com.janrain.backplane.server.config.BackplaneConfig;
+import com.janrain.backplane.server.config.BusConfig;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.websocket.*;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class BusSocketTest {
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        registry = new LongPollRegistry();
+        controller = new BackplaneController() {
+            @Override
+            BusConfig checkAuth(String authorization, String bus, BackplaneConfig.BUS_PERMISSION permission) throws AuthException {
+                if (! CREDENTIALS.equals(authorization)) throw new AuthException("Access denied.");
+                return null;
+            }
+
+            @Override
+            List<HashMap<String,Object>> getFrames(String bus, String channel, String since, String sticky, int limit) {
+                List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
+                for (String id : posted) {
+                    if ((since == null || id.compareTo(since) > 0) && frames.size() < limit) {
+                        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+                        frame.put("id", id);
+                        frames.add(frame);
+                    }
+                }
+                return frames;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHandshakeAuthorizationNotShared() throws Exception {
+        BusSocketServer.Configurator configurator = configurator();
+
+        ServerEndpointConfig first = sessionConfig();
+        configurator.modifyHandshake(first, handshake(CREDENTIALS), null);
+        BusSocket authenticated = configurator.getEndpointInstance(BusSocket.class);
+        ServerEndpointConfig second = sessionConfig();
+        configurator.modifyHandshake(second, handshake(null), null);
+        BusSocket anonymous = configurator.getEndpointInstance(BusSocket.class);
+
+        assertOpened(authenticated, first, true);
+        assertOpened(anonymous, second, false);
+    }
+
+    @Test
+    public void testEndpointCreatedBeforeHandshake() throws Exception {
+        BusSocketServer.Configurator configurator = configurator();
+
+        // the container may create the endpoint instances first, in any order
+        BusSocket anonymous = configurator.getEndpointInstance(BusSocket.class);
+        BusSocket authenticated = configurator.getEndpointInstance(BusSocket.class);
+        ServerEndpointConfig first = sessionConfig();
+        configurator.modifyHandshake(first, handshake(CREDENTIALS), null);
+        ServerEndpointConfig second = sessionConfig();
+        configurator.modifyHandshake(second, handshake(null), null);
+
+        assertOpened(anonymous, second, false);
+        assertOpened(authenticated, first, true);
+    }
+
+    @Test
+    public void testFramesSentWithinCredit() throws Exception {
+        posted.addAll(Arrays.asList("1", "2", "3"));
+        FakeSession client = new FakeSession(false);
+        BusSocket socket = open(client);
+        socket.onMessage("2");
+        assertEquals("{\"id\":\"1\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        assertEquals("{\"id\":\"2\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        assertNull(client.sent.poll(100, TimeUnit.MILLISECONDS));
+
+        socket.onMessage("5");
+        assertEquals("{\"id\":\"3\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        posted.add("4");
+        registry.notifyPosted("bus1", "ch1");
+        assertEquals("{\"id\":\"4\"}", client.sent.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSlowClientDoesNotStallOthers() throws Exception {
+        posted.addAll(Arrays.asList("1", "2", "3"));
+        // never completes its sends, on the same single push thread
+        FakeSession stalled = new FakeSession(true);
+        open(stalled).onMessage("10");
+        assertEquals("{\"id\":\"1\"}", stalled.sent.poll(5, TimeUnit.SECONDS));
+
+        FakeSession client = new FakeSession(false);
+        open(client).onMessage("10");
+        assertEquals("{\"id\":\"1\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        assertEquals("{\"id\":\"2\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        assertEquals("{\"id\":\"3\"}", client.sent.poll(5, TimeUnit.SECONDS));
+        assertTrue(stalled.sent.isEmpty());
+
+        // a failed or timed out send closes the socket
+        stalled.pending.onResult(new SendResult(new SocketTimeoutException()));
+        assertEquals(CloseReason.CloseCodes.UNEXPECTED_CONDITION, stalled.closeReason.getCloseCode());
+    }
+
+    // - PRIVATE
+
+    private static final String CREDENTIALS = "Basic dXNlcjE6c2VjcmV0";
+
+    private ExecutorService executor;
+    private LongPollRegistry registry;
+    private BackplaneController controller;
+    private final List<String> posted = new CopyOnWriteArrayList<String>();
+
+    private static class SocketTimeoutException extends Exception { }
+
+    private BusSocket open(FakeSession client) {
+        BusSocket socket = new BusSocket(controller, registry, executor, Collections.newSetFromMap(new ConcurrentHashMap<BusSocket, Boolean>()));
+        ServerEndpointConfig config = sessionConfig();
+        config.getUserProperties().put(BusSocket.AUTHORIZATION, CREDENTIALS);
+        socket.onOpen(client.session, config);
+        assertNull(client.closeReason);
+        return socket;
+    }
+
+    private BusSocketServer.Configurator configurator() {
+        BusSocketServer server = new BusSocketServer();
+        ReflectionTestUtils.setField(server, "controller", controller);
+        ReflectionTestUtils.setField(server, "longPolls", registry);
+        return server.new Configurator();
+    }
+
+    /**
+     * The endpoint configuration of one session, with its own user properties.
+     */
+    private static ServerEndpointConfig sessionConfig() {
+        ServerEndpointConfig config = createMock(ServerEndpointConfig.class);
+        expect(config.getUserProperties()).andReturn(new HashMap<String, Object>()).anyTimes();
+        replay(config);
+        return config;
+    }
+
+    private static void assertOpened(BusSocket socket, ServerEndpointConfig config, boolean authenticated) throws IOException {
+        FakeSession client = new FakeSession(false);
+        socket.onOpen(client.session, config);
+        if (authenticated) {
+            assertNull(client.closeReason);
+        } else {
+            assertNotNull(client.closeReason);
+            assertEquals(CloseReason.CloseCodes.VIOLATED_POLICY, client.closeReason.getCloseCode());
+        }
+    }
+
+    private static HandshakeRequest handshake(String authorization) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        if (authorization != null) {
+            headers.put("Authorization", Arrays.asList(authorization));
+        }
+        HandshakeRequest request = createNiceMock(HandshakeRequest.class);
+        expect(request.getHeaders()).andReturn(headers).anyTimes();
+        replay(request);
+        return request;
+    }
+
+    /**
+     * Session of a client, whose sends complete right away, or never if stalled.
+     */
+    private static class FakeSession {
+
+        private FakeSession(final boolean stalled) throws IOException {
+            RemoteEndpoint.Async async = createNiceMock(RemoteEndpoint.Async.class);
+            async.sendText(isA(String.class), isA(SendHandler.class));
+            expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() {
+                    sent.add((String) getCurrentArguments()[0]);
+                    SendHandler handler = (SendHandler) getCurrentArguments()[1];
+                    if (stalled) {
+                        pending = handler;
+                    } else {
+                        handler.onResult(new SendResult());
+                    }
+                    return null;
+                }
+            }).anyTimes();
+            replay(async);
+
+            session = createNiceMock(Session.class);
+            expect(session.getPathParameters()).andReturn(Collections.singletonMap("bus", "bus1")).anyTimes();
+            expect(session.getRequestParameterMap()).andReturn(Collections.<String, List<String>>emptyMap()).anyTimes();
+            expect(session.getAsyncRemote()).andReturn(async).anyTimes();
+            session.close(isA(CloseReason.class));
+            expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() {
+                    closeReason = (CloseReason) getCurrentArguments()[0];
+                    return null;
+                }
+            }).anyTimes();
+            replay(session);
+        }
+
+        private final Session session;
+        private final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+        private volatile SendHandler pending;
+        private volatile CloseReason closeReason;
+    }
+}
@@ -0,0 +1,167 @@
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.MockBackplaneConfig;
+import com.janrain.simpledb.SimpleDBException;
+import com.janrain.simpledb.SuperSimpleDB;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class ChannelHeadsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        channelHeads = new ChannelHeads();
+        ReflectionTestUtils.setField(channelHeads, "bpConfig", new MockBackplaneConfig("test") {
+            @Override
+            public int getChannelHeadCacheSeconds() {
+                return 60;
+            }
+        });
+        ReflectionTestUtils.setField(channelHeads, "superSimpleDb", superSimpleDb());
+    }
+
+    @Test
+    public void testPostsWrittenOncePerFlush() {
+        channelHeads.posted("bus1", "channel1", "id1", 1);
+        channelHeads.posted("bus1", "channel2", "id2", 1);
+        channelHeads.posted("bus1", "channel1", "id3", 2);
+        assertTrue(stored.isEmpty());
+
+        channelHeads.flush();
+        assertEquals("id3", stored.get("bus1/channel1").getLatestId());
+        assertEquals(3, stored.get("bus1/channel1").getCount());
+        assertEquals("id3", stored.get("bus1").getLatestId());
+        assertEquals(4, stored.get("bus1").getCount());
+        assertEquals(3, writes);
+
+        // conditioned on the version written, without reading it back
+        int readsBefore = reads;
+        channelHeads.posted("bus1", "channel1", "id4", 1);
+        channelHeads.flush();
+        assertEquals("id4", stored.get("bus1").getLatestId());
+        assertEquals(readsBefore, reads);
+    }
+
+    @Test
+    public void testConflictRetriedFromFreshRead() {
+        channelHeads.posted("bus1", "channel1", "id1", 1);
+        channelHeads.flush();
+        // another instance advanced the bus head meanwhile
+        stored.put("bus1", stored.get("bus1").advance("id2", 1));
+
+        int readsBefore = reads;
+        channelHeads.posted("bus1", "channel1", "id3", 1);
+        channelHeads.flush();
+        assertEquals("id3", stored.get("bus1").getLatestId());
+        assertEquals(3, stored.get("bus1").getCount());
+        assertEquals(readsBefore + 1, reads);
+    }
+
+    @Test
+    public void testConflictingWriteRetriedWithNextFlush() {
+        channelHeads.posted("bus1", "channel1", "id1", 1);
+        conflicts = 100;
+        channelHeads.flush();
+        assertTrue(stored.isEmpty());
+        // still known in memory
+        assertEquals("id1", channelHeads.getHead("bus1", null));
+
+        conflicts = 0;
+        channelHeads.posted("bus1", "channel1", "id2", 1);
+        channelHeads.flush();
+        assertEquals("id2", stored.get("bus1").getLatestId());
+        assertEquals(2, stored.get("bus1").getCount());
+    }
+
+    @Test
+    public void testHeadRemovedOnError() {
+        channelHeads.posted("bus1", "channel1", "id1", 1);
+        channelHeads.flush();
+        failing = true;
+        channelHeads.posted("bus1", "channel1", "id2", 1);
+        channelHeads.flush();
+        failing = false;
+        assertNull(channelHeads.getHead("bus1", "channel1"));
+        // the removal failed too, and is retried
+        channelHeads.flush();
+        assertTrue(stored.isEmpty());
+    }
+
+    @Test
+    public void testDiscardRemovesHeads() {
+        channelHeads.posted("bus1", "channel1", "id1", 1);
+        channelHeads.flush();
+        channelHeads.discard("bus1", "channel1");
+        assertNull(channelHeads.getHead("bus1", "channel1"));
+        channelHeads.flush();
+        assertTrue(stored.isEmpty());
+
+        // posts after the removal create the heads again
+        channelHeads.discard("bus1", "channel1");
+        channelHeads.posted("bus1", "channel1", "id2", 1);
+        channelHeads.flush();
+        assertEquals("id2", stored.get("bus1/channel1").getLatestId());
+    }
+
+    // - PRIVATE
+
+    private ChannelHeads channelHeads;
+
+    private final Map<String, ChannelHead> stored = new HashMap<String, ChannelHead>();
+    private int reads;
+    private int writes;
+    private int conflicts;
+    private boolean failing;
+
+    /**
+     * Keeps the heads in memory, with storeIf conditioned on the stored count like SimpleDB's conditional put.
+     */
+    private SuperSimpleDB superSimpleDb() throws SimpleDBException {
+        SuperSimpleDB superSimpleDb = createMock(SuperSimpleDB.class);
+        expect(superSimpleDb.retrieve(isA(String.class), eq(ChannelHead.class), isA(String.class))).andAnswer(new IAnswer<ChannelHead>() {
+            @Override
+            public ChannelHead answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                reads++;
+                return stored.get((String) getCurrentArguments()[2]);
+            }
+        }).anyTimes();
+        expect(superSimpleDb.storeIf(isA(String.class), eq(ChannelHead.class), isA(ChannelHead.class), eq(ChannelHead.COUNT), (String) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                ChannelHead head = (ChannelHead) getCurrentArguments()[2];
+                String expected = (String) getCurrentArguments()[4];
+                ChannelHead current = stored.get(head.getName());
+                String version = current == null ? null : current.get(ChannelHead.COUNT);
+                if (conflicts > 0) {
+                    conflicts--;
+                    return false;
+                }
+                if (version == null ? expected != null : ! version.equals(expected)) return false;
+                writes++;
+                stored.put(head.getName(), head);
+                return true;
+            }
+        }).anyTimes();
+        superSimpleDb.delete(isA(String.class), isA(String.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                stored.remove((String) getCurrentArguments()[1]);
+                return null;
+            }
+        }).anyTimes();
+        replay(superSimpleDb);
+        return superSimpleDb;
+    }
+}
@@ -0,0 +1,156 @@
+package com.janrain.backplane.server;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.util.*;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class ChannelStreamTest {
+
+    @Before
+    public void setUp() {
+        registry = new LongPollRegistry();
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        posted.add(frame("2012-05-01T10:00:00.000Z-0000000001"));
+        FakeAsync async = new FakeAsync();
+        assertTrue(stream("2012-05-01T10:00:00.000Z-0000000000").open(request(async), async.response, 60000L, 10));
+        assertEquals("retry: 1000\n\n" +
+                     "id: 2012-05-01T10:00:00.000Z-0000000001\n" +
+                     "data: {\"id\":\"2012-05-01T10:00:00.000Z-0000000001\",\"channel_name\":\"ch1\"}\n\n",
+                     async.response.getContentAsString());
+
+        posted.add(frame("2012-05-01T10:00:00.000Z-0000000002"));
+        registry.notifyPosted("bus1", "ch1");
+        assertTrue(async.response.getContentAsString().endsWith(
+                     "id: 2012-05-01T10:00:00.000Z-0000000002\n" +
+                     "data: {\"id\":\"2012-05-01T10:00:00.000Z-0000000002\",\"channel_name\":\"ch1\"}\n\n"));
+        // polled since the last event
+        assertEquals("2012-05-01T10:00:00.000Z-0000000001", polledSince.get(polledSince.size() - 1));
+
+        // registered again for the next post
+        registry.notifyPosted("bus1", "ch2");
+        registry.notifyPosted("bus1", "ch1");
+        assertEquals(3, polledSince.size());
+    }
+
+    @Test
+    public void testStreamLimit() throws Exception {
+        registry.setMaxWaiters(1);
+        FakeAsync first = new FakeAsync();
+        assertTrue(stream(null).open(request(first), first.response, 60000L, 1));
+        FakeAsync second = new FakeAsync();
+        assertFalse(stream(null).open(request(second), second.response, 60000L, 1));
+        assertEquals("", second.response.getContentAsString());
+        assertEquals(1, registry.getStreams());
+
+        // streams and long-polls are limited separately
+        assertTrue(registry.register("bus1", "ch1", new LongPollRegistry.Waiter() {
+            @Override
+            public void wake() { }
+        }));
+        assertEquals(1, registry.getWaiting());
+
+        // closing the stream, e.g. on its timeout, makes room for another one
+        first.timeout();
+        assertEquals(0, registry.getStreams());
+        FakeAsync third = new FakeAsync();
+        assertTrue(stream(null).open(request(third), third.response, 60000L, 1));
+    }
+
+    // - PRIVATE
+
+    private LongPollRegistry registry;
+    private final List<HashMap<String,Object>> posted = new ArrayList<HashMap<String, Object>>();
+    private final List<String> polledSince = new ArrayList<String>();
+
+    private ChannelStream stream(String lastEventId) {
+        return new ChannelStream(registry, "bus1", "ch1", lastEventId) {
+            @Override
+            List<HashMap<String, Object>> poll(String since) {
+                polledSince.add(since);
+                List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
+                for (HashMap<String,Object> frame : posted) {
+                    if (since == null || ((String) frame.get("id")).compareTo(since) > 0) frames.add(frame);
+                }
+                return frames;
+            }
+        };
+    }
+
+    private static HashMap<String,Object> frame(String id) {
+        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+        frame.put("id", id);
+        frame.put("channel_name", "ch1");
+        return frame;
+    }
+
+    private static HttpServletRequest request(FakeAsync async) {
+        HttpServletRequest request = createMock(HttpServletRequest.class);
+        expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+        expect(request.startAsync(isA(ServletRequest.class), isA(ServletResponse.class))).andReturn(async.context).anyTimes();
+        replay(request);
+        return request;
+    }
+
+    /**
+     * Runs the async tasks on the calling thread.
+     */
+    private static class FakeAsync {
+
+        private final MockHttpServletResponse response = new MockHttpServletResponse();
+        private final AsyncContext context = createMock(AsyncContext.class);
+        private final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        private boolean completed;
+
+        private FakeAsync() {
+            context.setTimeout(anyLong());
+            expectLastCall().anyTimes();
+            context.addListener(isA(AsyncListener.class));
+            expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() {
+                    listeners.add((AsyncListener) getCurrentArguments()[0]);
+                    return null;
+                }
+            }).anyTimes();
+            context.start(isA(Runnable.class));
+            expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() {
+                    ((Runnable) getCurrentArguments()[0]).run();
+                    return null;
+                }
+            }).anyTimes();
+            expect(context.getResponse()).andReturn(response).anyTimes();
+            context.complete();
+            expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() throws Throwable {
+                    if (completed) throw new IllegalStateException("completed");
+                    completed = true;
+                    for (AsyncListener listener : listeners) listener.onComplete(new AsyncEvent(context));
+                    return null;
+                }
+            }).anyTimes();
+            replay(context);
+        }
+
+        private void timeout() throws Exception {
+            for (AsyncListener listener : new ArrayList<AsyncListener>(listeners)) listener.onTimeout(new AsyncEvent(context));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.janrain.backplane.server;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameWriterTest {
+
+    @Test
+    public void testWrite() throws Exception {
+        List<HashMap<String,Object>> frames = Arrays.asList(frame("1", "café"), frame("2", "<b>\"quoted\"</b>"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = FrameWriter.write(frames, null, out);
+        assertEquals(out.size(), bytes);
+        assertEquals(new ObjectMapper().writeValueAsString(frames), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testEncodedFrames() throws Exception {
+        HashMap<String,Object> plain = frame("1", "café");
+        List<HashMap<String,Object>> frames = new ArrayList<HashMap<String, Object>>();
+        frames.add(EncodedFrame.of(plain));
+        frames.add(frame("2", "plain"));
+        frames.add(EncodedFrame.of(frame("3", "encoded")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter.write(frames, null, out);
+        assertEquals(new ObjectMapper().writeValueAsString(frames), out.toString("UTF-8"));
+        assertEquals(plain, frames.get(0));
+    }
+
+    @Test
+    public void testPadded() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = FrameWriter.write(new ArrayList<HashMap<String, Object>>(), "cb", out);
+        assertEquals("cb([])", out.toString("UTF-8"));
+        assertEquals(6, bytes);
+    }
+
+    @Test
+    public void testGroups() throws Exception {
+        Map<String,Object> channels = new LinkedHashMap<String, Object>();
+        channels.put("a", Arrays.asList(frame("1", "x")));
+        channels.put("b\"", new ArrayList<HashMap<String, Object>>());
+        Map<String,Object> buses = new LinkedHashMap<String, Object>();
+        buses.put("bus", channels);
+        buses.put("empty", new LinkedHashMap<String, Object>());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = FrameWriter.writeGroups(buses, out);
+        assertEquals(out.size(), bytes);
+        assertEquals(new ObjectMapper().writeValueAsString(buses), out.toString("UTF-8"));
+    }
+
+    // - PRIVATE
+
+    private HashMap<String,Object> frame(String id, String payload) {
+        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+        frame.put("id", id);
+        frame.put("channel_name", "channel");
+        frame.put("message", Collections.singletonMap("payload", payload));
+        return frame;
+    }
+}
@@ -0,0 +1,62 @@
+package com.janrain.backplane.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LongPollRegistryTest {
+
+    @Before
+    public void setUp() {
+        registry = new LongPollRegistry();
+    }
+
+    @Test
+    public void testNotifyWakesChannelAndBusWaiters() {
+        CountingWaiter channelWaiter = new CountingWaiter();
+        CountingWaiter busWaiter = new CountingWaiter();
+        CountingWaiter otherWaiter = new CountingWaiter();
+        assertTrue(registry.register("bus1", "ch1", channelWaiter));
+        assertTrue(registry.register("bus1", null, busWaiter));
+        assertTrue(registry.register("bus1", "ch2", otherWaiter));
+        assertEquals(3, registry.getWaiting());
+
+        registry.notifyPosted("bus1", "ch1");
+        assertEquals(1, channelWaiter.woken.get());
+        assertEquals(1, busWaiter.woken.get());
+        assertEquals(0, otherWaiter.woken.get());
+        assertEquals(1, registry.getWaiting());
+
+        // woken waiters are no longer registered
+        assertFalse(registry.unregister("bus1", "ch1", channelWaiter));
+        registry.notifyPosted("bus1", "ch1");
+        assertEquals(1, channelWaiter.woken.get());
+
+        assertTrue(registry.unregister("bus1", "ch2", otherWaiter));
+        assertEquals(0, registry.getWaiting());
+    }
+
+    @Test
+    public void testMaxWaiters() {
+        registry.setMaxWaiters(1);
+        assertTrue(registry.register("bus1", "ch1", new CountingWaiter()));
+        assertFalse(registry.register("bus1", "ch1", new CountingWaiter()));
+        assertEquals(1, registry.getWaiting());
+    }
+
+    // - PRIVATE
+
+    private LongPollRegistry registry;
+
+    private static class CountingWaiter implements LongPollRegistry.Waiter {
+        @Override
+        public void wake() {
+            woken.incrementAndGet();
+        }
+
+        private final AtomicInteger woken = new AtomicInteger();
+    }
+}
@@ -0,0 +1,123 @@
+package com.janrain.backplane.server;
+
+import com.janrain.backplane.server.config.BusConfig;
+import com.janrain.util.Iso8601;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MessageCacheTest {
+
+    @Before
+    public void setUp() {
+        cache = new MessageCache();
+        cache.setLimits(1024 * 1024, 3, 60000L);
+        busConfig = new BusConfig();
+        busConfig.put(BusConfig.Field.RETENTION_TIME_SECONDS.getFieldName(), "60");
+        busConfig.put(BusConfig.Field.RETENTION_STICKY_TIME_SECONDS.getFieldName(), "600");
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testFillAndGet() {
+        assertNull(cache.get("bus1", "ch1", null, null));
+
+        cache.fill("bus1", "ch1", null, Arrays.asList(frame(1, "ch1", false), frame(2, "ch1", true)), now, busConfig);
+        assertEquals(2, cache.get("bus1", "ch1", null, null).size());
+        assertEquals(1, cache.get("bus1", "ch1", id(1), null).size());
+        assertEquals(0, cache.get("bus1", "ch1", id(2), null).size());
+        assertEquals(1, cache.get("bus1", "ch1", null, "true").size());
+
+        // bus not filled yet
+        assertNull(cache.get("bus1", null, null, null));
+
+        cache.add("bus1", frame(3, "ch1", false), 60);
+        List<HashMap<String,Object>> frames = cache.get("bus1", "ch1", id(1), null);
+        assertEquals(Arrays.asList(id(2), id(3)), ids(frames));
+    }
+
+    @Test
+    public void testFloor() {
+        cache.fill("bus1", "ch1", id(5), Arrays.asList(frame(6, "ch1", false)), now, busConfig);
+        assertEquals(1, cache.get("bus1", "ch1", id(5), null).size());
+        // older messages were not read
+        assertNull(cache.get("bus1", "ch1", id(4), null));
+        assertNull(cache.get("bus1", "ch1", null, null));
+
+        // a full ring no longer holds all messages after the floor
+        cache.add("bus1", frame(7, "ch1", false), 60);
+        cache.add("bus1", frame(8, "ch1", false), 60);
+        cache.add("bus1", frame(9, "ch1", false), 60);
+        assertNull(cache.get("bus1", "ch1", id(5), null));
+        assertEquals(Arrays.asList(id(7), id(8), id(9)), ids(cache.get("bus1", "ch1", id(6), null)));
+    }
+
+    @Test
+    public void testRefill() {
+        cache.fill("bus1", "ch1", null, Arrays.asList(frame(1, "ch1", false)), now - 61000L, busConfig);
+        assertNull(cache.get("bus1", "ch1", null, null));
+    }
+
+    @Test
+    public void testExpiry() {
+        cache.fill("bus1", null, null, Arrays.asList(frame(1, "ch1", false), frame(2, "ch2", true)), now, busConfig);
+        assertEquals(2, cache.get("bus1", null, null, null).size());
+
+        cache.expire(now + 59000L);
+        assertEquals(2, cache.getMessages());
+        cache.expire(now + 62000L);
+        assertEquals(Arrays.asList(id(2)), ids(cache.get("bus1", null, null, null)));
+        cache.expire(now + 602000L);
+        assertEquals(0, cache.getMessages());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testSizeLimit() {
+        long bytes;
+        cache.fill("bus1", "ch1", null, Arrays.asList(frame(1, "ch1", false)), now, busConfig);
+        bytes = cache.getBytes();
+        cache.setLimits(bytes * 2, 3, 60000L);
+        cache.add("bus1", frame(2, "ch2", false), 60);
+        cache.add("bus1", frame(3, "ch3", false), 60);
+        assertTrue(cache.getBytes() <= bytes * 2);
+        // oldest evicted first
+        assertNull(cache.get("bus1", "ch1", null, null));
+        // the channel rings take space too
+        assertEquals(1, cache.getMessages());
+        assertEquals(0, cache.get("bus1", "ch3", id(3), null).size());
+    }
+
+    // - PRIVATE
+
+    private MessageCache cache;
+    private BusConfig busConfig;
+    private long now;
+
+    private String id(int i) {
+        return Iso8601.format(now + i) + "-" + i;
+    }
+
+    private HashMap<String,Object> frame(int i, String channel, boolean sticky) {
+        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+        frame.put("id", id(i));
+        frame.put("channel_name", channel);
+        Map<String,Object> message = new LinkedHashMap<String, Object>();
+        message.put("type", "test");
+        message.put("sticky", sticky);
+        message.put("payload", "payload " + i);
+        frame.put("message", message);
+        return frame;
+    }
+
+    private List<String> ids(List<HashMap<String,Object>> frames) {
+        List<String> ids = new ArrayList<String>();
+        for (HashMap<String,Object> frame : frames) {
+            ids.add((String) frame.get("id"));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,61 @@
+package com.janrain.backplane.server;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MessageFilterTest {
+
+    @Test
+    public void testTypes() throws Exception {
+        List<HashMap<String,Object>> frames = Arrays.asList(
+            frame("1", "identity/login"), frame("2", "identity/ack"), frame("3", "identity/ack/extra"), frame("4", "other"));
+
+        assertSame(frames, MessageFilter.parse(null, " ").apply(frames));
+        assertEquals(Arrays.asList("1", "2", "3"), ids(MessageFilter.parse("identity/*", null).apply(frames)));
+        assertEquals(Arrays.asList("1", "3", "4"), ids(MessageFilter.parse("identity/login, identity/ack/*,other", null).apply(frames)));
+        assertEquals(Collections.<String>emptyList(), ids(MessageFilter.parse("identity", null).apply(frames)));
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        MessageFilter filter = MessageFilter.parse("identity/login", "type,source");
+        // the type is read to match types
+        assertEquals(new HashSet<String>(Arrays.asList("type", "source")), filter.getFrameFields());
+        List<HashMap<String,Object>> filtered = filter.apply(Arrays.asList(frame("1", "identity/login"), frame("2", "other")));
+        assertEquals(1, filtered.size());
+        assertEquals("{id=1, message={type=identity/login, source=http://example.com}}", filtered.get(0).toString());
+
+        assertNull(MessageFilter.parse("identity/login", null).getFrameFields());
+        assertEquals(new HashSet<String>(Arrays.asList("channel_name", "payload")), MessageFilter.parse(null, "channel_name,payload").getFrameFields());
+        assertEquals("{id=1, channel_name=channel, message={payload={}}}",
+            MessageFilter.parse(null, "channel_name,payload").apply(Arrays.asList(frame("1", "type"))).get(0).toString());
+    }
+
+    @Test(expected = BackplaneServerException.class)
+    public void testInvalid() throws Exception {
+        MessageFilter.parse(" , ", null);
+    }
+
+    private static HashMap<String,Object> frame(String id, String type) {
+        Map<String,Object> message = new LinkedHashMap<String, Object>();
+        message.put("type", type);
+        message.put("source", "http://example.com");
+        message.put("payload", "{}");
+        HashMap<String,Object> frame = new LinkedHashMap<String, Object>();
+        frame.put("id", id);
+        frame.put("channel_name", "channel");
+        frame.put("message", message);
+        return frame;
+    }
+
+    private static List<String> ids(List<HashMap<String,Object>> frames) {
+        List<String> ids = new ArrayList<String>();
+        for (HashMap<String,Object> frame : frames) {
+            ids.add((String) frame.get("id"));
+        }
+        return ids;
+    }
+}
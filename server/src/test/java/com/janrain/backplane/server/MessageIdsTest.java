@@ -0,0 +1,67 @@
+package com.janrain.backplane.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIdsTest {
+
+    @Test
+    public void testFormatAndOrder() throws Exception {
+        long now = System.currentTimeMillis();
+        String last = "";
+        // same millisecond, clock going back, and the next milliseconds
+        for (long time : new long[] { now, now, now, now - 1000, now + 1, now + 1000 }) {
+            String id = MessageIds.next(time);
+            assertTrue(id, id.matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z-[0-9a-f]{10}"));
+            assertTrue(last + " < " + id, id.compareTo(last) > 0);
+            last = id;
+        }
+    }
+
+    @Test
+    public void testConcurrentIdsUnique() throws Exception {
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    String last = "";
+                    for (int i = 0; i < 5000; i++) {
+                        String id = MessageIds.next();
+                        if (id.compareTo(last) <= 0) throw new IllegalStateException(last + " >= " + id);
+                        ids.add(id);
+                        last = id;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertEquals(20000, ids.size());
+        assertEquals(20000, new HashSet<String>(ids).size());
+    }
+
+    @Test
+    public void testRandomHex() throws Exception {
+        int[] counts = new int[16];
+        for (int i = 0; i < 1000; i++) {
+            String hex = MessageIds.randomHex(33);
+            assertEquals(33, hex.length());
+            for (char c : hex.toCharArray()) {
+                counts[Character.digit(c, 16)]++;
+            }
+        }
+        for (int count : counts) {
+            // 33000 digits, about 2062 each
+            assertTrue("digit count " + count, count > 1700 && count < 2450);
+        }
+    }
+}
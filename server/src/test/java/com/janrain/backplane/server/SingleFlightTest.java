@@ -0,0 +1,94 @@
+package com.janrain.backplane.server;
+
+import com.yammer.metrics.Metrics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsShared() throws Exception {
+        final SingleFlight<String, Integer> flights = newFlights();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return loads.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return flights.load("key", 0, "v1", loader);
+                }
+            }));
+        }
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<Integer> result : results) {
+            assertEquals(Integer.valueOf(1), result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+        assertEquals(0, flights.size());
+
+        // not kept once completed
+        assertEquals(Integer.valueOf(2), flights.load("key", 0, "v1", loader));
+    }
+
+    @Test
+    public void testMicroCache() throws Exception {
+        SingleFlight<String, Integer> flights = newFlights();
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return loads.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), flights.load("key", 60000, "v1", loader));
+        assertEquals(Integer.valueOf(1), flights.load("key", 60000, "v1", loader));
+        // a new version, or an unknown one, is loaded again
+        assertEquals(Integer.valueOf(2), flights.load("key", 60000, "v2", loader));
+        assertEquals(Integer.valueOf(3), flights.load("key", 60000, null, loader));
+        assertEquals(Integer.valueOf(4), flights.load("key", 60000, null, loader));
+        assertEquals(Integer.valueOf(5), flights.load("other", 60000, "v2", loader));
+    }
+
+    @Test
+    public void testFailuresNotKept() throws Exception {
+        SingleFlight<String, Integer> flights = newFlights();
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (loads.incrementAndGet() == 1) throw new BackplaneServerException("failed");
+                return loads.get();
+            }
+        };
+        try {
+            flights.load("key", 60000, "v1", loader);
+            fail("Load failure not thrown");
+        } catch (BackplaneServerException expected) {
+            // expected
+        }
+        assertEquals(Integer.valueOf(2), flights.load("key", 60000, "v1", loader));
+    }
+
+    private static <K,V> SingleFlight<K,V> newFlights() {
+        return new SingleFlight<K,V>(Metrics.newMeter(SingleFlightTest.class, "coalesced", "loads", TimeUnit.MINUTES));
+    }
+}
@@ -0,0 +1,209 @@
+package com.janrain.backplane.server.cluster;
+
+import com.janrain.crypto.HmacVerifier;
+import com.janrain.message.Json;
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TcpClusterBusTest {
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(TcpClusterBus.PORT_PROPERTY, "0");
+        System.setProperty(TcpClusterBus.BIND_ADDRESS_PROPERTY, "127.0.0.1");
+        // an unreachable peer, so that peers are not looked up in SimpleDB
+        System.setProperty(TcpClusterBus.PEERS_PROPERTY, "127.0.0.1:1");
+        System.setProperty(TcpClusterBus.SECRET_PROPERTY, SECRET);
+        bus = new TcpClusterBus();
+        bus.setListener(new ClusterBus.Listener() {
+            @Override
+            public void onEvent(ClusterEvent event) {
+                events.add(event);
+            }
+        });
+        Method init = TcpClusterBus.class.getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(bus);
+    }
+
+    @After
+    public void tearDown() {
+        bus.shutdown();
+        System.clearProperty(TcpClusterBus.PORT_PROPERTY);
+        System.clearProperty(TcpClusterBus.BIND_ADDRESS_PROPERTY);
+        System.clearProperty(TcpClusterBus.PEERS_PROPERTY);
+        System.clearProperty(TcpClusterBus.SECRET_PROPERTY);
+    }
+
+    @Test
+    public void testSignedBatchReceived() throws Exception {
+        Socket socket = connect();
+        write(socket, sign(SECRET, batch(System.currentTimeMillis())));
+        ClusterEvent event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals(ClusterEvent.Type.CONFIG_CHANGED, event.getType());
+        socket.close();
+    }
+
+    @Test
+    public void testForgedBatchRejected() throws Exception {
+        Socket socket = connect();
+        write(socket, sign("other secret", batch(System.currentTimeMillis())));
+        // the connection is closed, without handling the batch
+        assertEquals(-1, socket.getInputStream().read());
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+
+        socket = connect();
+        write(socket, batch(System.currentTimeMillis()));
+        assertEquals(-1, socket.getInputStream().read());
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testStaleBatchDiscarded() throws Exception {
+        Socket socket = connect();
+        write(socket, sign(SECRET, batch(System.currentTimeMillis() - 120000L)));
+        write(socket, sign(SECRET, batch(System.currentTimeMillis())));
+        ClusterEvent event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+        socket.close();
+    }
+
+    @Test
+    public void testLongLineRejected() throws Exception {
+        Socket socket = connect();
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        for (int i = 0; i <= 4 * 1024 * 1024; i++) {
+            out.write('x');
+        }
+        out.flush();
+        // closed before the line ends
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    @Test
+    public void testInboundConnectionsLimited() throws Exception {
+        List<Socket> open = new ArrayList<Socket>();
+        for (int i = 0; i < 16; i++) {
+            open.add(connect());
+        }
+        Socket rejected = connect();
+        assertEquals(-1, rejected.getInputStream().read());
+        rejected.close();
+
+        open.remove(0).close();
+        Semaphore permits = (Semaphore) getField("inboundConnections");
+        for (int i = 0; i < 50 && permits.availablePermits() == 0; i++) {
+            Thread.sleep(100);
+        }
+        Socket socket = connect();
+        write(socket, sign(SECRET, batch(System.currentTimeMillis())));
+        assertNotNull(events.poll(5, TimeUnit.SECONDS));
+        socket.close();
+        for (Socket s : open) {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testStalledPeerDisconnected() throws Exception {
+        // accepts connections, and never reads from them
+        final ServerSocket stalledPeer = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(stalledPeer.accept());
+                        connections.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ReflectionTestUtils.setField(bus, "sendTimeoutMillis", 500L);
+        Method updatePeers = TcpClusterBus.class.getDeclaredMethod("updatePeers", Set.class);
+        updatePeers.setAccessible(true);
+        updatePeers.invoke(bus, Collections.singleton("127.0.0.1:" + stalledPeer.getLocalPort()));
+
+        HashMap<String, Object> frame = new HashMap<String, Object>();
+        // small enough for a full batch to be serialized quickly once reconnecting
+        frame.put("payload", RandomStringUtils.randomAlphanumeric(20000));
+        ClusterEvent event = ClusterEvent.messagesPosted("bus", "channel", Arrays.asList(new ClusterEvent.PostedMessage(frame, 60)));
+        // the blocked send is closed by the watchdog, and the peer reconnected to
+        for (int i = 0; i < 100 && connections.get() < 2; i++) {
+            for (int j = 0; j < 50; j++) {
+                bus.publish(event);
+            }
+            Thread.sleep(100);
+        }
+        assertTrue(connections.get() >= 2);
+
+        stalledPeer.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    // - PRIVATE
+
+    private static final String SECRET = "cluster secret";
+
+    private TcpClusterBus bus;
+    private final BlockingQueue<ClusterEvent> events = new LinkedBlockingQueue<ClusterEvent>();
+
+    private Socket connect() throws Exception {
+        String address = (String) getField("address");
+        Socket socket = new Socket("127.0.0.1", Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)));
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private Object getField(String name) throws Exception {
+        java.lang.reflect.Field field = TcpClusterBus.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(bus);
+    }
+
+    private static String batch(long sent) throws Exception {
+        TcpClusterBus.Batch batch = new TcpClusterBus.Batch();
+        batch.setNode("other node");
+        batch.setSent(sent);
+        batch.setEvents(Arrays.asList(ClusterEvent.configChanged("User", Arrays.asList("user1"))));
+        return Json.writeString(batch);
+    }
+
+    private static String sign(String secret, String json) throws Exception {
+        return HmacVerifier.HMAC_SHA256.signData(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"), json) + " " + json;
+    }
+
+    private static void write(Socket socket, String line) throws IOException {
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+}
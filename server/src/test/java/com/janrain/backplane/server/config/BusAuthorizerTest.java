@@ -0,0 +1,198 @@
+package com.janrain.backplane.server.config;
+
+import com.janrain.crypto.HmacHashUtils;
+import com.janrain.simpledb.SimpleDBException;
+import com.janrain.simpledb.SuperSimpleDB;
+import org.apache.commons.codec.binary.Base64;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class BusAuthorizerTest {
+
+    @Before
+    public void setUp() throws Exception {
+        users.put("user1", user("user1", "pass1"));
+        users.put("user2", user("user2", "pass2"));
+        buses.put("bus1", bus("bus1", "user1", "GETALL,POST", "user2", "IDENTITY"));
+        authorizer = authorizer(300, 300);
+    }
+
+    @Test
+    public void testPermissions() throws Exception {
+        for (BackplaneConfig.BUS_PERMISSION permission : BackplaneConfig.BUS_PERMISSION.values()) {
+            boolean user1Granted = permission == BackplaneConfig.BUS_PERMISSION.GETALL || permission == BackplaneConfig.BUS_PERMISSION.POST;
+            assertEquals(permission.toString(), user1Granted, isGranted(basic("user1", "pass1"), "bus1", permission));
+            assertEquals(permission.toString(), permission == BackplaneConfig.BUS_PERMISSION.IDENTITY, isGranted(basic("user2", "pass2"), "bus1", permission));
+        }
+        assertEquals("bus1", authorizer.authorize(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.POST).getIdValue());
+        assertEquals(EnumSet.of(BackplaneConfig.BUS_PERMISSION.IDENTITY), authorizer.grant(basic("user2", "pass2"), "bus1").getPermissions());
+
+        assertFalse(isGranted(basic("user1", "wrong"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertFalse(isGranted(basic("user3", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertFalse(isGranted(basic("user1", "pass1"), "bus2", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertFalse(isGranted("Basic", "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertFalse(isGranted(null, "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertEquals(1, loads);
+    }
+
+    @Test
+    public void testPasswordChange() throws Exception {
+        authorizer = authorizer(0, 300);
+        assertTrue(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+
+        // the cached credentials are dropped once the reloaded snapshot has another password hash
+        users.put("user1", user("user1", "changed"));
+        assertFalse(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertTrue(isGranted(basic("user1", "changed"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        assertTrue(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        users.put("user1", user("user1", "changed"));
+        buses.put("bus1", bus("bus1", "user1", "GETALL,POST,GETPAYLOAD"));
+
+        // until invalidated, the snapshot and the cached credentials are used
+        assertTrue(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertFalse(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETPAYLOAD));
+
+        authorizer.invalidate();
+        assertFalse(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertTrue(isGranted(basic("user1", "changed"), "bus1", BackplaneConfig.BUS_PERMISSION.GETPAYLOAD));
+        assertEquals(2, loads);
+    }
+
+    @Test
+    public void testBeforeFirstSnapshot() throws Exception {
+        // denied, not granted from an empty snapshot, while it cannot be loaded
+        failing = true;
+        try {
+            authorizer.authorize(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+            fail("authorized without users and bus configurations");
+        } catch (AuthException expected) { }
+        try {
+            authorizer.getBusConfig("bus1");
+            fail("bus configuration found without a snapshot");
+        } catch (AuthException expected) { }
+
+        failing = false;
+        assertTrue(isGranted(basic("user1", "pass1"), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertEquals(1, loads);
+    }
+
+    @Test
+    public void testBusConfigFromSnapshot() throws Exception {
+        // bus configurations are looked up in the snapshot, loaded when first needed, not read from SimpleDB
+        assertNotNull(authorizer.getBusConfig("bus1"));
+        assertNull(authorizer.getBusConfig("bus2"));
+        authorizer.invalidate();
+        assertNotNull(authorizer.getBusConfig("bus1"));
+        assertEquals(2, loads);
+        assertEquals(0, reads);
+    }
+
+    // - PRIVATE
+
+    private BusAuthorizer authorizer;
+
+    private final Map<String, User> users = new LinkedHashMap<String, User>();
+    private final Map<String, BusConfig> buses = new LinkedHashMap<String, BusConfig>();
+    private int loads;
+    private int reads;
+    private boolean failing;
+
+    private BusAuthorizer authorizer(final int snapshotSeconds, final int cacheSeconds) throws SimpleDBException {
+        BusAuthorizer authorizer = new BusAuthorizer();
+        ReflectionTestUtils.setField(authorizer, "bpConfig", new MockBackplaneConfig("test") {
+            @Override
+            public int getAuthSnapshotSeconds() {
+                return snapshotSeconds;
+            }
+
+            @Override
+            public int getAuthCacheSeconds() {
+                return cacheSeconds;
+            }
+        });
+        ReflectionTestUtils.setField(authorizer, "superSimpleDb", superSimpleDb());
+        return authorizer;
+    }
+
+    private boolean isGranted(String basicAuth, String bus, BackplaneConfig.BUS_PERMISSION permission) {
+        try {
+            authorizer.authorize(basicAuth, bus, permission);
+            return true;
+        } catch (AuthException e) {
+            return false;
+        }
+    }
+
+    private static String basic(String user, String password) {
+        return "Basic " + new String(Base64.encodeBase64((user + ":" + password).getBytes()));
+    }
+
+    private static User user(String name, String password) {
+        User user = new User();
+        user.put(User.Field.USER.getFieldName(), name);
+        user.put(User.Field.PWDHASH.getFieldName(), HmacHashUtils.hmacHash(password));
+        return user;
+    }
+
+    private static BusConfig bus(String name, String... userPermissions) {
+        BusConfig bus = new BusConfig();
+        bus.put(BusConfig.Field.BUS_NAME.getFieldName(), name);
+        bus.put(BusConfig.Field.RETENTION_TIME_SECONDS.getFieldName(), "60");
+        bus.put(BusConfig.Field.RETENTION_STICKY_TIME_SECONDS.getFieldName(), "21600");
+        for (int i = 0; i < userPermissions.length; i += 2) {
+            bus.put(userPermissions[i], userPermissions[i + 1]);
+        }
+        return bus;
+    }
+
+    /**
+     * Serves the users and bus configurations from the test's maps, counting the bus configuration loads and single reads.
+     */
+    private SuperSimpleDB superSimpleDb() throws SimpleDBException {
+        SuperSimpleDB superSimpleDb = createMock(SuperSimpleDB.class);
+        expect(superSimpleDb.retrieve(isA(String.class), eq(User.class))).andAnswer(new IAnswer<List<User>>() {
+            @Override
+            public List<User> answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                return new ArrayList<User>(users.values());
+            }
+        }).anyTimes();
+        expect(superSimpleDb.retrieve(isA(String.class), eq(BusConfig.class))).andAnswer(new IAnswer<List<BusConfig>>() {
+            @Override
+            public List<BusConfig> answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                loads++;
+                return new ArrayList<BusConfig>(buses.values());
+            }
+        }).anyTimes();
+        expect(superSimpleDb.retrieve(isA(String.class), eq(User.class), isA(String.class))).andAnswer(new IAnswer<User>() {
+            @Override
+            public User answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                reads++;
+                return users.get((String) getCurrentArguments()[2]);
+            }
+        }).anyTimes();
+        expect(superSimpleDb.retrieve(isA(String.class), eq(BusConfig.class), isA(String.class))).andAnswer(new IAnswer<BusConfig>() {
+            @Override
+            public BusConfig answer() throws Throwable {
+                if (failing) throw new SimpleDBException("unavailable");
+                reads++;
+                return buses.get((String) getCurrentArguments()[2]);
+            }
+        }).anyTimes();
+        replay(superSimpleDb);
+        return superSimpleDb;
+    }
+}
@@ -0,0 +1,77 @@
+package com.janrain.backplane.server.config;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BusTokensTest {
+
+    @Before
+    public void setUp() {
+        tokens = tokens("secret", 300);
+    }
+
+    @Test
+    public void testAuthorize() throws Exception {
+        String token = tokens.issue("user1", "bus1", EnumSet.of(BackplaneConfig.BUS_PERMISSION.GETALL, BackplaneConfig.BUS_PERMISSION.POST));
+        assertEquals("user1", tokens.authorize(BusTokens.BEARER_PREFIX + token, "bus1", BackplaneConfig.BUS_PERMISSION.GETALL));
+        assertEquals("user1", tokens.authorize(BusTokens.BEARER_PREFIX + token, "bus1", BackplaneConfig.BUS_PERMISSION.POST));
+
+        assertDenied(tokens, token, "bus1", BackplaneConfig.BUS_PERMISSION.IDENTITY);
+        assertDenied(tokens, token, "bus2", BackplaneConfig.BUS_PERMISSION.GETALL);
+        // signed with another key
+        assertDenied(tokens("other secret", 300), token, "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+        // tampered with
+        int dot = token.indexOf('.');
+        assertDenied(tokens, token.substring(0, dot - 2) + "x" + token.substring(dot - 1), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+        assertDenied(tokens, token.substring(0, dot), "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+        assertDenied(tokens, "", "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        BusTokens expiring = tokens("secret", 0);
+        String token = expiring.issue("user1", "bus1", EnumSet.of(BackplaneConfig.BUS_PERMISSION.GETALL));
+        Thread.sleep(5);
+        assertDenied(expiring, token, "bus1", BackplaneConfig.BUS_PERMISSION.GETALL);
+    }
+
+    @Test(expected = AuthException.class)
+    public void testDisabled() throws Exception {
+        tokens(null, 300).issue("user1", "bus1", EnumSet.of(BackplaneConfig.BUS_PERMISSION.GETALL));
+    }
+
+    // - PRIVATE
+
+    private BusTokens tokens;
+
+    private static BusTokens tokens(final String key, final int ttlSeconds) {
+        BusTokens tokens = new BusTokens();
+        ReflectionTestUtils.setField(tokens, "bpConfig", new MockBackplaneConfig("test") {
+            @Override
+            public String getTokenSigningKey() {
+                return key;
+            }
+
+            @Override
+            public int getTokenTtlSeconds() {
+                return ttlSeconds;
+            }
+        });
+        return tokens;
+    }
+
+    private static void assertDenied(BusTokens tokens, String token, String bus, BackplaneConfig.BUS_PERMISSION permission) {
+        try {
+            tokens.authorize(BusTokens.BEARER_PREFIX + token, bus, permission);
+            fail("Token accepted for " + permission + " on " + bus + ": " + token);
+        } catch (AuthException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.janrain.blob;
+
+import com.janrain.backplane.server.BackplaneMessage;
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileSystemBlobStoreTest {
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("blobs", "");
+        assertTrue(root.delete() && root.mkdir());
+        blobStore = new FileSystemBlobStore(root);
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void testStoreAndDelete() throws Exception {
+        byte[] content = RandomStringUtils.random(200000).getBytes("UTF-8");
+        String deleted = blobStore.store(content);
+        String current = blobStore.store(content);
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream in = blobStore.open(current);
+        int b;
+        while ((b = in.read()) != -1) read.write(b);
+        in.close();
+        assertArrayEquals(content, read.toByteArray());
+
+        blobStore.delete(deleted);
+        blobStore.delete(deleted);
+        try {
+            blobStore.open(deleted);
+            fail("blob should have been deleted");
+        } catch (FileNotFoundException expected) { }
+
+        assertEquals(0, blobStore.deleteStoredBefore(System.currentTimeMillis()));
+        blobStore.open(current).close();
+        assertEquals(1, blobStore.deleteStoredBefore(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2)));
+    }
+
+    @Test
+    public void testPayloadOffload() throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put("source", "http://example.com/source");
+        data.put("type", "identity/login");
+        data.put("payload", RandomStringUtils.randomAlphanumeric(5000));
+        BackplaneMessage message = new BackplaneMessage("2012-05-01T10:00:00.000Z-0123456789", "bus", "channel", data);
+        Object frame = message.asFrame(null);
+
+        assertFalse(message.offloadPayload(blobStore, 10000));
+        assertTrue(message.offloadPayload(blobStore, 1000));
+        assertNull(message.get(BackplaneMessage.Field.PAYLOAD));
+
+        BackplaneMessage stored = new BackplaneMessage();
+        stored.init(message.getName(), message);
+        assertEquals(frame, stored.asFrame(blobStore));
+
+        // the reference is not packed, so that the cleanup task can find it
+        message.setStorageFormat(BackplaneMessage.StorageFormat.V2, 60);
+        Map<String,String> attributes = message.getStorageAttributes();
+        assertNotNull(attributes.get(BackplaneMessage.PAYLOAD_REF_ATTR));
+        stored = new BackplaneMessage();
+        stored.init(message.getName(), attributes);
+        assertEquals(attributes.get(BackplaneMessage.PAYLOAD_REF_ATTR), stored.getPayloadReference());
+        assertEquals(frame, stored.asFrame(blobStore));
+    }
+
+    @Test
+    public void testMissingPayloadSkipped() throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put("source", "http://example.com/source");
+        data.put("type", "identity/login");
+        data.put("payload", RandomStringUtils.randomAlphanumeric(5000));
+        BackplaneMessage message = new BackplaneMessage("2012-05-01T10:00:00.000Z-0123456789", "bus", "channel", data);
+        assertTrue(message.offloadPayload(blobStore, 1000));
+        blobStore.delete(message.getPayloadReference());
+
+        assertNull(message.asFrame(blobStore));
+        assertNotNull(message.asFrame(blobStore, Collections.singleton("type")));
+
+        // the packed record is read for the requested fields only, without reading the payload
+        message.setStorageFormat(BackplaneMessage.StorageFormat.V2, 60);
+        BackplaneMessage stored = new BackplaneMessage();
+        stored.init(message.getName(), message.getStorageAttributes());
+        assertEquals("{id=2012-05-01T10:00:00.000Z-0123456789, message={type=identity/login}}",
+            String.valueOf(stored.asFrame(blobStore, Collections.singleton("type"))));
+        assertNull(stored.asFrame(blobStore, new HashSet<String>(Arrays.asList("type", "payload"))));
+    }
+
+    // - PRIVATE
+
+    private File root;
+    private FileSystemBlobStore blobStore;
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
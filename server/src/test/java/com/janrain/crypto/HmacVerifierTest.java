@@ -0,0 +1,32 @@
+package com.janrain.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HmacVerifierTest {
+
+    @Test
+    public void testVerify() throws Exception {
+        String hash = HmacHashUtils.hmacHash("secret");
+        for (int i = 0; i < 2; i++) {
+            // decoded, then cached
+            assertTrue(HmacHashUtils.checkHmacHash("secret", hash));
+            assertFalse(HmacHashUtils.checkHmacHash("Secret", hash));
+            assertFalse(HmacHashUtils.checkHmacHash("", hash));
+            assertFalse(HmacHashUtils.checkHmacHash(null, hash));
+        }
+        assertFalse(HmacHashUtils.checkHmacHash("secret", HmacHashUtils.hmacHash("other")));
+    }
+
+    @Test
+    public void testMalformedHashes() throws Exception {
+        String hash = HmacHashUtils.hmacHash("secret");
+        String key = hash.substring(0, hash.indexOf('.'));
+        String signed = hash.substring(hash.indexOf('.') + 1);
+        for (String malformed : new String[] { null, "", ".", key, key + ".", "." + signed, hash + ".x", key + "." + signed.substring(4) }) {
+            assertFalse(malformed, HmacHashUtils.checkHmacHash("secret", malformed));
+        }
+    }
+}
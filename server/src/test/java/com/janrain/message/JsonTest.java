@@ -0,0 +1,52 @@
+package com.janrain.message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonTest {
+
+    @Test
+    public void testFrameMatchesMapper() throws Exception {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("type", "identity/login");
+        message.put("sticky", Boolean.TRUE);
+        message.put("source", null);
+        message.put("payload", new RawJson("{\"a\":[1,2]}"));
+        message.put("parsed", Arrays.asList("xé\"", 3, 4.5, Boolean.FALSE));
+        Map<String, Object> frame = new LinkedHashMap<String, Object>();
+        frame.put("id", "2012-05-01T10:00:00.000Z-0123456789");
+        frame.put("message", message);
+
+        assertEquals(Json.writeString(frame), Json.writeFrameString(frame));
+    }
+
+    @Test
+    public void testStringMap() throws Exception {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("b", "1");
+        map.put("a", "é");
+        byte[] json = Json.writeBytes(map);
+        assertEquals(map, Json.readStringMap(json, 0, json.length));
+        assertEquals(map, Json.readStringMap(new String(json, "UTF-8")));
+    }
+
+    @Test
+    public void testStringMapFields() throws Exception {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("type", "identity/login");
+        map.put("payload", "{\"a\":[1,2]}");
+        map.put("source", null);
+        byte[] json = Json.writeBytes(map);
+        Set<String> fields = new HashSet<String>(Arrays.asList("type", "source", "missing"));
+        map.remove("payload");
+        assertEquals(map, Json.readStringMap(json, 0, json.length, fields));
+        assertEquals(map, Json.readStringMap(new String(json, "UTF-8"), fields));
+    }
+}
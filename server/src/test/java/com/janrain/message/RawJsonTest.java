@@ -0,0 +1,34 @@
+package com.janrain.message;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RawJsonTest {
+
+    @Test
+    public void testSerializedVerbatim() throws Exception {
+        String json = "{\"b\":[1,2.50,\"\\u00e9\"],\"a\":null}";
+        assertEquals("{\"payload\":" + json + "}",
+            new ObjectMapper().writeValueAsString(Collections.singletonMap("payload", RawJson.validated(json))));
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        RawJson.validated("\"text\"");
+        RawJson.validated(" [1, {\"a\": true}] ");
+        for (String invalid : new String[] { "", "{", "{\"a\":}", "[1] [2]", "1 2", "nul" }) {
+            try {
+                RawJson.validated(invalid);
+                fail("Invalid JSON accepted: " + invalid);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.janrain.servlet;
+
+import com.janrain.backplane.server.config.MockBackplaneConfig;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.*;
+
+public class ClientFailureFilterTest {
+
+    @Test
+    public void testBlocked() throws Exception {
+        ClientFailureFilter filter = filter(3, 60);
+        for (int i = 0; i < 3; i++) {
+            filter.clientFailed(request("10.0.0.1"));
+        }
+        assertFalse(filter.isBlocked(request("10.0.0.1")));
+        filter.clientFailed(request("10.0.0.1"));
+        assertTrue(filter.isBlocked(request("10.0.0.1")));
+        // other clients behind the same load balancer are not blocked
+        assertFalse(filter.isBlocked(request("10.0.0.2")));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request("10.0.0.1"), response, chain);
+        assertEquals(429, response.getStatus());
+        assertEquals("{\"ERR_MSG\":\"Too many failed requests.\"}", response.getContentAsString());
+        assertNull(chain.getRequest());
+
+        MockHttpServletRequest other = request("10.0.0.2");
+        filter.doFilter(other, new MockHttpServletResponse(), chain);
+        assertSame(other, chain.getRequest());
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        ClientFailureFilter filter = filter(3, 60);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.100");
+        assertEquals("10.0.0.100", filter.client(request));
+        // only the entry added by the load balancer is used
+        request.addHeader("X-Forwarded-For", "1.2.3.4, 10.0.0.1");
+        assertEquals("10.0.0.1", filter.client(request));
+    }
+
+    @Test
+    public void testServerFailuresNotCounted() throws Exception {
+        ClientFailureFilter filter = filter(1, 60);
+        for (int i = 0; i < 10; i++) {
+            filter.serverFailed();
+        }
+        assertFalse(filter.isBlocked(request("10.0.0.1")));
+    }
+
+    @Test
+    public void testBlockExpires() throws Exception {
+        ClientFailureFilter filter = filter(1, 0);
+        filter.clientFailed(request("10.0.0.1"));
+        filter.clientFailed(request("10.0.0.1"));
+        Thread.sleep(5);
+        assertFalse(filter.isBlocked(request("10.0.0.1")));
+
+        // never blocked when disabled
+        ClientFailureFilter disabled = filter(0, 60);
+        for (int i = 0; i < 10; i++) {
+            disabled.clientFailed(request("10.0.0.1"));
+        }
+        assertFalse(disabled.isBlocked(request("10.0.0.1")));
+    }
+
+    @Test
+    public void testLogSampled() throws Exception {
+        ClientFailureFilter filter = filter(0, 60);
+        // align with the start of a second, so that all failures are counted in the same one
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+        int logged = 0;
+        for (int i = 0; i < 100; i++) {
+            if (filter.serverFailed()) logged++;
+        }
+        assertEquals(10, logged);
+    }
+
+    // - PRIVATE
+
+    /**
+     * @return a request from the client, through the load balancer
+     */
+    private static MockHttpServletRequest request(String client) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1.1/bus/bus1");
+        request.setRemoteAddr("10.0.0.100");
+        request.addHeader("X-Forwarded-For", client);
+        return request;
+    }
+
+    private static ClientFailureFilter filter(final int failuresMax, final int blockSeconds) {
+        ClientFailureFilter filter = new ClientFailureFilter();
+        ReflectionTestUtils.setField(filter, "bpConfig", new MockBackplaneConfig("test") {
+            @Override
+            public int getClientFailuresMax() {
+                return failuresMax;
+            }
+
+            @Override
+            public int getClientBlockSeconds() {
+                return blockSeconds;
+            }
+
+            @Override
+            public String getClientAddressHeader() {
+                return "X-Forwarded-For";
+            }
+        });
+        return filter;
+    }
+}
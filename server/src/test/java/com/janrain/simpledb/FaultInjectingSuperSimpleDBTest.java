@@ -0,0 +1,85 @@
+package com.janrain.simpledb;
+
+import com.amazonaws.AmazonServiceException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class FaultInjectingSuperSimpleDBTest {
+
+    @Before
+    public void setUp() {
+        delegate = createNiceMock(SuperSimpleDB.class);
+        faultInjector = new FaultInjectingSuperSimpleDB(delegate);
+    }
+
+    @Test
+    public void testDisabledPassThrough() throws Exception {
+        expect(delegate.retrieveCount("t", "q")).andReturn(3L);
+        replay(delegate);
+        setProfile("*", "unavailable=1");
+        assertEquals(Long.valueOf(3), faultInjector.retrieveCount("t", "q"));
+        verify(delegate);
+    }
+
+    @Test
+    public void testServiceUnavailable() throws Exception {
+        replay(delegate);
+        setProfile("RETRIEVE_WHERE", "unavailable=1");
+        faultInjector.setEnabled(true);
+        try {
+            faultInjector.retrieveWhere("t", TestNamedMap.class, null, true);
+            fail("ServiceUnavailable expected");
+        } catch (SimpleDBException e) {
+            assertEquals(503, ((AmazonServiceException) e.getCause()).getStatusCode());
+        }
+        // other operations unaffected
+        faultInjector.delete("t", "k");
+    }
+
+    @Test
+    public void testLatencyAndThrottle() throws Exception {
+        replay(delegate);
+        setProfile("DELETE", "latency=fixed:50,throttle=2");
+        faultInjector.setEnabled(true);
+        long start = System.currentTimeMillis();
+        faultInjector.delete("t", "k");
+        faultInjector.delete("t", "k");
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        try {
+            faultInjector.delete("t", "k");
+            fail("throttling expected");
+        } catch (SimpleDBException e) {
+            assertEquals("ServiceUnavailable", ((AmazonServiceException) e.getCause()).getErrorCode());
+        }
+    }
+
+    @Test
+    public void testLognormalLatency() {
+        FaultProfile profile = FaultProfile.parse("latency=lognormal:20:1.5:1000");
+        java.util.Random random = new java.util.Random(42);
+        long max = 0;
+        for (int i = 0; i < 10000; i++) {
+            long sample = profile.sampleLatencyMillis(random);
+            assertTrue(sample >= 0 && sample <= 1000);
+            max = Math.max(max, sample);
+        }
+        assertEquals(1000, max); // heavy tail reaches the cap
+    }
+
+    // - PRIVATE
+
+    private SuperSimpleDB delegate;
+    private FaultInjectingSuperSimpleDB faultInjector;
+
+    private void setProfile(String op, String spec) {
+        Map<String, String> profiles = new HashMap<String, String>();
+        profiles.put(op, spec);
+        faultInjector.setProfiles(profiles);
+    }
+}
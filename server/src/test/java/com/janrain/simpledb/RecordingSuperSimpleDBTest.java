@@ -0,0 +1,115 @@
+package com.janrain.simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class RecordingSuperSimpleDBTest {
+
+    @Before
+    public void setUp() throws Exception {
+        journalDir = File.createTempFile("storage-journal", "");
+        assertTrue(journalDir.delete() && journalDir.mkdir());
+        System.setProperty(RecordingSuperSimpleDB.JOURNAL_DIR_PROPERTY, journalDir.getAbsolutePath());
+        delegate = createNiceMock(SuperSimpleDB.class);
+        recorder = new RecordingSuperSimpleDB(delegate, Collections.singleton("msgs"));
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(RecordingSuperSimpleDB.JOURNAL_DIR_PROPERTY);
+        for (File file : journalDir.listFiles()) {
+            file.delete();
+        }
+        journalDir.delete();
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        TestNamedMap item = new TestNamedMap();
+        item.put("payload", "{\"a\":1}");
+        expect(delegate.retrieveWhere("msgs", TestNamedMap.class, "bus='b1' and id > '2012-01-01'", true))
+            .andReturn(Arrays.asList(item));
+        expect(delegate.retrieveCount("msgs", "select count(*) from msgs")).andReturn(7L);
+        delegate.delete("msgs", "k");
+        expectLastCall().andThrow(new SimpleDBException("boom"));
+        replay(delegate);
+
+        recorder.retrieveCount("msgs", "not recorded");
+        recorder.startRecording();
+        recorder.retrieveWhere("msgs", TestNamedMap.class, "bus='b1' and id > '2012-01-01'", true);
+        recorder.retrieveCount("msgs", "select count(*) from msgs");
+        try {
+            recorder.delete("msgs", "k");
+            fail("recorded call should still fail");
+        } catch (SimpleDBException expected) { }
+        recorder.stopRecording();
+        assertEquals(3L, recorder.getStatus().get("written"));
+
+        File journal = new File((String) recorder.getStatus().get("journal"));
+        ReplaySuperSimpleDB replay = new ReplaySuperSimpleDB(journal, 0);
+
+        // literals in where clauses are ignored if there's no exact match
+        List<TestNamedMap> items = replay.retrieveWhere("msgs", TestNamedMap.class, "bus='b1' and id > '2012-06-30'", true);
+        assertEquals(1, items.size());
+        assertEquals("{\"a\":1}", items.get(0).get("payload"));
+        assertEquals(Long.valueOf(7), replay.retrieveCount("msgs", "select count(*) from msgs"));
+        try {
+            replay.delete("msgs", "k");
+            fail("recorded error expected");
+        } catch (SimpleDBException e) {
+            assertEquals("boom", e.getMessage());
+        }
+
+        assertEquals(Long.valueOf(0), replay.retrieveCount("msgs", "not recorded"));
+        assertEquals(3, replay.getServed());
+        assertEquals(1, replay.getMisses());
+    }
+
+    @Test
+    public void testCredentialsNotJournaled() throws Exception {
+        TestNamedMap user = new TestNamedMap();
+        user.put("PWDHASH", "secret hash");
+        expect(delegate.retrieve("test_User", TestNamedMap.class, "user1")).andReturn(user).times(2);
+        expect(delegate.retrieveWhere("test_User", TestNamedMap.class, null, true)).andReturn(Arrays.asList(user));
+        replay(delegate);
+
+        recorder.startRecording();
+        recorder.retrieve("test_User", TestNamedMap.class, "user1");
+        recorder.retrieveWhere("test_User", TestNamedMap.class, null, true);
+        recorder.store("test_User", TestNamedMap.class, user);
+        recorder.stopRecording();
+
+        File journal = new File((String) recorder.getStatus().get("journal"));
+        List<StorageJournal.Entry> entries = StorageJournal.read(journal);
+        assertEquals(3, entries.size());
+        for (StorageJournal.Entry entry : entries) {
+            assertNull(entry.items);
+        }
+
+        // replayed from the delegate
+        SuperSimpleDB replayed = new ReplaySuperSimpleDB(journal, 0, delegate, Collections.singleton("msgs"));
+        assertEquals("secret hash", replayed.retrieve("test_User", TestNamedMap.class, "user1").get("PWDHASH"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testJournalDirRequired() throws Exception {
+        System.clearProperty(RecordingSuperSimpleDB.JOURNAL_DIR_PROPERTY);
+        recorder.startRecording();
+    }
+
+    // - PRIVATE
+
+    private File journalDir;
+    private SuperSimpleDB delegate;
+    private RecordingSuperSimpleDB recorder;
+}
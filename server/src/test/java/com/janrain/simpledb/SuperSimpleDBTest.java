@@ -1,5 +1,7 @@
 package com.janrain.simpledb;
 
+import com.janrain.backplane.server.BackplaneMessage;
+import com.janrain.backplane.server.ChannelHead;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.RandomStringUtils;
 import org.junit.After;
@@ -9,14 +11,18 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.inject.Inject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * @author Johnny Bufu
  */
 @RunWith(SpringJUnit4ClassRunner.class)
-@ContextConfiguration(locations = {"classpath:/spring/app-config.xml", "classpath:/spring/mvc-config.xml"})
+@ContextConfiguration(locations = {"classpath:/spring/simpledb-emulator-config.xml"})
 public class SuperSimpleDBTest {
 
     @Test
@@ -56,6 +62,59 @@ public class SuperSimpleDBTest {
         superSimpleDB.deleteWhere(TEST_TABLE, "test is not null");
     }
 
+    @Test
+    public void testPackedMessageFormat() throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put("source", "http://example.com/source");
+        data.put("type", "identity/login");
+        data.put("sticky", "true");
+        data.put("payload", Collections.singletonMap("context", RandomStringUtils.randomAlphabetic(5000)));
+        BackplaneMessage v1 = new BackplaneMessage("2012-05-01T10:00:00.000Z-0123456789", "bus", "channel", data);
+        BackplaneMessage v2 = new BackplaneMessage("2012-05-01T10:00:00.000Z-abcdefabcd", "bus", "channel", data);
+        v2.setStorageFormat(BackplaneMessage.StorageFormat.V2, 3600);
+        assertEquals(7, v2.getStorageAttributes().size());
+
+        superSimpleDB.store(TEST_TABLE, BackplaneMessage.class, v1, true);
+        superSimpleDB.store(TEST_TABLE, BackplaneMessage.class, v2, true);
+
+        List<BackplaneMessage> retrieved = superSimpleDB.retrieveWhere(TEST_TABLE, BackplaneMessage.class, "bus='bus' and sticky='true'", true);
+        assertEquals(2, retrieved.size());
+        for (BackplaneMessage message : retrieved) {
+            assertEquals(v1.asFrame(null).get("message"), message.asFrame(null).get("message"));
+        }
+        assertEquals(BackplaneMessage.StorageFormat.V2, superSimpleDB.retrieve(TEST_TABLE, BackplaneMessage.class, v2.getIdValue()).getStorageFormat());
+        assertEquals(Long.valueOf(1), superSimpleDB.retrieveCount(TEST_TABLE,
+            "select count(*) from `" + TEST_TABLE + "` where " + BackplaneMessage.EXPIRES_ATTR + " > '2012'"));
+    }
+
+    @Test
+    public void testStoreIf() throws Exception {
+        testData = new TestNamedMap();
+        testData.put("version", "1");
+        assertTrue(superSimpleDB.storeIf(TEST_TABLE, TestNamedMap.class, testData, "version", null));
+        assertFalse(superSimpleDB.storeIf(TEST_TABLE, TestNamedMap.class, testData, "version", null));
+
+        TestNamedMap updated = new TestNamedMap();
+        updated.put("version", "2");
+        assertFalse(superSimpleDB.storeIf(TEST_TABLE, TestNamedMap.class, updated, "version", "0"));
+        assertFalse(superSimpleDB.storeIf(TEST_TABLE, TestNamedMap.class, updated, "missing", "1"));
+        assertTrue(superSimpleDB.storeIf(TEST_TABLE, TestNamedMap.class, updated, "version", "1"));
+        assertEquals(updated, superSimpleDB.retrieve(TEST_TABLE, TestNamedMap.class, testData.getName()));
+    }
+
+    @Test
+    public void testRetrieveWhereLimit() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            superSimpleDB.store(TEST_TABLE, ChannelHead.class, new ChannelHead("head" + i, "bus", "id" + (4 - i), 0));
+        }
+        List<ChannelHead> first = superSimpleDB.retrieveWhere(TEST_TABLE, ChannelHead.class, "id > '' order by id limit 3", false);
+        assertEquals(3, first.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("id" + i, first.get(i).getLatestId());
+        }
+        assertEquals(5, superSimpleDB.retrieveWhere(TEST_TABLE, ChannelHead.class, "id > '' order by id limit 10", false).size());
+    }
+
     @After
     public void tearDown() throws Exception {
         System.out.println("Tearing down " + TEST_TABLE);
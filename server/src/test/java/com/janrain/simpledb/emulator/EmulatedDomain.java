@@ -0,0 +1,192 @@
+package com.janrain.simpledb.emulator;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * In-memory SimpleDB domain: items keyed (and iterated) by item name, each holding multi-valued attributes.
+ *
+ * All operations are synchronized on the domain, so reads are always consistent.
+ */
+public class EmulatedDomain {
+
+    // - PUBLIC
+
+    public EmulatedDomain(String name) {
+        this.name = name;
+        this.created = System.currentTimeMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param replace attribute names for which existing values are replaced rather than appended to
+     */
+    public synchronized void put(String itemName, List<String[]> attributes, Set<String> replace, Condition expected) throws SimpleDBEmulatorException {
+        Map<String, List<String>> item = items.get(itemName);
+        checkCondition(item, expected);
+
+        Map<String, List<String>> updated = item == null ? new LinkedHashMap<String, List<String>>() : copy(item);
+        for (String attrName : replace) {
+            updated.remove(attrName);
+        }
+        for (String[] nameValue : attributes) {
+            List<String> values = updated.get(nameValue[0]);
+            if (values == null) {
+                values = new ArrayList<String>();
+                updated.put(nameValue[0], values);
+            }
+            if (! values.contains(nameValue[1])) {
+                values.add(nameValue[1]);
+            }
+        }
+        if (valueCount(updated) > MAX_ATTRIBUTES_PER_ITEM) {
+            throw new SimpleDBEmulatorException(409, "NumberItemAttributesExceeded",
+                    "Too many attributes in this item: " + itemName);
+        }
+        items.put(itemName, updated);
+    }
+
+    /**
+     * Deletes the specified attributes from an item; the whole item if the attribute list is empty.
+     * An attribute entry with a null value removes all values for that attribute name.
+     */
+    public synchronized void delete(String itemName, List<String[]> attributes, Condition expected) throws SimpleDBEmulatorException {
+        Map<String, List<String>> item = items.get(itemName);
+        checkCondition(item, expected);
+        if (item == null) return;
+
+        if (attributes.isEmpty()) {
+            items.remove(itemName);
+            return;
+        }
+        for (String[] nameValue : attributes) {
+            if (nameValue[1] == null) {
+                item.remove(nameValue[0]);
+            } else {
+                List<String> values = item.get(nameValue[0]);
+                if (values != null) {
+                    values.remove(nameValue[1]);
+                    if (values.isEmpty()) item.remove(nameValue[0]);
+                }
+            }
+        }
+        if (item.isEmpty()) {
+            items.remove(itemName);
+        }
+    }
+
+    /**
+     * @return a copy of the item's attributes, empty if the item does not exist
+     */
+    public synchronized Map<String, List<String>> get(String itemName, Collection<String> attributeNames) {
+        Map<String, List<String>> item = items.get(itemName);
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        if (item == null) return result;
+        for (Map.Entry<String, List<String>> attr : item.entrySet()) {
+            if (attributeNames.isEmpty() || attributeNames.contains(attr.getKey())) {
+                result.put(attr.getKey(), new ArrayList<String>(attr.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a point-in-time copy of all items, in item name order
+     */
+    public synchronized SortedMap<String, Map<String, List<String>>> snapshot() {
+        SortedMap<String, Map<String, List<String>>> result = new TreeMap<String, Map<String, List<String>>>();
+        for (Map.Entry<String, Map<String, List<String>>> item : items.entrySet()) {
+            result.put(item.getKey(), copy(item.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return DomainMetadata values: item count, item names bytes, attribute name count, attribute names bytes,
+     * attribute value count, attribute values bytes, and timestamp (seconds)
+     */
+    public synchronized long[] metadata() {
+        Set<String> attrNames = new HashSet<String>();
+        long itemNamesBytes = 0, attrNamesBytes = 0, attrValueCount = 0, attrValuesBytes = 0;
+        for (Map.Entry<String, Map<String, List<String>>> item : items.entrySet()) {
+            itemNamesBytes += item.getKey().getBytes(UTF8).length;
+            for (Map.Entry<String, List<String>> attr : item.getValue().entrySet()) {
+                if (attrNames.add(attr.getKey())) {
+                    attrNamesBytes += attr.getKey().getBytes(UTF8).length;
+                }
+                for (String value : attr.getValue()) {
+                    attrValueCount++;
+                    attrValuesBytes += value.getBytes(UTF8).length;
+                }
+            }
+        }
+        return new long[] { items.size(), itemNamesBytes, attrNames.size(), attrNamesBytes,
+                            attrValueCount, attrValuesBytes, created / 1000 };
+    }
+
+    /**
+     * Conditional put/delete expectation, as specified by the Expected.* request parameters.
+     */
+    public static class Condition {
+
+        public Condition(String name, String value, boolean exists) {
+            this.name = name;
+            this.value = value;
+            this.exists = exists;
+        }
+
+        // - PRIVATE
+
+        private final String name;
+        private final String value;
+        private final boolean exists;
+    }
+
+    // - PRIVATE
+
+    private static final int MAX_ATTRIBUTES_PER_ITEM = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String name;
+    private final long created;
+    private final SortedMap<String, Map<String, List<String>>> items = new TreeMap<String, Map<String, List<String>>>();
+
+    private static void checkCondition(Map<String, List<String>> item, Condition expected) throws SimpleDBEmulatorException {
+        if (expected == null) return;
+        List<String> values = item == null ? null : item.get(expected.name);
+        if (! expected.exists) {
+            if (values != null) {
+                throw new SimpleDBEmulatorException(409, "ConditionalCheckFailed",
+                        "Conditional check failed. Attribute (" + expected.name + ") value exists");
+            }
+        } else if (values == null) {
+            throw new SimpleDBEmulatorException(404, "AttributeDoesNotExist",
+                    "Attribute (" + expected.name + ") does not exist");
+        } else if (values.size() > 1) {
+            throw new SimpleDBEmulatorException(409, "MultiValuedAttribute",
+                    "Attribute (" + expected.name + ") is multi-valued");
+        } else if (expected.value != null && ! expected.value.equals(values.get(0))) {
+            throw new SimpleDBEmulatorException(409, "ConditionalCheckFailed",
+                    "Conditional check failed. Attribute (" + expected.name + ") value is (" + values.get(0) + ") but was expected (" + expected.value + ")");
+        }
+    }
+
+    private static Map<String, List<String>> copy(Map<String, List<String>> item) {
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> attr : item.entrySet()) {
+            result.put(attr.getKey(), new ArrayList<String>(attr.getValue()));
+        }
+        return result;
+    }
+
+    private static int valueCount(Map<String, List<String>> item) {
+        int count = 0;
+        for (List<String> values : item.values()) {
+            count += values.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,471 @@
+package com.janrain.simpledb.emulator;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Parser and evaluator for the subset of the SimpleDB select language used by the Backplane server:
+ *
+ * <pre>
+ * select * | itemName() | count(*) | attr[, attr...] from `domain`
+ *   [where predicate [and|or predicate ...]]
+ *   [order by attr|itemName() [asc|desc]]
+ *   [limit n]
+ * </pre>
+ *
+ * Predicates support =, !=, &lt;, &gt;, &lt;=, &gt;=, like, not like, between, in, is null, is not null,
+ * every(attr), itemName(), not and parentheses. Comparisons are lexicographical and multi-valued attributes
+ * match if any of their values do, as in SimpleDB.
+ *
+ * See http://docs.amazonwebservices.com/AmazonSimpleDB/latest/DeveloperGuide/UsingSelect.html
+ */
+public class SelectExpression {
+
+    // - PUBLIC
+
+    public static SelectExpression parse(String expression) throws SimpleDBEmulatorException {
+        if (expression == null) {
+            throw SimpleDBEmulatorException.missingParameter("SelectExpression");
+        }
+        return new Parser(expression).parseSelect();
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public boolean isCount() {
+        return count;
+    }
+
+    public boolean isItemNameOnly() {
+        return itemNameOnly;
+    }
+
+    /**
+     * @return the projected attribute names, or null if all attributes were requested
+     */
+    public List<String> getOutputAttributes() {
+        return outputAttributes;
+    }
+
+    /**
+     * @return the limit clause value, or null if none was specified
+     */
+    public Integer getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return names of the items matching the where clause, in the requested sort order
+     */
+    public List<String> apply(SortedMap<String, Map<String, List<String>>> items) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, List<String>>> item : items.entrySet()) {
+            if (where == null || where.matches(item.getKey(), item.getValue())) {
+                result.add(item.getKey());
+            }
+        }
+        if (orderBy != null) {
+            final SortedMap<String, Map<String, List<String>>> all = items;
+            Collections.sort(result, new Comparator<String>() {
+                @Override
+                public int compare(String item1, String item2) {
+                    String v1 = orderBy.firstValue(item1, all.get(item1));
+                    String v2 = orderBy.firstValue(item2, all.get(item2));
+                    int c = v1 == null ? (v2 == null ? 0 : 1) : v2 == null ? -1 : v1.compareTo(v2);
+                    return descending ? -c : c;
+                }
+            });
+        }
+        return result;
+    }
+
+    // - PRIVATE
+
+    private String domain;
+    private boolean count;
+    private boolean itemNameOnly;
+    private List<String> outputAttributes;
+    private Predicate where;
+    private Operand orderBy;
+    private boolean descending;
+    private Integer limit;
+
+    private SelectExpression() { }
+
+    private static interface Predicate {
+        boolean matches(String itemName, Map<String, List<String>> attributes);
+    }
+
+    private static interface ValueTest {
+        boolean test(String value);
+    }
+
+    private static class Operand {
+
+        Operand(String attribute, boolean itemName, boolean every) {
+            this.attribute = attribute;
+            this.itemName = itemName;
+            this.every = every;
+        }
+
+        List<String> values(String name, Map<String, List<String>> attributes) {
+            if (itemName) return Collections.singletonList(name);
+            List<String> values = attributes.get(attribute);
+            return values == null ? Collections.<String>emptyList() : values;
+        }
+
+        String firstValue(String name, Map<String, List<String>> attributes) {
+            List<String> values = values(name, attributes);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        Predicate test(final ValueTest test) {
+            return new Predicate() {
+                @Override
+                public boolean matches(String name, Map<String, List<String>> attributes) {
+                    List<String> values = values(name, attributes);
+                    if (values.isEmpty()) return false;
+                    for (String value : values) {
+                        boolean matched = test.test(value);
+                        if (every && ! matched) return false;
+                        if (! every && matched) return true;
+                    }
+                    return every;
+                }
+            };
+        }
+
+        private final String attribute;
+        private final boolean itemName;
+        private final boolean every;
+    }
+
+    private static class Parser {
+
+        Parser(String expression) throws SimpleDBEmulatorException {
+            this.expression = expression;
+            this.tokens = tokenize(expression);
+        }
+
+        SelectExpression parseSelect() throws SimpleDBEmulatorException {
+            SelectExpression select = new SelectExpression();
+            expectKeyword("select");
+            if (acceptSymbol("*")) {
+                // all attributes
+            } else if (acceptKeyword("count")) {
+                expectSymbol("(");
+                expectSymbol("*");
+                expectSymbol(")");
+                select.count = true;
+            } else if (acceptItemName()) {
+                select.itemNameOnly = true;
+            } else {
+                select.outputAttributes = new ArrayList<String>();
+                do {
+                    select.outputAttributes.add(name());
+                } while (acceptSymbol(","));
+            }
+            expectKeyword("from");
+            select.domain = name();
+            if (acceptKeyword("where")) {
+                select.where = orExpression();
+            }
+            if (acceptKeyword("order")) {
+                expectKeyword("by");
+                select.orderBy = operand();
+                if (acceptKeyword("desc")) {
+                    select.descending = true;
+                } else {
+                    acceptKeyword("asc");
+                }
+            }
+            if (acceptKeyword("limit")) {
+                String limit = name();
+                try {
+                    select.limit = Integer.valueOf(limit);
+                } catch (NumberFormatException e) {
+                    throw error("invalid limit " + limit);
+                }
+                if (select.limit < 1 || select.limit > MAX_LIMIT) {
+                    throw SimpleDBEmulatorException.invalidParameter("Value (" + limit + ") for parameter Limit is invalid");
+                }
+            }
+            if (position < tokens.size()) {
+                throw error("unexpected " + tokens.get(position).text);
+            }
+            return select;
+        }
+
+        private Predicate orExpression() throws SimpleDBEmulatorException {
+            final Predicate left = andExpression();
+            if (! acceptKeyword("or")) return left;
+            final Predicate right = orExpression();
+            return new Predicate() {
+                @Override
+                public boolean matches(String itemName, Map<String, List<String>> attributes) {
+                    return left.matches(itemName, attributes) || right.matches(itemName, attributes);
+                }
+            };
+        }
+
+        private Predicate andExpression() throws SimpleDBEmulatorException {
+            final Predicate left = notExpression();
+            if (! acceptKeyword("and") && ! acceptKeyword("intersection")) return left;
+            final Predicate right = andExpression();
+            return new Predicate() {
+                @Override
+                public boolean matches(String itemName, Map<String, List<String>> attributes) {
+                    return left.matches(itemName, attributes) && right.matches(itemName, attributes);
+                }
+            };
+        }
+
+        private Predicate notExpression() throws SimpleDBEmulatorException {
+            if (acceptKeyword("not")) {
+                final Predicate negated = notExpression();
+                return new Predicate() {
+                    @Override
+                    public boolean matches(String itemName, Map<String, List<String>> attributes) {
+                        return ! negated.matches(itemName, attributes);
+                    }
+                };
+            }
+            if (acceptSymbol("(")) {
+                Predicate grouped = orExpression();
+                expectSymbol(")");
+                return grouped;
+            }
+            return comparison();
+        }
+
+        private Predicate comparison() throws SimpleDBEmulatorException {
+            final Operand operand = operand();
+
+            if (acceptKeyword("is")) {
+                final boolean not = acceptKeyword("not");
+                expectKeyword("null");
+                return new Predicate() {
+                    @Override
+                    public boolean matches(String itemName, Map<String, List<String>> attributes) {
+                        return operand.values(itemName, attributes).isEmpty() != not;
+                    }
+                };
+            }
+
+            if (acceptKeyword("between")) {
+                final String low = literal();
+                expectKeyword("and");
+                final String high = literal();
+                return operand.test(new ValueTest() {
+                    @Override
+                    public boolean test(String value) {
+                        return value.compareTo(low) >= 0 && value.compareTo(high) <= 0;
+                    }
+                });
+            }
+
+            if (acceptKeyword("in")) {
+                expectSymbol("(");
+                final Set<String> in = new HashSet<String>();
+                do {
+                    in.add(literal());
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+                return operand.test(new ValueTest() {
+                    @Override
+                    public boolean test(String value) {
+                        return in.contains(value);
+                    }
+                });
+            }
+
+            final boolean notLike = acceptKeyword("not");
+            if (notLike || acceptKeyword("like")) {
+                if (notLike) expectKeyword("like");
+                final Pattern pattern = likePattern(literal());
+                return operand.test(new ValueTest() {
+                    @Override
+                    public boolean test(String value) {
+                        return pattern.matcher(value).matches() != notLike;
+                    }
+                });
+            }
+
+            final String op = symbol();
+            final String literal = literal();
+            return operand.test(new ValueTest() {
+                @Override
+                public boolean test(String value) {
+                    int c = value.compareTo(literal);
+                    if ("=".equals(op)) return c == 0;
+                    if ("!=".equals(op) || "<>".equals(op)) return c != 0;
+                    if ("<".equals(op)) return c < 0;
+                    if ("<=".equals(op)) return c <= 0;
+                    if (">".equals(op)) return c > 0;
+                    return c >= 0; // ">=", checked in symbol()
+                }
+            });
+        }
+
+        private Operand operand() throws SimpleDBEmulatorException {
+            if (acceptItemName()) {
+                return new Operand(null, true, false);
+            }
+            if (acceptKeyword("every")) {
+                expectSymbol("(");
+                String attribute = name();
+                expectSymbol(")");
+                return new Operand(attribute, false, true);
+            }
+            return new Operand(name(), false, false);
+        }
+
+        private boolean acceptItemName() throws SimpleDBEmulatorException {
+            if (position + 2 < tokens.size() && tokens.get(position).isKeyword("itemName") && "(".equals(tokens.get(position + 1).text)) {
+                position++;
+                expectSymbol("(");
+                expectSymbol(")");
+                return true;
+            }
+            return false;
+        }
+
+        private String name() throws SimpleDBEmulatorException {
+            Token t = next();
+            if (t.type != TokenType.NAME && t.type != TokenType.QUOTED_NAME) {
+                throw error("name expected, got " + t.text);
+            }
+            return t.text;
+        }
+
+        private String literal() throws SimpleDBEmulatorException {
+            Token t = next();
+            if (t.type != TokenType.LITERAL) {
+                throw error("quoted value expected, got " + t.text);
+            }
+            return t.text;
+        }
+
+        private String symbol() throws SimpleDBEmulatorException {
+            Token t = next();
+            if (t.type != TokenType.SYMBOL || ! COMPARISON_OPERATORS.contains(t.text)) {
+                throw error("comparison operator expected, got " + t.text);
+            }
+            return t.text;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (position < tokens.size() && tokens.get(position).isKeyword(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(String keyword) throws SimpleDBEmulatorException {
+            if (! acceptKeyword(keyword)) throw error(keyword + " expected");
+        }
+
+        private boolean acceptSymbol(String symbol) {
+            if (position < tokens.size() && tokens.get(position).type == TokenType.SYMBOL && symbol.equals(tokens.get(position).text)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectSymbol(String symbol) throws SimpleDBEmulatorException {
+            if (! acceptSymbol(symbol)) throw error(symbol + " expected");
+        }
+
+        private Token next() throws SimpleDBEmulatorException {
+            if (position >= tokens.size()) throw error("unexpected end of expression");
+            return tokens.get(position++);
+        }
+
+        private SimpleDBEmulatorException error(String message) {
+            return SimpleDBEmulatorException.invalidQuery("The specified query expression syntax is not valid: " + message + " in `" + expression + "`");
+        }
+
+        private static Pattern likePattern(String like) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : like.split("%", -1)) {
+                if (regex.length() > 0 || like.startsWith("%")) regex.append(".*");
+                regex.append(Pattern.quote(part));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+        private List<Token> tokenize(String s) throws SimpleDBEmulatorException {
+            List<Token> result = new ArrayList<Token>();
+            int i = 0;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"' || c == '`') {
+                    StringBuilder quoted = new StringBuilder();
+                    int j = i + 1;
+                    while (true) {
+                        if (j >= s.length()) throw error("unterminated quote");
+                        char q = s.charAt(j);
+                        if (q == c) {
+                            if (j + 1 < s.length() && s.charAt(j + 1) == c) {
+                                quoted.append(c);
+                                j += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        quoted.append(q);
+                        j++;
+                    }
+                    result.add(new Token(c == '`' ? TokenType.QUOTED_NAME : TokenType.LITERAL, quoted.toString()));
+                    i = j + 1;
+                } else if ("()*,".indexOf(c) >= 0) {
+                    result.add(new Token(TokenType.SYMBOL, String.valueOf(c)));
+                    i++;
+                } else if ("=!<>".indexOf(c) >= 0) {
+                    int j = i + 1;
+                    while (j < s.length() && "=<>".indexOf(s.charAt(j)) >= 0) j++;
+                    result.add(new Token(TokenType.SYMBOL, s.substring(i, j)));
+                    i = j;
+                } else {
+                    int j = i;
+                    while (j < s.length() && (Character.isLetterOrDigit(s.charAt(j)) || "_$.-".indexOf(s.charAt(j)) >= 0)) j++;
+                    if (j == i) throw error("unexpected character " + c);
+                    result.add(new Token(TokenType.NAME, s.substring(i, j)));
+                    i = j;
+                }
+            }
+            return result;
+        }
+
+        private final String expression;
+        private final List<Token> tokens;
+        private int position = 0;
+    }
+
+    private static enum TokenType { NAME, QUOTED_NAME, LITERAL, SYMBOL }
+
+    private static class Token {
+
+        Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        boolean isKeyword(String keyword) {
+            return type == TokenType.NAME && keyword.equalsIgnoreCase(text);
+        }
+
+        private final TokenType type;
+        private final String text;
+    }
+
+    private static final int MAX_LIMIT = 2500;
+
+    private static final Set<String> COMPARISON_OPERATORS = new HashSet<String>(Arrays.asList("=", "!=", "<>", "<", "<=", ">", ">="));
+}
@@ -0,0 +1,492 @@
+package com.janrain.simpledb.emulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process, in-memory SimpleDB endpoint speaking the SimpleDB query (HTTP) API, API version 2009-04-15.
+ *
+ * Point an AmazonSimpleDBClient to getEndpoint() to exercise SuperSimpleDBImpl unmodified,
+ * including the SDK's request marshalling and response parsing, without AWS access.
+ * Request signatures are not verified and all reads are consistent.
+ *
+ * Supported actions: CreateDomain, DeleteDomain, ListDomains, DomainMetadata, PutAttributes,
+ * BatchPutAttributes, GetAttributes, DeleteAttributes, BatchDeleteAttributes and Select (with NextToken paging).
+ */
+public class SimpleDBEmulator {
+
+    // - PUBLIC
+
+    /**
+     * Emulator listening on an ephemeral port.
+     */
+    public SimpleDBEmulator() {
+        this(0);
+    }
+
+    public SimpleDBEmulator(int port) {
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) return;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                SimpleDBEmulator.this.handle(exchange);
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        logger.info("SimpleDB emulator listening on " + getEndpoint());
+    }
+
+    public synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server = null;
+        logger.info("SimpleDB emulator stopped");
+    }
+
+    /**
+     * @return the emulator's endpoint URL, to be used with AmazonSimpleDBClient.setEndpoint()
+     */
+    public String getEndpoint() {
+        if (server == null) {
+            throw new IllegalStateException("SimpleDB emulator not started");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return number of requests handled for the specified action since startup
+     */
+    public long getRequestCount(String action) {
+        Long count = requestCounts.get(action);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Discards all domains and their data.
+     */
+    public void reset() {
+        domains.clear();
+    }
+
+    // - PACKAGE
+
+    String process(Map<String, String> params) throws SimpleDBEmulatorException {
+        String actionName = params.get("Action");
+        Action action;
+        try {
+            action = Action.valueOf(actionName);
+        } catch (Exception e) {
+            throw new SimpleDBEmulatorException(400, "InvalidAction", "The action " + actionName + " is not valid for this web service.");
+        }
+        countRequest(actionName);
+
+        StringBuilder result = new StringBuilder();
+        switch (action) {
+            case CreateDomain:
+                String created = required(params, "DomainName");
+                if (! domains.containsKey(created)) {
+                    domains.putIfAbsent(created, new EmulatedDomain(created));
+                }
+                break;
+            case DeleteDomain:
+                domains.remove(required(params, "DomainName"));
+                break;
+            case ListDomains:
+                listDomains(params, result);
+                break;
+            case DomainMetadata:
+                domainMetadata(params, result);
+                break;
+            case PutAttributes:
+                putAttributes(domain(params), "", params);
+                break;
+            case BatchPutAttributes:
+                EmulatedDomain putDomain = domain(params);
+                for (String prefix : itemPrefixes(params)) {
+                    putAttributes(putDomain, prefix, params);
+                }
+                break;
+            case GetAttributes:
+                getAttributes(params, result);
+                break;
+            case DeleteAttributes:
+                deleteAttributes(domain(params), "", params);
+                break;
+            case BatchDeleteAttributes:
+                EmulatedDomain deleteDomain = domain(params);
+                for (String prefix : itemPrefixes(params)) {
+                    deleteAttributes(deleteDomain, prefix, params);
+                }
+                break;
+            case Select:
+                select(params, result);
+                break;
+        }
+        return response(action, result);
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(SimpleDBEmulator.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String XMLNS = "http://sdb.amazonaws.com/doc/2009-04-15/";
+    private static final String BOX_USAGE = "0.0000219907";
+    private static final int MAX_BATCH_ITEMS = 25;
+    private static final int MAX_NAME_VALUE_BYTES = 1024;
+    private static final int DEFAULT_SELECT_LIMIT = 100;
+    private static final int DEFAULT_MAX_DOMAINS = 100;
+
+    private static enum Action {
+        CreateDomain, DeleteDomain, ListDomains, DomainMetadata,
+        PutAttributes, BatchPutAttributes, GetAttributes, DeleteAttributes, BatchDeleteAttributes, Select
+    }
+
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final ConcurrentHashMap<String, EmulatedDomain> domains = new ConcurrentHashMap<String, EmulatedDomain>();
+    private final Map<String, Long> requestCounts = new ConcurrentHashMap<String, Long>();
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            Map<String, String> params = new HashMap<String, String>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            parseForm(new String(readFully(exchange.getRequestBody()), UTF8), params);
+            body = process(params);
+        } catch (SimpleDBEmulatorException e) {
+            status = e.getHttpStatus();
+            body = errorResponse(e.getCode(), e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("SimpleDB emulator error: " + e.getMessage(), e);
+            status = 500;
+            body = errorResponse("InternalError", "Request could not be executed due to an internal service error.");
+        }
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private synchronized void countRequest(String action) {
+        Long count = requestCounts.get(action);
+        requestCounts.put(action, count == null ? 1L : count + 1);
+    }
+
+    private void listDomains(Map<String, String> params, StringBuilder result) throws SimpleDBEmulatorException {
+        int max = intParam(params, "MaxNumberOfDomains", DEFAULT_MAX_DOMAINS);
+        List<String> names = new ArrayList<String>(new TreeSet<String>(domains.keySet()));
+        int offset = decodeNextToken(params.get("NextToken"));
+        int end = Math.min(names.size(), offset + max);
+        for (String name : names.subList(Math.min(offset, names.size()), end)) {
+            element(result, "DomainName", name);
+        }
+        if (end < names.size()) {
+            element(result, "NextToken", encodeNextToken(end));
+        }
+    }
+
+    private void domainMetadata(Map<String, String> params, StringBuilder result) throws SimpleDBEmulatorException {
+        long[] metadata = domain(params).metadata();
+        String[] names = { "ItemCount", "ItemNamesSizeBytes", "AttributeNameCount", "AttributeNamesSizeBytes",
+                           "AttributeValueCount", "AttributeValuesSizeBytes", "Timestamp" };
+        for (int i = 0; i < names.length; i++) {
+            element(result, names[i], Long.toString(metadata[i]));
+        }
+    }
+
+    private void putAttributes(EmulatedDomain domain, String prefix, Map<String, String> params) throws SimpleDBEmulatorException {
+        String itemName = itemName(params, prefix);
+        List<String[]> attributes = new ArrayList<String[]>();
+        Set<String> replace = new HashSet<String>();
+        for (int i = 1; params.containsKey(prefix + "Attribute." + i + ".Name"); i++) {
+            String attrPrefix = prefix + "Attribute." + i + ".";
+            String name = checkSize(params.get(attrPrefix + "Name"));
+            String value = params.get(attrPrefix + "Value");
+            if (value == null) throw SimpleDBEmulatorException.missingParameter(attrPrefix + "Value");
+            attributes.add(new String[] { name, checkSize(value) });
+            if (Boolean.valueOf(params.get(attrPrefix + "Replace"))) {
+                replace.add(name);
+            }
+        }
+        if (attributes.isEmpty()) {
+            throw SimpleDBEmulatorException.missingParameter(prefix + "Attribute.1.Name");
+        }
+        domain.put(itemName, attributes, replace, condition(params));
+    }
+
+    private void deleteAttributes(EmulatedDomain domain, String prefix, Map<String, String> params) throws SimpleDBEmulatorException {
+        String itemName = itemName(params, prefix);
+        List<String[]> attributes = new ArrayList<String[]>();
+        for (int i = 1; params.containsKey(prefix + "Attribute." + i + ".Name"); i++) {
+            String attrPrefix = prefix + "Attribute." + i + ".";
+            attributes.add(new String[] {
+                decode(params.get(attrPrefix + "Name"), params.get(attrPrefix + "AlternateNameEncoding")),
+                decode(params.get(attrPrefix + "Value"), params.get(attrPrefix + "AlternateValueEncoding")) });
+        }
+        domain.delete(itemName, attributes, condition(params));
+    }
+
+    private void getAttributes(Map<String, String> params, StringBuilder result) throws SimpleDBEmulatorException {
+        EmulatedDomain domain = domain(params);
+        List<String> names = new ArrayList<String>();
+        for (int i = 1; params.containsKey("AttributeName." + i); i++) {
+            names.add(params.get("AttributeName." + i));
+        }
+        appendAttributes(result, domain.get(itemName(params, ""), names));
+    }
+
+    private void select(Map<String, String> params, StringBuilder result) throws SimpleDBEmulatorException {
+        SelectExpression select = SelectExpression.parse(params.get("SelectExpression"));
+        EmulatedDomain domain = domains.get(select.getDomain());
+        if (domain == null) throw SimpleDBEmulatorException.noSuchDomain(select.getDomain());
+
+        SortedMap<String, Map<String, List<String>>> items = domain.snapshot();
+        List<String> matches = select.apply(items);
+        int limit = select.getLimit() == null ? DEFAULT_SELECT_LIMIT : select.getLimit();
+
+        if (select.isCount()) {
+            int count = select.getLimit() == null ? matches.size() : Math.min(matches.size(), limit);
+            result.append("<Item>");
+            element(result, "Name", "Domain");
+            result.append("<Attribute>");
+            element(result, "Name", "Count");
+            element(result, "Value", Integer.toString(count));
+            result.append("</Attribute></Item>");
+            return;
+        }
+
+        int offset = decodeNextToken(params.get("NextToken"));
+        int end = Math.min(matches.size(), offset + limit);
+        for (String itemName : matches.subList(Math.min(offset, matches.size()), end)) {
+            Map<String, List<String>> attributes = items.get(itemName);
+            if (select.isItemNameOnly()) {
+                attributes = Collections.emptyMap();
+            } else if (select.getOutputAttributes() != null) {
+                attributes = new LinkedHashMap<String, List<String>>(attributes);
+                attributes.keySet().retainAll(select.getOutputAttributes());
+                if (attributes.isEmpty()) continue;
+            }
+            result.append("<Item>");
+            element(result, "Name", itemName);
+            appendAttributes(result, attributes);
+            result.append("</Item>");
+        }
+        if (end < matches.size()) {
+            element(result, "NextToken", encodeNextToken(end));
+        }
+    }
+
+    private EmulatedDomain domain(Map<String, String> params) throws SimpleDBEmulatorException {
+        String name = required(params, "DomainName");
+        EmulatedDomain domain = domains.get(name);
+        if (domain == null) throw SimpleDBEmulatorException.noSuchDomain(name);
+        return domain;
+    }
+
+    private List<String> itemPrefixes(Map<String, String> params) throws SimpleDBEmulatorException {
+        List<String> prefixes = new ArrayList<String>();
+        for (int i = 1; params.containsKey("Item." + i + ".ItemName"); i++) {
+            prefixes.add("Item." + i + ".");
+        }
+        if (prefixes.isEmpty()) throw SimpleDBEmulatorException.missingParameter("Item.1.ItemName");
+        if (prefixes.size() > MAX_BATCH_ITEMS) {
+            throw new SimpleDBEmulatorException(409, "NumberSubmittedItemsExceeded", "Too many items in a single call. Up to 25 items per call allowed.");
+        }
+        return prefixes;
+    }
+
+    private static String itemName(Map<String, String> params, String prefix) throws SimpleDBEmulatorException {
+        return checkSize(required(params, prefix + "ItemName"));
+    }
+
+    private static EmulatedDomain.Condition condition(Map<String, String> params) {
+        String name = params.get("Expected.Name");
+        if (name == null) name = params.get("Expected.1.Name");
+        if (name == null) return null;
+        String value = params.get("Expected.Value");
+        if (value == null) value = params.get("Expected.1.Value");
+        String exists = params.get("Expected.Exists");
+        if (exists == null) exists = params.get("Expected.1.Exists");
+        return new EmulatedDomain.Condition(name, value, exists == null || Boolean.valueOf(exists));
+    }
+
+    private static String required(Map<String, String> params, String name) throws SimpleDBEmulatorException {
+        String value = params.get(name);
+        if (value == null) throw SimpleDBEmulatorException.missingParameter(name);
+        return value;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) throws SimpleDBEmulatorException {
+        String value = params.get(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw SimpleDBEmulatorException.invalidParameter("Value (" + value + ") for parameter " + name + " is invalid");
+        }
+    }
+
+    private static String checkSize(String nameOrValue) throws SimpleDBEmulatorException {
+        if (nameOrValue.getBytes(UTF8).length > MAX_NAME_VALUE_BYTES) {
+            throw SimpleDBEmulatorException.invalidParameter("Value for parameter Name or Value is too long, max 1024 bytes");
+        }
+        return nameOrValue;
+    }
+
+    private static String decode(String value, String encoding) throws SimpleDBEmulatorException {
+        if (value == null || encoding == null) return value;
+        if (! "base64".equalsIgnoreCase(encoding)) {
+            throw SimpleDBEmulatorException.invalidParameter("Unsupported alternate encoding: " + encoding);
+        }
+        return new String(Base64.decodeBase64(value.getBytes(UTF8)), UTF8);
+    }
+
+    private static String encodeNextToken(int offset) {
+        return new String(Base64.encodeBase64(("offset:" + offset).getBytes(UTF8)), UTF8);
+    }
+
+    private static int decodeNextToken(String token) throws SimpleDBEmulatorException {
+        if (token == null) return 0;
+        String decoded = new String(Base64.decodeBase64(token.getBytes(UTF8)), UTF8);
+        try {
+            if (decoded.startsWith("offset:")) {
+                return Integer.parseInt(decoded.substring("offset:".length()));
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new SimpleDBEmulatorException(400, "InvalidNextToken", "The specified next token is not valid.");
+    }
+
+    private static void appendAttributes(StringBuilder result, Map<String, List<String>> attributes) {
+        for (Map.Entry<String, List<String>> attr : attributes.entrySet()) {
+            for (String value : attr.getValue()) {
+                result.append("<Attribute>");
+                element(result, "Name", attr.getKey());
+                element(result, "Value", value);
+                result.append("</Attribute>");
+            }
+        }
+    }
+
+    /**
+     * Appends an XML element, base64-encoding the text (as SimpleDB does) if it contains characters not allowed in XML.
+     */
+    private static void element(StringBuilder result, String name, String text) {
+        if (isXmlSafe(text)) {
+            result.append('<').append(name).append('>');
+            escape(result, text);
+        } else {
+            result.append('<').append(name).append(" encoding=\"base64\">")
+                  .append(new String(Base64.encodeBase64(text.getBytes(UTF8)), UTF8));
+        }
+        result.append("</").append(name).append('>');
+    }
+
+    private static boolean isXmlSafe(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') return false;
+            if (c == '\r' || c == 0xFFFE || c == 0xFFFF) return false; // \r would be normalized by the parser
+            if (Character.isHighSurrogate(c)) {
+                if (i + 1 >= text.length() || ! Character.isLowSurrogate(text.charAt(i + 1))) return false;
+                i++;
+            } else if (Character.isLowSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void escape(StringBuilder result, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': result.append("&lt;"); break;
+                case '>': result.append("&gt;"); break;
+                case '&': result.append("&amp;"); break;
+                case '"': result.append("&quot;"); break;
+                case '\'': result.append("&apos;"); break;
+                default: result.append(c);
+            }
+        }
+    }
+
+    private static String response(Action action, StringBuilder result) {
+        StringBuilder response = new StringBuilder("<?xml version=\"1.0\"?>\n")
+            .append('<').append(action).append("Response xmlns=\"").append(XMLNS).append("\">");
+        if (result.length() > 0 || action == Action.ListDomains || action == Action.GetAttributes ||
+            action == Action.Select || action == Action.DomainMetadata) {
+            response.append('<').append(action).append("Result>").append(result).append("</").append(action).append("Result>");
+        }
+        response.append("<ResponseMetadata><RequestId>").append(UUID.randomUUID())
+                .append("</RequestId><BoxUsage>").append(BOX_USAGE).append("</BoxUsage></ResponseMetadata>")
+                .append("</").append(action).append("Response>");
+        return response.toString();
+    }
+
+    private static String errorResponse(String code, String message) {
+        StringBuilder response = new StringBuilder("<?xml version=\"1.0\"?>\n<Response><Errors><Error><Code>")
+            .append(code).append("</Code><Message>");
+        escape(response, message);
+        return response.append("</Message><BoxUsage>").append(BOX_USAGE).append("</BoxUsage></Error></Errors><RequestID>")
+            .append(UUID.randomUUID()).append("</RequestID></Response>").toString();
+    }
+
+    private static void parseForm(String form, Map<String, String> params) throws IOException {
+        if (form == null || form.length() == 0) return;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(name, value);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,42 @@
+package com.janrain.simpledb.emulator;
+
+/**
+ * SimpleDB error, rendered by the emulator as a standard SimpleDB error response.
+ */
+public class SimpleDBEmulatorException extends Exception {
+
+    public SimpleDBEmulatorException(int httpStatus, String code, String message) {
+        super(message);
+        this.httpStatus = httpStatus;
+        this.code = code;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    static SimpleDBEmulatorException invalidParameter(String message) {
+        return new SimpleDBEmulatorException(400, "InvalidParameterValue", message);
+    }
+
+    static SimpleDBEmulatorException missingParameter(String name) {
+        return new SimpleDBEmulatorException(400, "MissingParameter", "The request must contain the parameter " + name);
+    }
+
+    static SimpleDBEmulatorException noSuchDomain(String domain) {
+        return new SimpleDBEmulatorException(400, "NoSuchDomain", "The specified domain does not exist: " + domain);
+    }
+
+    static SimpleDBEmulatorException invalidQuery(String message) {
+        return new SimpleDBEmulatorException(400, "InvalidQueryExpression", message);
+    }
+
+    // - PRIVATE
+
+    private final int httpStatus;
+    private final String code;
+}
@@ -0,0 +1,98 @@
+package com.janrain.simpledb.emulator;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the emulator through the AWS SDK client.
+ */
+public class SimpleDBEmulatorTest {
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new SimpleDBEmulator();
+        emulator.start();
+        simpleDB = new AmazonSimpleDBClient(new BasicAWSCredentials("emulator", "emulator"));
+        simpleDB.setEndpoint(emulator.getEndpoint());
+        simpleDB.createDomain(new CreateDomainRequest(DOMAIN));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        emulator.stop();
+    }
+
+    @Test
+    public void testSelectPaging() throws Exception {
+        for (int batch = 0; batch < 6; batch++) {
+            List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+            for (int i = 0; i < 25; i++) {
+                items.add(new ReplaceableItem(String.format("item%03d", batch * 25 + i),
+                    Arrays.asList(new ReplaceableAttribute("bus", i % 2 == 0 ? "even" : "odd", true))));
+            }
+            simpleDB.batchPutAttributes(new BatchPutAttributesRequest(DOMAIN, items));
+        }
+
+        SelectRequest select = new SelectRequest("select * from `" + DOMAIN + "` where bus='even' and itemName() > 'item010' limit 50", true);
+        int pages = 0, count = 0;
+        String lastName = "";
+        do {
+            SelectResult result = simpleDB.select(select);
+            for (Item item : result.getItems()) {
+                assertTrue(item.getName().compareTo(lastName) > 0);
+                lastName = item.getName();
+                count++;
+            }
+            select.setNextToken(result.getNextToken());
+            pages++;
+        } while (select.getNextToken() != null);
+
+        assertEquals(2, pages);
+        assertEquals(72, count);
+
+        SelectResult countResult = simpleDB.select(new SelectRequest("select count(*) from `" + DOMAIN + "` where bus = 'odd'"));
+        assertEquals("72", countResult.getItems().get(0).getAttributes().get(0).getValue());
+    }
+
+    @Test
+    public void testConditionalPut() throws Exception {
+        simpleDB.putAttributes(new PutAttributesRequest(DOMAIN, "item", Arrays.asList(new ReplaceableAttribute("lock", "a", false)),
+            new UpdateCondition().withName("lock").withExists(false)));
+        try {
+            simpleDB.putAttributes(new PutAttributesRequest(DOMAIN, "item", Arrays.asList(new ReplaceableAttribute("lock", "b", false)),
+                new UpdateCondition().withName("lock").withExists(false)));
+            fail("conditional put should have failed");
+        } catch (AmazonServiceException e) {
+            assertEquals("ConditionalCheckFailed", e.getErrorCode());
+        }
+
+        simpleDB.deleteAttributes(new DeleteAttributesRequest(DOMAIN, "item", null, new UpdateCondition().withName("lock").withValue("a")));
+        assertTrue(simpleDB.getAttributes(new GetAttributesRequest(DOMAIN, "item")).getAttributes().isEmpty());
+    }
+
+    @Test
+    public void testXmlUnsafeValues() throws Exception {
+        String value = "a\u0001b\rc";
+        simpleDB.putAttributes(new PutAttributesRequest(DOMAIN, "item", Arrays.asList(new ReplaceableAttribute("v", value, true))));
+        Attribute attribute = simpleDB.getAttributes(new GetAttributesRequest(DOMAIN, "item")).getAttributes().get(0);
+        assertEquals("base64", attribute.getAlternateValueEncoding());
+    }
+
+    // - PRIVATE
+
+    private static final String DOMAIN = "emulator_test";
+
+    private SimpleDBEmulator emulator;
+    private AmazonSimpleDBClient simpleDB;
+}
@@ -0,0 +1,75 @@
+package com.janrain.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Compares Iso8601 with the SimpleDateFormat it replaces, formatting increasing timestamps
+ * a few milliseconds apart, as for message IDs. Not a unit test: run with
+ * java -cp target/classes:target/test-classes com.janrain.util.Iso8601Benchmark [iterations]
+ */
+public class Iso8601Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final char[] buffer = new char[Iso8601.LENGTH];
+
+        Formatter simpleDateFormat = new Formatter("SimpleDateFormat (synchronized)") {
+            @Override
+            int format(long millis) {
+                synchronized (format) {
+                    return format.format(new Date(millis)).length();
+                }
+            }
+        };
+        Formatter iso8601String = new Formatter("Iso8601.format(long)") {
+            @Override
+            int format(long millis) {
+                return Iso8601.format(millis).length();
+            }
+        };
+        Formatter iso8601Buffer = new Formatter("Iso8601.format(long, char[], int)") {
+            @Override
+            int format(long millis) {
+                return Iso8601.format(millis, buffer, 0);
+            }
+        };
+
+        Formatter[] formatters = { simpleDateFormat, iso8601String, iso8601Buffer };
+        // warm up, then measure
+        for (int round = 0; round < 3; round++) {
+            for (Formatter formatter : formatters) {
+                formatter.run(iterations, round == 2);
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static abstract class Formatter {
+
+        private Formatter(String name) {
+            this.name = name;
+        }
+
+        abstract int format(long millis);
+
+        private void run(int iterations, boolean report) {
+            long time = System.currentTimeMillis();
+            long check = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                check += format(time + i / 4);
+            }
+            long nanos = System.nanoTime() - start;
+            if (report) {
+                System.out.println(String.format("%-36s %8.1f ns/op  (%d)", name, (double) nanos / iterations, check));
+            }
+        }
+
+        private final String name;
+    }
+}
@@ -0,0 +1,50 @@
+package com.janrain.util;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Iso8601Test {
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        Random random = new Random();
+        long[] times = new long[1000];
+        times[0] = 0;
+        times[1] = 951782400000L; // 2000-02-29
+        times[2] = 4107542399999L; // 2100-02-28T23:59:59.999
+        for (int i = 3; i < times.length; i++) {
+            times[i] = (long) (random.nextDouble() * 253402300799999L);
+        }
+        char[] buffer = new char[Iso8601.LENGTH + 2];
+        for (long time : times) {
+            String expected = format.format(new Date(time));
+            assertEquals(expected, Iso8601.format(time));
+            assertEquals(expected, Iso8601.format(time, new StringBuilder()).toString());
+            assertEquals(Iso8601.LENGTH + 1, Iso8601.format(time, buffer, 1));
+            assertEquals(expected, new String(buffer, 1, Iso8601.LENGTH));
+            assertEquals(time, Iso8601.parse(expected + "-suffix"));
+        }
+    }
+
+    @Test
+    public void testParseInvalid() {
+        for (String invalid : new String[] { "", "2012-05-01T10:00:00.000", "2012-05-01 10:00:00.000Z", "2012-13-01T10:00:00.000Z", "2012-05-01T10:0x:00.000Z" }) {
+            try {
+                Iso8601.parse(invalid);
+                fail("Invalid timestamp parsed: " + invalid);
+            } catch (ParseException expected) {
+                // expected
+            }
+        }
+    }
+}